@@ -0,0 +1,246 @@
+/*
+ * (c) 2009.-2011. Ivan Voras <ivoras@fer.hr>
+ * Released under the 2-clause BSDL.
+ */
+
+package enotes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton: finds all occurrences of any number of terms
+ * in a single pass over the text, in time linear in the text length plus
+ * the number of matches.
+ *
+ * Node transitions are kept as sorted char arrays (searched with binary
+ * search), which keeps the automaton small for arbitrary Unicode terms.
+ *
+ * @author ivoras
+ */
+class AhoCorasick {
+
+    /** Receives matches in the order of their end offsets */
+    interface MatchListener {
+        void match(int start, int end, int term);
+    }
+
+    private final boolean ignoreCase;
+    private final int[] termLength;
+    // Per term: the node it ends at (0 for an empty term)
+    private final int[] termNode;
+    private int maxTermLength = 0;
+
+    // Per node: sorted transition chars and target nodes
+    private char[][] edgeChars = new char[16][];
+    private int[][] edgeTargets = new int[16][];
+    private int[] edgeCount = new int[16];
+    // Per node: failure link, term ending here (-1 if none) and the next
+    // node on the failure chain that ends a term (-1 if none)
+    private int[] fail;
+    private int[] term = new int[16];
+    private int[] output;
+    private int nodes = 1;
+
+
+    /**
+     * Builds the automaton. Empty terms are ignored; if a term is given
+     * more than once, the first index is reported.
+     *
+     * @param terms
+     * @param ignoreCase
+     */
+    public AhoCorasick(List<String> terms, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        termLength = new int[terms.size()];
+        termNode = new int[terms.size()];
+        term[0] = -1;
+
+        for (int t = 0; t < terms.size(); t++) {
+            String s = terms.get(t);
+            termLength[t] = s.length();
+            if (s.length() == 0)
+                continue;
+            int node = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = fold(s.charAt(i));
+                int next = step(node, c);
+                if (next < 0)
+                    next = addEdge(node, c);
+                node = next;
+            }
+            if (term[node] < 0)
+                term[node] = t;
+            termNode[t] = node;
+            maxTermLength = Math.max(maxTermLength, s.length());
+        }
+        buildLinks();
+    }
+
+
+    public int getTermCount() {
+        return termLength.length;
+    }
+
+
+    public int getMaxTermLength() {
+        return maxTermLength;
+    }
+
+
+    /**
+     * Returns the index matches of term t are reported with: t itself, or
+     * the first term equal to it (after case folding), or -1 if t is empty.
+     *
+     * @param t
+     * @return
+     */
+    public int getReportedTerm(int t) {
+        return termLength[t] == 0 ? -1 : term[termNode[t]];
+    }
+
+
+    /**
+     * Returns s the way terms and text are compared, i.e. case folded if
+     * case is ignored.
+     *
+     * @param s
+     * @param ignoreCase
+     * @return
+     */
+    static String fold(String s, boolean ignoreCase) {
+        if (!ignoreCase)
+            return s;
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+        return new String(chars);
+    }
+
+
+    /**
+     * Scans text[from, to) and reports every occurrence of every term,
+     * including overlapping ones.
+     *
+     * @param text
+     * @param from
+     * @param to
+     * @param listener
+     */
+    public void search(CharSequence text, int from, int to, MatchListener listener) {
+        int node = 0;
+        for (int i = from; i < to; i++) {
+            char c = fold(text.charAt(i));
+            int next;
+            while ((next = step(node, c)) < 0 && node != 0)
+                node = fail[node];
+            node = next < 0 ? 0 : next;
+
+            int out = term[node] >= 0 ? node : output[node];
+            while (out > 0) {
+                int t = term[out];
+                listener.match(i + 1 - termLength[t], i + 1, t);
+                out = output[out];
+            }
+        }
+    }
+
+
+    private char fold(char c) {
+        return ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c;
+    }
+
+
+    private int step(int node, char c) {
+        char[] chars = edgeChars[node];
+        if (chars == null)
+            return -1;
+        int lo = 0, hi = edgeCount[node] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (chars[mid] < c)
+                lo = mid + 1;
+            else if (chars[mid] > c)
+                hi = mid - 1;
+            else
+                return edgeTargets[node][mid];
+        }
+        return -1;
+    }
+
+
+    private int addEdge(int node, char c) {
+        if (nodes == term.length) {
+            int n = nodes * 2;
+            char[][] ec = new char[n][];
+            int[][] et = new int[n][];
+            int[] cnt = new int[n];
+            int[] tm = new int[n];
+            System.arraycopy(edgeChars, 0, ec, 0, nodes);
+            System.arraycopy(edgeTargets, 0, et, 0, nodes);
+            System.arraycopy(edgeCount, 0, cnt, 0, nodes);
+            System.arraycopy(term, 0, tm, 0, nodes);
+            edgeChars = ec;
+            edgeTargets = et;
+            edgeCount = cnt;
+            term = tm;
+        }
+        int target = nodes++;
+        term[target] = -1;
+
+        if (edgeChars[node] == null) {
+            edgeChars[node] = new char[2];
+            edgeTargets[node] = new int[2];
+        } else if (edgeCount[node] == edgeChars[node].length) {
+            char[] ec = new char[edgeCount[node] * 2];
+            int[] et = new int[edgeCount[node] * 2];
+            System.arraycopy(edgeChars[node], 0, ec, 0, edgeCount[node]);
+            System.arraycopy(edgeTargets[node], 0, et, 0, edgeCount[node]);
+            edgeChars[node] = ec;
+            edgeTargets[node] = et;
+        }
+        // Insert keeping the chars sorted
+        char[] chars = edgeChars[node];
+        int[] targets = edgeTargets[node];
+        int pos = edgeCount[node];
+        while (pos > 0 && chars[pos - 1] > c) {
+            chars[pos] = chars[pos - 1];
+            targets[pos] = targets[pos - 1];
+            pos--;
+        }
+        chars[pos] = c;
+        targets[pos] = target;
+        edgeCount[node]++;
+        return target;
+    }
+
+
+    // Breadth-first pass computing failure and output links.
+    private void buildLinks() {
+        fail = new int[nodes];
+        output = new int[nodes];
+        List<Integer> queue = new ArrayList<Integer>();
+        output[0] = -1;
+        for (int e = 0; e < edgeCount[0]; e++) {
+            int child = edgeTargets[0][e];
+            fail[child] = 0;
+            output[child] = -1;
+            queue.add(child);
+        }
+        for (int q = 0; q < queue.size(); q++) {
+            int node = queue.get(q);
+            for (int e = 0; e < edgeCount[node]; e++) {
+                char c = edgeChars[node][e];
+                int child = edgeTargets[node][e];
+                int f = fail[node];
+                int next;
+                while ((next = step(f, c)) < 0 && f != 0)
+                    f = fail[f];
+                fail[child] = next < 0 ? 0 : next;
+                int fc = fail[child];
+                output[child] = term[fc] >= 0 ? fc : output[fc];
+                queue.add(child);
+            }
+        }
+    }
+}
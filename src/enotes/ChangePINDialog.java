@@ -1,6 +1,10 @@
 package enotes;
 
-import enotes.smartcard.CardCommunication;
+import enotes.smartcard.CardService;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import javax.swing.JOptionPane;
 
 
@@ -141,25 +145,41 @@ public class ChangePINDialog extends javax.swing.JFrame {
 	for (int m = 0; m < currentPin.length; m++) {
 	  currentPin[m] = (byte) (CurrentPIN_in_Array[m] - 48);
 	 }
-        if(!CardCommunication.verifyPIN(currentPin)){   
-            JOptionPane.showMessageDialog(this, "PIN Verification Failed !");
-            return;
-        }
-        
         //new pin
         char[] NewPIN_in_Array = NewPIN_jPasswordField.getPassword();
          
-        byte[] newPin = new byte[NewPIN_in_Array.length];
+        final byte[] newPin = new byte[NewPIN_in_Array.length];
 
 	for (int m = 0; m < newPin.length; m++) {
 	  newPin[m] = (byte) (NewPIN_in_Array[m] - 48);
 	 }
-        if(!CardCommunication.changePIN(newPin)){   
-            JOptionPane.showMessageDialog(this, "Changing PIN Fails!");
-            return;
-        }
-        JOptionPane.showMessageDialog(this, "PIN Changed !");
-        this.setVisible(false);
+
+        // verify, then change, both on the card I/O thread; messages on the EDT
+        final CardService card = CardService.getInstance();
+        ChangePINOK_jButton.setEnabled(false);
+        card.verifyPIN(currentPin).thenCompose(new Function<Boolean, CompletableFuture<String>>() {
+            public CompletableFuture<String> apply(Boolean verified) {
+                if (!verified)
+                    return CompletableFuture.completedFuture("PIN Verification Failed !");
+                return card.changePIN(newPin).thenApply(new Function<Boolean, String>() {
+                    public String apply(Boolean changed) {
+                        return changed ? null : "Changing PIN Fails!";
+                    }
+                });
+            }
+        }).whenCompleteAsync(new BiConsumer<String, Throwable>() {
+            public void accept(String error, Throwable ex) {
+                Arrays.fill(newPin, (byte) 0);
+                ChangePINOK_jButton.setEnabled(true);
+                if (ex != null || error != null) {
+                    JOptionPane.showMessageDialog(ChangePINDialog.this, ex != null ? "Changing PIN Fails!" : error);
+                    return;
+                }
+                JOptionPane.showMessageDialog(ChangePINDialog.this, "PIN Changed !");
+                setVisible(false);
+            }
+        }, CardService.EDT);
+        Arrays.fill(currentPin, (byte) 0);
         
     }//GEN-LAST:event_ChangePINOK_jButtonActionPerformed
 
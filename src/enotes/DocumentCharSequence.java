@@ -0,0 +1,170 @@
+/*
+ * (c) 2009.-2011. Ivan Voras <ivoras@fer.hr>
+ * Released under the 2-clause BSDL.
+ */
+
+package enotes;
+
+import java.util.concurrent.CancellationException;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Read-only CharSequence view of a Swing Document. Characters are fetched
+ * through a partial-return Segment, so the document text is never copied
+ * as a whole; for the usual GapContent the segment points straight into
+ * the document's own buffer.
+ *
+ * The view also carries a guard: once cancel() is called or the deadline
+ * passes, the next character access throws a CancellationException. This
+ * is what stops a runaway regular expression, since Matcher has no other
+ * way to be interrupted.
+ *
+ * The view must only be used on the thread that modifies the document
+ * (the event dispatch thread) and is invalid after the document changes.
+ *
+ * @author ivoras
+ */
+class DocumentCharSequence implements CharSequence {
+
+    /** How many character reads go by between two guard checks */
+    static final int GUARD_INTERVAL = 4096;
+
+    private final Document doc;
+    private final DocumentCharSequence parent;
+    private final int start;
+    private final int end;
+    private final Segment seg = new Segment();
+    private int segStart = 0;
+    private int segEnd = 0;
+    private int reads = 0;
+    private long deadline = Long.MAX_VALUE;
+    private volatile boolean cancelled = false;
+
+
+    public DocumentCharSequence(Document doc) {
+        this(doc, null, 0, doc.getLength());
+    }
+
+
+    private DocumentCharSequence(Document doc, DocumentCharSequence parent, int start, int end) {
+        this.doc = doc;
+        this.parent = parent;
+        this.start = start;
+        this.end = end;
+        seg.setPartialReturn(true);
+    }
+
+
+    /**
+     * Arms the guard: character access fails after the given System.nanoTime()
+     * value.
+     *
+     * @param deadline
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+
+    /**
+     * Clears a previous cancellation and the deadline.
+     */
+    public void resetGuard() {
+        deadline = Long.MAX_VALUE;
+        cancelled = false;
+    }
+
+
+    /**
+     * Returns an independent view of the same text for use by another
+     * thread. The copy has its own Segment, inherits the deadline and is
+     * cancelled together with this view. The document must not change
+     * while copies are in use.
+     *
+     * @return
+     */
+    public DocumentCharSequence fork() {
+        DocumentCharSequence copy = new DocumentCharSequence(doc, this, start, end);
+        copy.deadline = deadline;
+        return copy;
+    }
+
+
+    /**
+     * Makes the next character access fail. May be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+
+    /**
+     * True once cancel() was called on this view or the one it was forked
+     * from; a passed deadline doesn't count.
+     *
+     * @return
+     */
+    public boolean isCancelled() {
+        return cancelled || (parent != null && parent.cancelled);
+    }
+
+
+    public int length() {
+        return end - start;
+    }
+
+
+    public char charAt(int index) {
+        if ((++reads & (GUARD_INTERVAL - 1)) == 0)
+            checkGuard();
+        if (index < 0 || index >= end - start)
+            throw new IndexOutOfBoundsException("index: " + index);
+        int pos = start + index;
+        if (pos < segStart || pos >= segEnd)
+            load(pos);
+        return seg.array[seg.offset + pos - segStart];
+    }
+
+
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > end - start || from > to)
+            throw new IndexOutOfBoundsException("range: " + from + ", " + to);
+        return getText(start + from, to - from);
+    }
+
+
+    @Override
+    public String toString() {
+        return getText(start, end - start);
+    }
+
+
+    private void checkGuard() {
+        if (isCancelled())
+            throw new CancellationException("Search cancelled");
+        if (deadline != Long.MAX_VALUE && System.nanoTime() > deadline)
+            throw new CancellationException("Search timed out");
+    }
+
+
+    private void load(int pos) {
+        try {
+            doc.getText(pos, end - pos, seg);
+        } catch (BadLocationException e) {
+            throw new IndexOutOfBoundsException(e.getMessage());
+        }
+        segStart = pos;
+        segEnd = pos + seg.count;
+    }
+
+
+    private String getText(int offset, int len) {
+        try {
+            return doc.getText(offset, len);
+        } catch (BadLocationException e) {
+            throw new IndexOutOfBoundsException(e.getMessage());
+        }
+    }
+}
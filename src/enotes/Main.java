@@ -7,9 +7,23 @@
 package enotes;
 
 import enotes.smartcard.CardCommunication;
+import enotes.smartcard.CardPresenceMonitor;
+import enotes.smartcard.CardService;
+import enotes.smartcard.KeyAgentClient;
+import enotes.smartcard.TransportKeyPool;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
-import javax.swing.JFrame;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 
 /**
@@ -21,32 +35,124 @@ public class Main {
     static final String VERSION = "1.0beta6";
 
     /**
-     * @param args the command line arguments
+     * @param args the command line arguments; "--train" makes a class
+     * data sharing training run (see StartupTraining)
      */
-    public static void main(String[] args) {
-        try {
-            if(!CardCommunication.connectToCard()){
-                JFrame frame = new JFrame("JOptionPane showMessafeDialog noCard");
-                JOptionPane.showMessageDialog(frame, "No smart card present!");
-                System.exit(1);
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1 && args[0].equals("--train")) {
+            StartupTraining.run();
+            return;
+        }
+        StartupTimer.mark("main");
+        final File file = args.length == 1 ? new File(args[0]) : null;
+        // an editor is already running: it opens the file, with its card session
+        if (SingleInstance.isEnabled() && SingleInstance.handOff(file))
+            return;
+
+        // the card handshake and reading the file run while the window comes up
+        final CompletableFuture<Boolean> card = connectCard();
+        final CompletableFuture<byte[]> contents = file == null ? null : readFile(file);
+
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                try {
+                    UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+                } catch (Exception e) {}
+                final MainForm mf = newWindow();
+                card.whenCompleteAsync(new BiConsumer<Boolean, Throwable>() {
+                    public void accept(Boolean ok, Throwable ex) {
+                        if (ex != null || !ok) {
+                            JOptionPane.showMessageDialog(mf, "No smart card present!");
+                            System.exit(1);
+                        }
+                        if (file != null)
+                            openFile(mf, file, contents);
+                    }
+                }, CardService.EDT);
             }
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
-        } catch (Exception e) {}
+        });
+        // after the window above, so files handed to us open in windows of their own
+        if (SingleInstance.isEnabled())
+            SingleInstance.listen();
+    }
+
+    /**
+     * Opens an editor window, with file loaded if it isn't null.
+     */
+    static void openWindow(File file) {
+        MainForm mf = newWindow();
+        if (file != null)
+            openFile(mf, file, null);
+    }
 
+    private static MainForm newWindow() {
         MainForm mf = new MainForm();
         mf.setSize(800, 550);
         mf.setLocationRelativeTo(null);
+        mf.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                StartupTimer.mark("first frame");
+            }
+        });
         mf.setVisible(true);
+        return mf;
+    }
 
-        if (args.length == 1) {
-            File f = new File(args[0]);
-            if (!f.canRead()) {
-                System.err.println("File not found or access denied: "+args[0]);
-                return;
-            }
-            if (!mf.internalOpenFile(new File(args[0])))
-                System.err.println("Cannot open file: "+args[0]);
+    // contents, if not null, is the file read in advance
+    private static void openFile(MainForm mf, final File file, CompletableFuture<byte[]> contents) {
+        if (!file.canRead()) {
+            System.err.println("File not found or access denied: "+file);
+            return;
         }
+        mf.internalOpenFile(file, contents).thenAccept(new Consumer<Boolean>() {
+            public void accept(Boolean opened) {
+                if (!opened)
+                    System.err.println("Cannot open file: "+file);
+                else
+                    StartupTimer.mark("document visible");
+            }
+        });
+    }
+
+    /**
+     * Finds the card and selects the applet, or reaches the key agent, on
+     * the card I/O thread; whatever the window asks of the card later is
+     * queued behind it.
+     */
+    static CompletableFuture<Boolean> connectCard() {
+        return CardService.getInstance().submit(new Callable<Boolean>() {
+            public Boolean call() {
+                // a running key agent owns the card; otherwise talk to it ourselves
+                KeyAgentClient agent = KeyAgentClient.connect();
+                if (agent != null) {
+                    CardService.getInstance().useAgent(agent);
+                    StartupTimer.mark("card ready");
+                    return true;
+                }
+                // start generating transport keys while the user enters the PIN
+                TransportKeyPool.getInstance();
+                if (!CardCommunication.connectToCard())
+                    return false;
+                // reconnects in the background when the card is pulled and put back
+                if (!CardCommunication.isSimulatorBackend())
+                    CardPresenceMonitor.getInstance();
+                StartupTimer.mark("card ready");
+                return true;
+            }
+        });
+    }
+
+    private static CompletableFuture<byte[]> readFile(final File file) {
+        return CompletableFuture.supplyAsync(new Supplier<byte[]>() {
+            public byte[] get() {
+                try {
+                    return Files.readAllBytes(file.toPath());
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        });
     }
 
 }
@@ -16,18 +16,41 @@ import enotes.doc.DocMetadata;
 import enotes.doc.DocException;
 import enotes.doc.Doc;
 import enotes.doc.DocPasswordException;
+import enotes.smartcard.CardService;
+import java.awt.Color;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
 import javax.swing.JFileChooser;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.CaretEvent;
 import javax.swing.event.CaretListener;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.event.UndoableEditListener;
 import javax.swing.filechooser.FileFilter;
+import javax.swing.text.BadLocationException;
 import javax.swing.text.Document;
 import javax.swing.text.Element;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoManager;
 
 /**
  *
@@ -43,13 +66,31 @@ public class MainForm extends javax.swing.JFrame {
     static final int WHYSAVE_SAVEAS = 2;
     static final int WHYSAVE_CLOSE = 3;
 
+    /** Delay after the last keystroke in the find box before searching */
+    static final int FIND_DEBOUNCE_MS = 200;
+    /** Time spent searching per event loop iteration while typing */
+    static final long FIND_SLICE_NANOS = 15000000L;
+
+    /** Open editor windows; touched on the event thread only */
+    private static final List<MainForm> windows = new ArrayList<MainForm>();
+
     private DocMetadata docm = new DocMetadata();
     private WordSearcher searcher;
+    private String incrementalText = "";
+    private boolean incrementalRunning = false;
+    private final UndoManager undo = new UndoManager();
+    private CompoundEdit compoundEdit = null;
+    private final Timer findTimer = new Timer(FIND_DEBOUNCE_MS, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+            doIncrementalSearch();
+        }
+    });
     int tp_line, tp_col;
 
     /** Creates new form fmain */
     public MainForm() {
         initComponents();
+        windows.add(this);
         updateTitle();
         tp.addCaretListener( new CaretListener(){
           public void caretUpdate(CaretEvent e ){
@@ -63,6 +104,21 @@ public class MainForm extends javax.swing.JFrame {
           } );
         updateCaretStatus();
         searcher = new WordSearcher(tp);
+        searcher.setBackgroundListener(new Runnable() {
+            public void run() {
+                if (!incrementalRunning)
+                    continueIncrementalSearch();
+            }
+        });
+        findTimer.setRepeats(false);
+        tp.getDocument().addUndoableEditListener(new UndoableEditListener() {
+            public void undoableEditHappened(UndoableEditEvent e) {
+                if (compoundEdit != null)
+                    compoundEdit.addEdit(e.getEdit());
+                else
+                    undo.addEdit(e.getEdit());
+            }
+        });
     }
 
     /** This method is called from within the constructor to
@@ -88,10 +144,20 @@ public class MainForm extends javax.swing.JFrame {
         miSave = new javax.swing.JMenuItem();
         miSaveAs = new javax.swing.JMenuItem();
         ChangePIN_jMenuItem = new javax.swing.JMenuItem();
+        miLock = new javax.swing.JMenuItem();
         jSeparator1 = new javax.swing.JSeparator();
         miExit = new javax.swing.JMenuItem();
         jMenu2 = new javax.swing.JMenu();
+        miUndo = new javax.swing.JMenuItem();
+        miRedo = new javax.swing.JMenuItem();
+        jSeparator3 = new javax.swing.JSeparator();
         miFind = new javax.swing.JMenuItem();
+        miFindTerms = new javax.swing.JMenuItem();
+        miReplace = new javax.swing.JMenuItem();
+        jSeparator2 = new javax.swing.JSeparator();
+        miMatchCase = new javax.swing.JCheckBoxMenuItem();
+        miWholeWord = new javax.swing.JCheckBoxMenuItem();
+        miRegex = new javax.swing.JCheckBoxMenuItem();
         jMenu3 = new javax.swing.JMenu();
         miAbout = new javax.swing.JMenuItem();
 
@@ -208,6 +274,15 @@ public class MainForm extends javax.swing.JFrame {
             }
         });
         jMenu1.add(ChangePIN_jMenuItem);
+
+        miLock.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_L, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        miLock.setText("Lock");
+        miLock.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                miLockActionPerformed(evt);
+            }
+        });
+        jMenu1.add(miLock);
         jMenu1.add(jSeparator1);
 
         miExit.setText("Exit");
@@ -222,6 +297,25 @@ public class MainForm extends javax.swing.JFrame {
 
         jMenu2.setText("Edit");
 
+        miUndo.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_Z, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        miUndo.setText("Undo");
+        miUndo.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                miUndoActionPerformed(evt);
+            }
+        });
+        jMenu2.add(miUndo);
+
+        miRedo.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_Y, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        miRedo.setText("Redo");
+        miRedo.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                miRedoActionPerformed(evt);
+            }
+        });
+        jMenu2.add(miRedo);
+        jMenu2.add(jSeparator3);
+
         miFind.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_F, java.awt.event.InputEvent.CTRL_MASK));
         miFind.setText("Find...");
         miFind.addActionListener(new java.awt.event.ActionListener() {
@@ -231,6 +325,48 @@ public class MainForm extends javax.swing.JFrame {
         });
         jMenu2.add(miFind);
 
+        miFindTerms.setText("Find terms from file...");
+        miFindTerms.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                miFindTermsActionPerformed(evt);
+            }
+        });
+        jMenu2.add(miFindTerms);
+
+        miReplace.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_H, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        miReplace.setText("Replace...");
+        miReplace.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                miReplaceActionPerformed(evt);
+            }
+        });
+        jMenu2.add(miReplace);
+        jMenu2.add(jSeparator2);
+
+        miMatchCase.setText("Match case");
+        miMatchCase.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                miSearchModeActionPerformed(evt);
+            }
+        });
+        jMenu2.add(miMatchCase);
+
+        miWholeWord.setText("Whole words");
+        miWholeWord.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                miSearchModeActionPerformed(evt);
+            }
+        });
+        jMenu2.add(miWholeWord);
+
+        miRegex.setText("Regular expression");
+        miRegex.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                miSearchModeActionPerformed(evt);
+            }
+        });
+        jMenu2.add(miRegex);
+
         jMenuBar1.add(jMenu2);
 
         jMenu3.setText("Help");
@@ -251,25 +387,52 @@ public class MainForm extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
     private void miExitActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miExitActionPerformed
-        if (!canExit())
-            return;
-        this.setVisible(false);
-        System.exit(0);
+        // exits the editor, so every window gets to save
+        exitAfter(windows.toArray(new MainForm[0]), 0);
     }//GEN-LAST:event_miExitActionPerformed
 
+    // Exits once windows i and up agreed, one after another
+    private void exitAfter(final MainForm[] mfs, final int i) {
+        if (i == mfs.length) {
+            this.setVisible(false);
+            System.exit(0);
+        }
+        mfs[i].canExit().thenAccept(new Consumer<Boolean>() {
+            public void accept(Boolean ok) {
+                if (ok)
+                    exitAfter(mfs, i + 1);
+            }
+        });
+    }
+
     private void formWindowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosing
-        if (!canExit())
-            return;
-        this.setVisible(false);
-        System.exit(0);
+        canExit().thenAccept(new Consumer<Boolean>() {
+            public void accept(Boolean ok) {
+                if (!ok)
+                    return;
+                setVisible(false);
+                // the editor stays up while other windows are open
+                windows.remove(MainForm.this);
+                if (!windows.isEmpty()) {
+                    dispose();
+                    return;
+                }
+                System.exit(0);
+            }
+        });
     }//GEN-LAST:event_formWindowClosing
 
     private void miNewActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miNewActionPerformed
-        if (checkSave(WHYSAVE_CLOSE) == OPT_CANCEL)
-            return;
-        tp.setText("");
-        docm = new DocMetadata();
-        updateTitle();
+        checkSave(WHYSAVE_CLOSE).thenAccept(new Consumer<Integer>() {
+            public void accept(Integer opt) {
+                if (opt == OPT_CANCEL)
+                    return;
+                tp.setText("");
+                undo.discardAllEdits();
+                docm = new DocMetadata();
+                updateTitle();
+            }
+        });
     }//GEN-LAST:event_miNewActionPerformed
 
     private void miSaveActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miSaveActionPerformed
@@ -293,10 +456,7 @@ public class MainForm extends javax.swing.JFrame {
     }//GEN-LAST:event_tpCaretPositionChanged
 
     private void tpKeyPressed(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_tpKeyPressed
-        if (!docm.modified) {
-            docm.modified = true;
-            updateTitle();
-        }
+        setModified();
     }//GEN-LAST:event_tpKeyPressed
 
     private void tfFindFocusGained(java.awt.event.FocusEvent evt) {//GEN-FIRST:event_tfFindFocusGained
@@ -311,7 +471,9 @@ public class MainForm extends javax.swing.JFrame {
             tfFind.setText("Find...");
             tfFind.setForeground(java.awt.SystemColor.inactiveCaption);
         }
-        searcher.removeHighlights();
+        findTimer.stop();
+        incrementalText = "";
+        searcher.startIncremental(null);
     }//GEN-LAST:event_tfFindFocusLost
 
     private void miOpenActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miOpenActionPerformed
@@ -324,20 +486,72 @@ public class MainForm extends javax.swing.JFrame {
 
     private void tfFindKeyReleased(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_tfFindKeyReleased
         if (evt.getKeyChar() == 10 ) {
+            findTimer.stop();
             doSearch();
             evt.consume();
-        }
+        } else if (!tfFind.getText().equals(incrementalText))
+            findTimer.restart();
     }//GEN-LAST:event_tfFindKeyReleased
 
     private void btFindActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btFindActionPerformed
         doSearch();
     }//GEN-LAST:event_btFindActionPerformed
 
+    private void miFindTermsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miFindTermsActionPerformed
+        JFileChooser fch = new JFileChooser();
+        if (fch.showOpenDialog(this) != JFileChooser.APPROVE_OPTION)
+            return;
+        List<String> terms;
+        try {
+            terms = WordSearcher.loadTerms(fch.getSelectedFile());
+        } catch (IOException ex) {
+            Logger.getLogger(MainForm.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+            JOptionPane.showMessageDialog(this, "IOException: "+ex.getMessage());
+            return;
+        }
+        doTermSearch(terms);
+    }//GEN-LAST:event_miFindTermsActionPerformed
+
+    private void miReplaceActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miReplaceActionPerformed
+        doReplace();
+    }//GEN-LAST:event_miReplaceActionPerformed
+
+    private void miUndoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miUndoActionPerformed
+        if (undo.canUndo()) {
+            undo.undo();
+            setModified();
+        }
+    }//GEN-LAST:event_miUndoActionPerformed
+
+    private void miRedoActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miRedoActionPerformed
+        if (undo.canRedo()) {
+            undo.redo();
+            setModified();
+        }
+    }//GEN-LAST:event_miRedoActionPerformed
+
+    private void miSearchModeActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miSearchModeActionPerformed
+        int mode = 0;
+        if (miMatchCase.isSelected())
+            mode |= WordSearcher.MODE_CASE_SENSITIVE;
+        if (miWholeWord.isSelected())
+            mode |= WordSearcher.MODE_WHOLE_WORD;
+        if (miRegex.isSelected())
+            mode |= WordSearcher.MODE_REGEX;
+        searcher.setMode(mode);
+        if (incrementalText.length() != 0 && !incrementalText.equals("Find..."))
+            doIncrementalSearch();
+    }//GEN-LAST:event_miSearchModeActionPerformed
+
     private void miAboutActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miAboutActionPerformed
         JOptionPane.showMessageDialog(this, "Encrypted Notepad "+Main.VERSION+"\n(c) 2010. Ivan Voras <ivoras@gmail.com>\n"+
                 "Released under the BSD License\nProject web: http://sourceforge.net/projects/enotes\n\nUsing "+Doc.CRYPTO_MODE);
     }//GEN-LAST:event_miAboutActionPerformed
 
+    private void miLockActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_miLockActionPerformed
+        CardService.getInstance().lock();
+    }//GEN-LAST:event_miLockActionPerformed
+
     private void ChangePIN_jMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_ChangePIN_jMenuItemActionPerformed
         // TODO add your handling code here:
         ChangePINDialog chpd = new ChangePINDialog();
@@ -357,21 +571,35 @@ public class MainForm extends javax.swing.JFrame {
     private javax.swing.JPanel jPanel2;
     private javax.swing.JScrollPane jScrollPane1;
     private javax.swing.JSeparator jSeparator1;
+    private javax.swing.JSeparator jSeparator2;
+    private javax.swing.JSeparator jSeparator3;
     private javax.swing.JLabel lbCaret;
     private javax.swing.JMenuItem miAbout;
     private javax.swing.JMenuItem miExit;
     private javax.swing.JMenuItem miFind;
+    private javax.swing.JMenuItem miFindTerms;
+    private javax.swing.JMenuItem miLock;
+    private javax.swing.JCheckBoxMenuItem miMatchCase;
     private javax.swing.JMenuItem miNew;
     private javax.swing.JMenuItem miOpen;
+    private javax.swing.JMenuItem miRedo;
+    private javax.swing.JCheckBoxMenuItem miRegex;
+    private javax.swing.JMenuItem miReplace;
     private javax.swing.JMenuItem miSave;
     private javax.swing.JMenuItem miSaveAs;
+    private javax.swing.JMenuItem miUndo;
+    private javax.swing.JCheckBoxMenuItem miWholeWord;
     private javax.swing.JTextField tfFind;
     private javax.swing.JTextPane tp;
     // End of variables declaration//GEN-END:variables
 
 
-    private boolean canExit() {
-        return checkSave(WHYSAVE_CLOSE) != OPT_CANCEL;
+    private CompletableFuture<Boolean> canExit() {
+        return checkSave(WHYSAVE_CLOSE).thenApply(new Function<Integer, Boolean>() {
+            public Boolean apply(Integer opt) {
+                return opt != OPT_CANCEL;
+            }
+        });
     }
     
 
@@ -385,6 +613,14 @@ public class MainForm extends javax.swing.JFrame {
     }
 
 
+    private void setModified() {
+        if (!docm.modified) {
+            docm.modified = true;
+            updateTitle();
+        }
+    }
+
+
     private void updateCaretStatus() {
         docm.caretPosition = tp.getCaretPosition();
         lbCaret.setText(String.format("L:%d C:%s", tp_line, tp_col));
@@ -392,32 +628,53 @@ public class MainForm extends javax.swing.JFrame {
 
 
     /**
-     * Returns true if the document was saved or the user said he doesn't want
-     * to save it.
+     * Completes, on the event thread, with OPT_SAVE if the document was
+     * saved, OPT_NOSAVE if the user said he doesn't want to save it, and
+     * OPT_CANCEL otherwise. A new document's key comes from the card,
+     * which the event thread doesn't wait for.
      *
      * @return
      */
-    private int checkSave(int whySave) {
+    private CompletableFuture<Integer> checkSave(final int whySave) {
         if ((whySave == WHYSAVE_SAVE || whySave == WHYSAVE_CLOSE) && !docm.modified)
-            return OPT_NOSAVE;
+            return CompletableFuture.completedFuture(OPT_NOSAVE);
 
         if (whySave == WHYSAVE_CLOSE) {
             int opt = JOptionPane.showConfirmDialog(this, "Do you want to save the file "+(docm.filename != null ? docm.filename : ""), "Save file?",
                     JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
             if (opt == JOptionPane.CANCEL_OPTION)
-                return OPT_CANCEL;
+                return CompletableFuture.completedFuture(OPT_CANCEL);
             if (opt == JOptionPane.NO_OPTION)
-                return OPT_NOSAVE;
+                return CompletableFuture.completedFuture(OPT_NOSAVE);
         }
 
-        if (docm.key == null) {
-            String pwd = PasswordDialog.getPassword();
-            
-            if (pwd == null)
-                return OPT_CANCEL;
-            docm.setKey(pwd);
-        }
+        if (docm.key != null)
+            return CompletableFuture.completedFuture(save(whySave));
 
+        final DocMetadata keyed = docm;
+        return PasswordDialog.askPassword(true).thenCompose(new Function<String, CompletionStage<Integer>>() {
+            public CompletionStage<Integer> apply(String pwd) {
+                if (pwd == null)
+                    return CompletableFuture.completedFuture(OPT_CANCEL);
+                return DocMetadata.fetchKey().thenApplyAsync(new Function<byte[][], Integer>() {
+                    public Integer apply(byte[][] fileKey) {
+                        // another document may have been opened meanwhile
+                        if (fileKey == null || docm != keyed) {
+                            if (fileKey == null)
+                                JOptionPane.showMessageDialog(MainForm.this, "The card did not give a key for the document");
+                            return OPT_CANCEL;
+                        }
+                        docm.setKey(fileKey);
+                        return save(whySave);
+                    }
+                }, CardService.EDT);
+            }
+        });
+    }
+
+
+    // Asks where to if needed and saves the document, which has its key
+    private int save(int whySave) {
         File fSave = null;
         if (whySave == WHYSAVE_SAVEAS || docm.filename == null) {
             JFileChooser fch = new JFileChooser();
@@ -479,14 +736,20 @@ public class MainForm extends javax.swing.JFrame {
 
 
     /**
-     * Returns true if a file was loaded.
-     * 
-     * @return
+     * Lets the user choose a file and opens it, after the current one was
+     * saved or not.
      */
-    private boolean openFile() {
-        if (checkSave(WHYSAVE_CLOSE) == OPT_CANCEL)
-            return false;
+    private void openFile() {
+        checkSave(WHYSAVE_CLOSE).thenAccept(new Consumer<Integer>() {
+            public void accept(Integer opt) {
+                if (opt != OPT_CANCEL)
+                    chooseFile();
+            }
+        });
+    }
 
+
+    private void chooseFile() {
         JFileChooser fch = new JFileChooser();
         fch.addChoosableFileFilter(new FileFilter() {
             @Override
@@ -520,48 +783,89 @@ public class MainForm extends javax.swing.JFrame {
         if (ret == JFileChooser.APPROVE_OPTION)
             fOpen = fch.getSelectedFile();
         else
-            return false;
+            return;
 
-        return internalOpenFile(fOpen);
+        internalOpenFile(fOpen);
     }
 
 
     /*
-     * Open a file that's certainly there.
+     * Open a file that's certainly there. Completes on the event thread
+     * with true if the file was loaded.
      */
-    boolean internalOpenFile(File fOpen) {
-        Doc doc = new Doc();
-        while (true) {
-            try {
-                String pwd = PasswordDialog.getPassword();
-                if (pwd == null)
-                    return false;
-                if (doc.doOpen(fOpen, pwd))
-                    break;
-                else
-                    return false;
-            } catch (DocPasswordException ex) {
-                continue;
-            } catch (DocException ex) {
-                Logger.getLogger(MainForm.class.getName()).log(Level.SEVERE, null, ex);
-                JOptionPane.showMessageDialog(this, ex.getMessage());
-                return false;
-            } catch (FileNotFoundException ex) {
-                Logger.getLogger(MainForm.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
-                JOptionPane.showMessageDialog(this, ex.getMessage());
-                return false;
-            } catch (IOException ex) {
-                Logger.getLogger(MainForm.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
-                JOptionPane.showMessageDialog(this, "IOException: "+ex.getMessage());
-                return false;
+    CompletableFuture<Boolean> internalOpenFile(File fOpen) {
+        return internalOpenFile(fOpen, null);
+    }
+
+    /*
+     * Same, with the file's contents read in advance (null to read it here).
+     */
+    CompletableFuture<Boolean> internalOpenFile(final File fOpen, CompletableFuture<byte[]> contents) {
+        final CompletableFuture<Boolean> opened = new CompletableFuture<Boolean>();
+        if (contents == null)
+            contents = CompletableFuture.completedFuture(null);
+        contents.handleAsync(new BiFunction<byte[], Throwable, Void>() {
+            public Void apply(byte[] data, Throwable ex) {
+                // a failed read is read again by doOpen(), which reports the error
+                openFile(fOpen, ex == null ? data : null, false, opened);
+                return null;
             }
-        }
+        }, CardService.EDT);
+        return opened;
+    }
 
-        docm = doc.getDocMetadata();
-        tp.setText(doc.getText());
-        tp.setCaretPosition(docm.caretPosition);
-        updateTitle();
-        return true;
+    /*
+     * Asks for the PIN (after a failure always, whatever the key agent
+     * says), has the card find the key off the event thread and opens the
+     * file with it.
+     */
+    private void openFile(final File fOpen, final byte[] data, final boolean retry, final CompletableFuture<Boolean> opened) {
+        PasswordDialog.askPassword(!retry).thenAccept(new Consumer<String>() {
+            public void accept(final String pwd) {
+                if (pwd == null) {
+                    opened.complete(false);
+                    return;
+                }
+                Doc.fetchKey(fOpen, data).whenCompleteAsync(new BiConsumer<byte[], Throwable>() {
+                    public void accept(byte[] key, Throwable ex) {
+                        if (ex != null) {
+                            Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                            Logger.getLogger(MainForm.class.getName()).log(Level.SEVERE, null, cause);
+                            JOptionPane.showMessageDialog(MainForm.this, cause.getMessage());
+                            opened.complete(false);
+                            return;
+                        }
+                        try {
+                            Doc doc = new Doc();
+                            if (!doc.doOpen(fOpen, data, key, pwd)) {
+                                opened.complete(false);
+                                return;
+                            }
+                            docm = doc.getDocMetadata();
+                            tp.setText(doc.getText());
+                            undo.discardAllEdits();
+                            tp.setCaretPosition(docm.caretPosition);
+                            updateTitle();
+                            opened.complete(true);
+                        } catch (DocPasswordException ex2) {
+                            openFile(fOpen, data, true, opened);
+                        } catch (DocException ex2) {
+                            Logger.getLogger(MainForm.class.getName()).log(Level.SEVERE, null, ex2);
+                            JOptionPane.showMessageDialog(MainForm.this, ex2.getMessage());
+                            opened.complete(false);
+                        } catch (FileNotFoundException ex2) {
+                            Logger.getLogger(MainForm.class.getName()).log(Level.SEVERE, ex2.getMessage(), ex2);
+                            JOptionPane.showMessageDialog(MainForm.this, ex2.getMessage());
+                            opened.complete(false);
+                        } catch (IOException ex2) {
+                            Logger.getLogger(MainForm.class.getName()).log(Level.SEVERE, ex2.getMessage(), ex2);
+                            JOptionPane.showMessageDialog(MainForm.this, "IOException: "+ex2.getMessage());
+                            opened.complete(false);
+                        }
+                    }
+                }, CardService.EDT);
+            }
+        });
     }
 
 
@@ -570,9 +874,123 @@ public class MainForm extends javax.swing.JFrame {
      */
     private void doSearch() {
         String findText = tfFind.getText();
+        incrementalText = findText;
         if (findText.length() != 0) {
-            if (searcher.search(findText) == -1)
+            try {
+                if (searcher.search(findText) != -1)
+                    return;
+            } catch (PatternSyntaxException ex) {
+                JOptionPane.showMessageDialog(this, "Invalid regular expression: "+ex.getDescription());
+                return;
+            }
+            if (searcher.wasCancelled())
+                JOptionPane.showMessageDialog(this, "Search took too long and was stopped: "+findText);
+            else
                 JOptionPane.showMessageDialog(this, "Not found: "+findText);
         }
     }
+
+
+    /**
+     * Asks for the search and replacement text and replaces all matches
+     * (in the current search mode) as a single undoable edit.
+     */
+    private void doReplace() {
+        JTextField tfWhat = new JTextField(tfFind.getText().equals("Find...") ? "" : tfFind.getText(), 20);
+        JTextField tfWith = new JTextField(20);
+        JPanel p = new JPanel(new java.awt.GridLayout(4, 1));
+        p.add(new JLabel("Find:"));
+        p.add(tfWhat);
+        p.add(new JLabel("Replace with:"));
+        p.add(tfWith);
+        if (JOptionPane.showConfirmDialog(this, p, "Replace all", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION)
+            return;
+        String what = tfWhat.getText();
+        if (what.length() == 0)
+            return;
+
+        findTimer.stop();
+        incrementalText = "";
+        int count;
+        compoundEdit = new CompoundEdit();
+        try {
+            count = searcher.replaceAll(what, tfWith.getText());
+        } catch (PatternSyntaxException ex) {
+            JOptionPane.showMessageDialog(this, "Invalid regular expression: "+ex.getDescription());
+            return;
+        } catch (IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, "Invalid replacement: "+ex.getMessage());
+            return;
+        } catch (BadLocationException ex) {
+            Logger.getLogger(MainForm.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+            return;
+        } finally {
+            compoundEdit.end();
+            if (compoundEdit.isSignificant())
+                undo.addEdit(compoundEdit);
+            compoundEdit = null;
+        }
+
+        if (count < 0)
+            JOptionPane.showMessageDialog(this, "Search took too long and was stopped: "+what);
+        else if (count == 0)
+            JOptionPane.showMessageDialog(this, "Not found: "+what);
+        else {
+            setModified();
+            JOptionPane.showMessageDialog(this, "Replaced "+count+" occurrence(s)");
+        }
+    }
+
+
+    /**
+     * Highlights all the given terms at once and reports how often each
+     * one was found, in its highlight colour.
+     */
+    private void doTermSearch(List<String> terms) {
+        findTimer.stop();
+        incrementalText = "";
+        terms = searcher.distinctTerms(terms);
+        int[] counts = searcher.searchTerms(terms);
+        if (counts == null) {
+            JOptionPane.showMessageDialog(this, "Search took too long and was stopped");
+            return;
+        }
+        StringBuilder sb = new StringBuilder("<html>");
+        for (int i = 0; i < counts.length; i++) {
+            Color c = WordSearcher.getTermColor(i);
+            sb.append(String.format("<font color=\"#%02x%02x%02x\">&#9632;</font> ", c.getRed(), c.getGreen(), c.getBlue()));
+            sb.append(terms.get(i).replace("&", "&amp;").replace("<", "&lt;"));
+            sb.append(": ").append(counts[i]).append("<br>");
+        }
+        sb.append("</html>");
+        JOptionPane.showMessageDialog(this, sb.toString(), "Terms found", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+
+    /**
+     * Search-as-you-type: highlights matches of the find box text, working
+     * in short time slices so typing stays responsive on large documents.
+     */
+    private void doIncrementalSearch() {
+        incrementalText = tfFind.getText();
+        searcher.startIncremental(incrementalText);
+        if (!incrementalRunning)
+            continueIncrementalSearch();
+    }
+
+
+    private void continueIncrementalSearch() {
+        if (searcher.continueIncremental(FIND_SLICE_NANOS) || searcher.isWaiting()) {
+            // a parallel search calls back when it's done
+            incrementalRunning = false;
+            return;
+        }
+        incrementalRunning = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                continueIncrementalSearch();
+            }
+        });
+    }
 }
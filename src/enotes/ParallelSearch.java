@@ -0,0 +1,212 @@
+/*
+ * (c) 2009.-2011. Ivan Voras <ivoras@fer.hr>
+ * Released under the 2-clause BSDL.
+ */
+
+package enotes;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Chunked parallel matching for very large texts. The text is split into
+ * chunks which are searched on a ForkJoinPool; each chunk is scanned a
+ * little past its end (by the given overlap, normally the pattern length
+ * minus one) so matches crossing a chunk border are found exactly once,
+ * by the chunk they start in. Lookarounds can see past the chunk borders,
+ * so whole-word patterns work too.
+ *
+ * Only patterns with a known maximum match length can be split this way,
+ * i.e. quoted literals; arbitrary regular expressions are not.
+ *
+ * @author ivoras
+ */
+public class ParallelSearch {
+
+    /** Texts shorter than this (in chars) are not worth splitting */
+    public static final int DEFAULT_THRESHOLD = 4 * 1024 * 1024;
+
+    /** Size of the smallest piece of work, in chars */
+    public static final int CHUNK_SIZE = 512 * 1024;
+
+    private static ForkJoinPool sharedPool;
+
+
+    /**
+     * Returns the pool used by the editor, sized to the number of CPUs.
+     *
+     * @return
+     */
+    public static synchronized ForkJoinPool getPool() {
+        if (sharedPool == null)
+            sharedPool = new ForkJoinPool();
+        return sharedPool;
+    }
+
+
+    /**
+     * Finds all matches of the pattern and returns them as (start, end)
+     * pairs in text order.
+     *
+     * @param text        The text; a DocumentCharSequence is forked per chunk,
+     *                    any other sequence must be safe for concurrent reads
+     * @param pattern
+     * @param overlap     How far past its end each chunk is scanned
+     * @param overlapping If true, a match may start inside the previous one
+     * @param pool
+     * @return
+     */
+    public static int[] findAll(CharSequence text, Pattern pattern, int overlap, boolean overlapping, ForkJoinPool pool) {
+        return findAll(text, pattern, overlap, overlapping, pool, null);
+    }
+
+
+    /**
+     * Like findAll(), but returns at once; the result is completed on the
+     * pool. Cancelling the result skips the chunks not yet searched.
+     *
+     * @param text        The text, safe for concurrent reads (not a
+     *                    DocumentCharSequence, the document may only be read
+     *                    on the event thread)
+     * @param pattern
+     * @param overlap
+     * @param overlapping
+     * @param pool
+     * @return
+     */
+    public static CompletableFuture<int[]> findAllAsync(final CharSequence text, final Pattern pattern,
+            final int overlap, final boolean overlapping, final ForkJoinPool pool) {
+        final CompletableFuture<int[]> result = new CompletableFuture<int[]>();
+        pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    result.complete(findAll(text, pattern, overlap, overlapping, pool, result));
+                } catch (RuntimeException ex) {
+                    result.completeExceptionally(ex);
+                }
+            }
+        });
+        return result;
+    }
+
+
+    // Chunks are skipped once owner (if not null) is cancelled.
+    private static int[] findAll(CharSequence text, Pattern pattern, int overlap, boolean overlapping, ForkJoinPool pool, Future<?> owner) {
+        int length = text.length();
+        int nChunks = Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        int[][] results = new int[nChunks][];
+        pool.invoke(new ChunkTask(text, pattern, overlap, overlapping, results, 0, nChunks, owner));
+        return merge(results);
+    }
+
+
+    /**
+     * Sequential version of findAll(), used as the baseline.
+     *
+     * @param text
+     * @param pattern
+     * @param overlapping
+     * @return
+     */
+    public static int[] findAll(CharSequence text, Pattern pattern, boolean overlapping) {
+        return scan(text, pattern, 0, overlapping, 0, text.length());
+    }
+
+
+    // Chunk results are already sorted and disjoint, so merging is concatenation.
+    private static int[] merge(int[][] results) {
+        int total = 0;
+        for (int i = 0; i < results.length; i++)
+            total += results[i].length;
+        int[] merged = new int[total];
+        int pos = 0;
+        for (int i = 0; i < results.length; i++) {
+            System.arraycopy(results[i], 0, merged, pos, results[i].length);
+            pos += results[i].length;
+        }
+        return merged;
+    }
+
+
+    // Matches starting in [from, to), allowed to end up to overlap chars later.
+    static int[] scan(CharSequence text, Pattern pattern, int overlap, boolean overlapping, int from, int to) {
+        CharSequence t = text instanceof DocumentCharSequence ? ((DocumentCharSequence) text).fork() : text;
+        int regionEnd = Math.min(to + overlap, t.length());
+        Matcher m = pattern.matcher(t);
+        m.useTransparentBounds(true);
+        m.useAnchoringBounds(false);
+
+        int[] result = new int[16];
+        int count = 0;
+        int pos = from;
+        while (pos < to) {
+            m.region(pos, regionEnd);
+            if (!m.find() || m.start() >= to)
+                break;
+            int start = m.start();
+            int end = m.end();
+            if (end > start) {
+                if (count + 2 > result.length) {
+                    int[] tmp = new int[result.length * 2];
+                    System.arraycopy(result, 0, tmp, 0, count);
+                    result = tmp;
+                }
+                result[count++] = start;
+                result[count++] = end;
+            }
+            pos = (overlapping || end == start) ? start + 1 : end;
+        }
+
+        int[] r = new int[count];
+        System.arraycopy(result, 0, r, 0, count);
+        return r;
+    }
+
+
+    // Searches chunks [first, last), each leaf storing into its own slot.
+    private static class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence text;
+        private final Pattern pattern;
+        private final int overlap;
+        private final boolean overlapping;
+        private final int[][] results;
+        private final int first;
+        private final int last;
+        private final Future<?> owner;
+
+        ChunkTask(CharSequence text, Pattern pattern, int overlap, boolean overlapping, int[][] results, int first, int last, Future<?> owner) {
+            this.text = text;
+            this.pattern = pattern;
+            this.overlap = overlap;
+            this.overlapping = overlapping;
+            this.results = results;
+            this.first = first;
+            this.last = last;
+            this.owner = owner;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first == 1) {
+                if (owner != null && owner.isCancelled()) {
+                    results[first] = new int[0];
+                    return;
+                }
+                int from = first * CHUNK_SIZE;
+                int to = Math.min(from + CHUNK_SIZE, text.length());
+                results[first] = scan(text, pattern, overlap, overlapping, from, to);
+                return;
+            }
+            int mid = first + (last - first) / 2;
+            invokeAll(new ChunkTask(text, pattern, overlap, overlapping, results, first, mid, owner),
+                    new ChunkTask(text, pattern, overlap, overlapping, results, mid, last, owner));
+        }
+    }
+}
@@ -12,9 +12,13 @@
 
 package enotes;
 
-import enotes.smartcard.CardCommunication;
 import enotes.smartcard.CardMngr;
+import enotes.smartcard.CardService;
 import java.awt.event.KeyEvent;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JOptionPane;
@@ -33,7 +37,16 @@ public class PasswordDialog extends javax.swing.JDialog {
         EnterPIN_jPasswordField.setText("");
         ConfirmPIN_jPasswordField.setText("");
         
-        jLabel1.setText(jLabel1.getText() + " " + CardCommunication.getTriesRemaining());
+        showTriesRemaining(jLabel1.getText() + " ");
+    }
+
+    // The card answers on its I/O thread; the label is updated on the EDT
+    private void showTriesRemaining(final String prefix) {
+        CardService.getInstance().getTriesRemaining().whenCompleteAsync(new BiConsumer<Integer, Throwable>() {
+            public void accept(Integer tries, Throwable ex) {
+                jLabel1.setText(prefix + (ex != null ? -1 : tries));
+            }
+        }, CardService.EDT);
     }
 
     /** This method is called from within the constructor to
@@ -144,13 +157,20 @@ public class PasswordDialog extends javax.swing.JDialog {
 	for (int m = 0; m < pin.length; m++) {
 	  pin[m] = (byte) (PIN_in_Array[m] - 48);
 	 }
-        if(!CardCommunication.verifyPIN(pin)){
-            jLabel1.setText("Number of tries remaining: " + CardCommunication.getTriesRemaining());
-            return;
-        }
-
-        pwd = pin1;
-        this.setVisible(false);
+        final String pwd1 = pin1;
+        SendToCard_jButton.setEnabled(false);
+        CardService.getInstance().verifyPIN(pin).whenCompleteAsync(new BiConsumer<Boolean, Throwable>() {
+            public void accept(Boolean ok, Throwable ex) {
+                SendToCard_jButton.setEnabled(true);
+                if (ex != null || !ok) {
+                    showTriesRemaining("Number of tries remaining: ");
+                    return;
+                }
+                pwd = pwd1;
+                setVisible(false);
+            }
+        }, CardService.EDT);
+        Arrays.fill(pin, (byte) 0);
     }//GEN-LAST:event_SendToCard_jButtonActionPerformed
 
     private void jButton2ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jButton2ActionPerformed
@@ -170,6 +190,24 @@ public class PasswordDialog extends javax.swing.JDialog {
     // End of variables declaration//GEN-END:variables
 
 
+    /**
+     * Asks for the PIN, unless skipUnlocked and the key agent was already
+     * unlocked by another editor (the key comes from the card, not the
+     * PIN). The event thread doesn't wait for the agent; the result,
+     * null if cancelled, comes on the event thread.
+     */
+    public static CompletableFuture<String> askPassword(boolean skipUnlocked) {
+        CompletableFuture<Boolean> unlocked = skipUnlocked ? CardService.getInstance().isAgentUnlocked()
+                : CompletableFuture.completedFuture(false);
+        return unlocked.handleAsync(new BiFunction<Boolean, Throwable, String>() {
+            public String apply(Boolean isUnlocked, Throwable ex) {
+                if (ex == null && isUnlocked)
+                    return "";
+                return getPassword();
+            }
+        }, CardService.EDT);
+    }
+
     public static String getPassword() {
         PasswordDialog pd = new PasswordDialog();
         pd.setResizable(false);
@@ -0,0 +1,126 @@
+package enotes;
+
+import enotes.smartcard.KeyAgent;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import javax.swing.SwingUtilities;
+
+/**
+ * One editor process per user: a launch while an editor is running hands
+ * its file to that editor over a Unix domain socket and exits, and the
+ * file opens in a new window there, with the card session and cached key
+ * already in place.
+ *
+ * The socket is enotes.instance.socket, by default ~/.enotes/editor.sock
+ * (next to the key agent's); -Denotes.instance=false starts a separate
+ * editor as before.
+ *
+ * @author aoeiko
+ */
+class SingleInstance {
+
+    static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("enotes.instance", "true"));
+    }
+
+    static Path getSocketPath() {
+        String path = System.getProperty("enotes.instance.socket");
+        if (path != null)
+            return Paths.get(path);
+        return KeyAgent.getSocketPath().resolveSibling("editor.sock");
+    }
+
+    /**
+     * Asks the running editor to open file (a new empty window if null).
+     * Returns false if there is no running editor.
+     */
+    static boolean handOff(File file) {
+        Path socket = getSocketPath();
+        if (!Files.exists(socket))
+            return false;
+        try {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.connect(UnixDomainSocketAddress.of(socket));
+                DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+                out.writeUTF(file == null ? "" : file.getAbsolutePath());
+                out.flush();
+                // the editor answers once the window is queued
+                return new DataInputStream(Channels.newInputStream(channel)).readBoolean();
+            } finally {
+                channel.close();
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Makes this process the running editor: files handed off by later
+     * launches are opened by Main.openWindow() on the event thread. Does
+     * nothing if another editor got there first.
+     */
+    static void listen() {
+        final ServerSocketChannel server;
+        try {
+            server = KeyAgent.bindPrivate(getSocketPath());
+        } catch (IOException ex) {
+            System.out.println("Exception: " + ex.getMessage());
+            return;
+        }
+        if (server == null)
+            return;
+        Runtime.getRuntime().addShutdownHook(new Thread("enotes instance shutdown") {
+            @Override
+            public void run() {
+                try {
+                    server.close();
+                    Files.deleteIfExists(getSocketPath());
+                } catch (IOException ex) {
+                }
+            }
+        });
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (server.isOpen())
+                    accept(server);
+            }
+        }, "enotes instance");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel client = server.accept();
+            try {
+                String path = new DataInputStream(Channels.newInputStream(client)).readUTF();
+                final File file = path.isEmpty() ? null : new File(path);
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        Main.openWindow(file);
+                    }
+                });
+                DataOutputStream out = new DataOutputStream(Channels.newOutputStream(client));
+                out.writeBoolean(true);
+                out.flush();
+            } finally {
+                client.close();
+            }
+        } catch (IOException ex) {
+            if (server.isOpen())
+                System.out.println("Exception: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package enotes;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Startup milestones, in milliseconds since the JVM started: "main"
+ * (main() entered), "first frame" (the editor window is shown), "card
+ * ready" (card found and applet selected, or key agent reached) and
+ * "document visible" (the file from the command line is displayed). Each
+ * milestone counts the first time it is reached.
+ *
+ * With -Denotes.startup.trace=true each milestone is printed as it
+ * happens; with -Denotes.startup.exit=<milestone> the process prints the
+ * report and exits once it reaches that milestone (StartupBenchmark). The JVM start comes from its RuntimeMXBean, looked up only
+ * when a time is asked for since loading it costs tens of milliseconds,
+ * or from enotes.startup.t0 (milliseconds since the epoch) where a
+ * launcher knows better.
+ *
+ * @author aoeiko
+ */
+public class StartupTimer {
+
+    private static final boolean trace = Boolean.getBoolean("enotes.startup.trace");
+    private static final String exitAt = System.getProperty("enotes.startup.exit");
+    // milestone -> System.currentTimeMillis()
+    private static final Map<String, Long> milestones = new LinkedHashMap<String, Long>();
+    private static volatile long t0 = -1;
+    private static Executor printer = null;
+
+    /** Records milestone, unless it was reached before */
+    public static void mark(final String milestone) {
+        synchronized (StartupTimer.class) {
+            if (milestones.containsKey(milestone))
+                return;
+            final long t = System.currentTimeMillis();
+            milestones.put(milestone, t);
+            if (trace)
+                printer().execute(new Runnable() {
+                    public void run() {
+                        System.out.println("startup: " + milestone + " at " + (t - processStart()) + " ms");
+                    }
+                });
+        }
+        if (milestone.equals(exitAt)) {
+            System.out.println(report());
+            System.exit(0);
+        }
+    }
+
+    /** Milliseconds from JVM start to milestone, -1 if not reached */
+    public static long get(String milestone) {
+        Long t;
+        synchronized (StartupTimer.class) {
+            t = milestones.get(milestone);
+        }
+        return t == null ? -1 : t - processStart();
+    }
+
+    public static String report() {
+        Map<String, Long> m;
+        synchronized (StartupTimer.class) {
+            m = new LinkedHashMap<String, Long>(milestones);
+        }
+        StringBuilder sb = new StringBuilder("startup:");
+        for (Map.Entry<String, Long> e : m.entrySet())
+            sb.append(' ').append(e.getKey()).append(' ').append(e.getValue() - processStart()).append(" ms,");
+        sb.setLength(sb.length() - 1);
+        return sb.toString();
+    }
+
+    private static long processStart() {
+        if (t0 < 0) {
+            Long t = Long.getLong("enotes.startup.t0");
+            t0 = t != null ? t : ManagementFactory.getRuntimeMXBean().getStartTime();
+        }
+        return t0;
+    }
+
+    // Prints off the startup path
+    private static Executor printer() {
+        if (printer == null)
+            printer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "enotes startup trace");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        return printer;
+    }
+}
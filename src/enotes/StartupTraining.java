@@ -0,0 +1,100 @@
+package enotes;
+
+import enotes.doc.Doc;
+import enotes.doc.DocMetadata;
+import enotes.smartcard.CardCommunication;
+import enotes.smartcard.CardService;
+import enotes.smartcard.KeyAgentClient;
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import javax.smartcardio.TerminalFactory;
+import javax.swing.SwingUtilities;
+import javax.swing.UIManager;
+
+/**
+ * Training run for a class data sharing (AppCDS) archive: goes through
+ * what a normal start loads (window, PIN dialog, the card protocol on the
+ * simulator, saving and opening a document) and exits. Run as
+ *
+ *   java -XX:ArchiveClassesAtExit=enotes.jsa -cp ... enotes.Main --train
+ *
+ * ("ant cds" does that) and start the editor with
+ * -XX:SharedArchiveFile=enotes.jsa; the classes then come mapped from the
+ * archive instead of being loaded and verified on every start.
+ *
+ * @author aoeiko
+ */
+class StartupTraining {
+
+    static final byte PIN[] = {0, 0, 0, 0};
+
+    static void run() throws Exception {
+        if (!ManagementFactory.getRuntimeMXBean().getInputArguments().toString().contains("ArchiveClassesAtExit"))
+            System.out.println("Not run with -XX:ArchiveClassesAtExit, no archive will be written");
+
+        // what startup touches before the card answers
+        StartupTimer.mark("main");
+        SingleInstance.isEnabled();
+        SingleInstance.getSocketPath();
+        KeyAgentClient.connect(new File("/nonexistent").toPath());
+        try {
+            TerminalFactory.getDefault().terminals().list();
+        } catch (Exception ex) {
+            // no PC/SC here; the provider classes are loaded all the same
+        }
+
+        // the card protocol, on the simulator
+        CardCommunication.setSimulatorBackend(true);
+        check(Main.connectCard().join(), "connect");
+        CardService card = CardService.getInstance();
+        check(card.getTriesRemaining().join() > 0, "getTriesRemaining");
+        check(card.verifyPIN(PIN).join(), "verifyPIN");
+        check(card.getSecretKey().join() != null, "getSecretKey");
+
+        // saving and opening a document, from the file and from its bytes
+        File f = File.createTempFile("enotes-training", ".etxt");
+        try {
+            DocMetadata docm = new DocMetadata();
+            docm.filename = f.getAbsolutePath();
+            docm.setKey("");
+            check(new Doc("Training document\n", docm).doSave(f), "doSave");
+            check(new Doc().doOpen(f, ""), "doOpen");
+            check(new Doc().doOpen(f, Files.readAllBytes(f.toPath()), ""), "doOpen");
+        } finally {
+            f.delete();
+        }
+
+        // the window, unless there is no display
+        if (GraphicsEnvironment.isHeadless()) {
+            System.out.println("No display, windows not trained");
+        } else {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                public void run() {
+                    try {
+                        UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+                    } catch (Exception e) {}
+                    MainForm mf = new MainForm();
+                    mf.setSize(800, 550);
+                    mf.setVisible(true);
+                    PasswordDialog pd = new PasswordDialog();
+                    pd.pack();
+                    ChangePINDialog cd = new ChangePINDialog();
+                    cd.pack();
+                    pd.dispose();
+                    cd.dispose();
+                    mf.dispose();
+                }
+            });
+        }
+        System.out.println(StartupTimer.report());
+        System.out.println("Training done");
+        System.exit(0);
+    }
+
+    static void check(boolean ok, String what) {
+        if (!ok)
+            throw new IllegalStateException(what + " failed");
+    }
+}
@@ -9,69 +9,688 @@ import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Rectangle;
 import java.awt.Shape;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.text.*;
 
 /**
  *
  * @author ivoras
  */
-class WordSearcher {
+public class WordSearcher {
+
+    // Underline colours for multi-term search, reused cyclically
+    static final Color[] TERM_COLORS = {Color.red, Color.blue, new Color(0, 150, 0), Color.magenta,
+        Color.orange, new Color(0, 150, 150), new Color(150, 75, 0), Color.gray};
+
+    // Search mode flags, may be combined
+    public static final int MODE_CASE_SENSITIVE = 1;
+    public static final int MODE_WHOLE_WORD = 2;
+    public static final int MODE_REGEX = 4;
+
+    // How many finished queries are remembered for incremental search
+    static final int CACHE_SIZE = 32;
+    // How many compiled patterns are kept
+    static final int PATTERN_CACHE_SIZE = 16;
+    // Upper bound for a single match attempt, so a pathological regex can't hang the editor;
+    // in time sliced search, for how long one attempt may keep running out of slices
+    static final long SEARCH_TIMEOUT_NANOS = 2000000000L;
+    // Chars a time sliced find() starts matches in (see scanSliced())
+    static final int FIND_WINDOW = 64 * 1024;
+    // Chars searchTerms() scans with one timeout
+    static final int TERM_CHUNK = 1024 * 1024;
+    // Documents at least this long are searched in parallel when the mode allows it
+    static final int PARALLEL_THRESHOLD = ParallelSearch.DEFAULT_THRESHOLD;
 
     public WordSearcher(JTextComponent comp) {
         this.comp = comp;
         this.painter = new UnderlineHighlighter.UnderlineHighlightPainter(Color.red);
+        comp.getDocument().addDocumentListener(docListener);
+        comp.addPropertyChangeListener("document", new java.beans.PropertyChangeListener() {
+            public void propertyChange(java.beans.PropertyChangeEvent evt) {
+                if (evt.getOldValue() instanceof Document)
+                    ((Document) evt.getOldValue()).removeDocumentListener(docListener);
+                if (evt.getNewValue() instanceof Document)
+                    ((Document) evt.getNewValue()).addDocumentListener(docListener);
+                invalidate();
+            }
+        });
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    // Sets a combination of the MODE_* flags for following searches.
+    public void setMode(int mode) {
+        if (this.mode != mode) {
+            this.mode = mode;
+            cancelBackground();
+            incWord = null;
+            incDone = true;
+        }
+    }
+
+    // True if the last search was stopped by cancel() or by the timeout.
+    public boolean wasCancelled() {
+        return cancelled;
+    }
+
+    // Stops the running search; may be called from any thread.
+    public void cancel() {
+        DocumentCharSequence t = text;
+        if (t != null)
+            t.cancel();
+        CompletableFuture<int[]> f = incBackground;
+        if (f != null)
+            f.cancel(false);
+    }
+
+    // True while continueIncremental() waits for a parallel search; it
+    // needn't be called again until the background listener is.
+    public boolean isWaiting() {
+        return incBackground != null;
+    }
+
+    // Sets what is run (on the event thread) when a parallel search that
+    // continueIncremental() waits for is done.
+    public void setBackgroundListener(Runnable listener) {
+        backgroundListener = listener;
     }
 
     // Search for a word and return the offset of the
     // first occurrence. Highlights are added for all
-    // occurrences found.
+    // occurrences found. Throws PatternSyntaxException for
+    // an invalid regular expression.
     public int search(String word) {
-        int firstOffset = -1;
-        Highlighter highlighter = comp.getHighlighter();
+        startIncremental(word);
+        if (patternError != null)
+            throw patternError;
+        while (!continueIncremental(Long.MAX_VALUE))
+            ;
+        return firstOffset;
+    }
 
-        // Remove any existing highlights for last word
-        Highlighter.Highlight[] highlights = highlighter.getHighlights();
-        for (int i = 0; i < highlights.length; i++) {
-            Highlighter.Highlight h = highlights[i];
-            if (h.getPainter() instanceof UnderlineHighlighter.UnderlineHighlightPainter) {
-                highlighter.removeHighlight(h);
+    // Starts a search-as-you-type query. Nothing is scanned here, the work
+    // is done by continueIncremental() so the caller can spread it over
+    // several event loop iterations.
+    //
+    // In plain (literal, not whole-word) mode, if the new query extends
+    // the previous one, only the positions where the previous query matched
+    // are checked again (plus the part of the document the previous query
+    // didn't get to). If an earlier prefix of the query has been searched
+    // before, its cached positions are used. In all modes a query that was
+    // already searched for is served from the cache.
+    public void startIncremental(String word) {
+        cancelBackground();
+        removeHighlights();
+        firstOffset = -1;
+        highlightEnd = 0;
+        cancelled = false;
+        patternError = null;
+
+        if (word == null || word.equals("")) {
+            incWord = null;
+            incDone = true;
+            return;
+        }
+        try {
+            incPattern = getPattern(word, mode);
+        } catch (PatternSyntaxException e) {
+            patternError = e;
+            incWord = null;
+            incDone = true;
+            return;
+        }
+        if (text == null)
+            text = new DocumentCharSequence(comp.getDocument());
+        text.resetGuard();
+        if (matcher == null) {
+            matcher = incPattern.matcher(text);
+            matcher.useTransparentBounds(true);
+            matcher.useAnchoringBounds(false);
+        } else
+            matcher.usePattern(incPattern);
+
+        boolean narrowable = (mode & (MODE_WHOLE_WORD | MODE_REGEX)) == 0;
+        String key = cacheKey(word, mode);
+
+        int[] cached = cache.get(key);
+        if (cached != null) {
+            setIncremental(word, cached, cached.length, text.length());
+            incCandidatesFinal = true;
+            return;
+        }
+
+        int[] candidates = null;
+        int candidateCount = 0;
+        int scanFrom = 0;
+        if (narrowable && incWord != null && incMode == mode && startsWith(word, incWord)) {
+            // Narrow down what the previous (shorter) query found
+            candidates = new int[incCount];
+            System.arraycopy(incMatches, 0, candidates, 0, incCount);
+            candidateCount = incCount;
+            scanFrom = incDone ? text.length() : incScanFrom;
+            // Candidates not yet re-checked by an unfinished previous narrowing
+            if (!incDone && incCandidates != null) {
+                int rest = incCandidateCount - incCandidateIndex;
+                int[] tmp = new int[candidateCount + rest];
+                System.arraycopy(candidates, 0, tmp, 0, candidateCount);
+                System.arraycopy(incCandidates, incCandidateIndex, tmp, candidateCount, rest);
+                candidates = tmp;
+                candidateCount += rest;
+            }
+        } else if (narrowable) {
+            for (int len = word.length() - 1; len > 0; len--) {
+                int[] prefix = cache.get(cacheKey(word.substring(0, len), mode));
+                if (prefix != null) {
+                    candidates = prefix;
+                    candidateCount = prefix.length;
+                    scanFrom = text.length();
+                    break;
+                }
             }
         }
+        setIncremental(word, candidates, candidateCount, scanFrom);
+    }
 
-        if (word == null || word.equals("")) {
-            return -1;
+    // Continues the query started with startIncremental() for at most
+    // budgetNanos nanoseconds (see scanSliced()). Returns true when the
+    // whole document has been searched, or when the search was cancelled
+    // or timed out.
+    public boolean continueIncremental(long budgetNanos) {
+        if (incDone)
+            return true;
+        long deadline = budgetNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + budgetNanos;
+        int n = 0;
+
+        try {
+            text.setDeadline(System.nanoTime() + SEARCH_TIMEOUT_NANOS);
+            // Candidates are (start, end) pairs of matches of a prefix, or
+            // of the query itself when it comes from the cache
+            while (incCandidateIndex < incCandidateCount) {
+                int pos = incCandidates[incCandidateIndex];
+                incCandidateIndex += 2;
+                if (incCandidatesFinal)
+                    addMatch(pos, incCandidates[incCandidateIndex - 1]);
+                else if (regionMatches(pos, incWord))
+                    addMatch(pos, pos + incWord.length());
+                if ((++n & 0xff) == 0 && System.nanoTime() > deadline)
+                    return false;
+            }
+
+            // Plain mode records overlapping matches so they can be narrowed
+            boolean overlapping = (mode & (MODE_WHOLE_WORD | MODE_REGEX)) == 0;
+            int lastIndex = incScanFrom;
+            int length = text.length();
+
+            // A full scan of a big document with a fixed-length pattern is
+            // split over all CPUs. The workers search a copy of the text,
+            // since the document may only be read on this thread; a time
+            // sliced search returns meanwhile (see isWaiting()) and the
+            // background listener is called when they are done.
+            if (lastIndex == 0 && length >= PARALLEL_THRESHOLD && (mode & MODE_REGEX) == 0
+                    && Runtime.getRuntime().availableProcessors() > 1) {
+                if (incBackground == null) {
+                    final CompletableFuture<int[]> f = ParallelSearch.findAllAsync(text.toString(), incPattern,
+                            incWord.length() - 1, overlapping, ParallelSearch.getPool());
+                    incBackground = f;
+                    if (budgetNanos != Long.MAX_VALUE) {
+                        f.whenComplete(new BiConsumer<int[], Throwable>() {
+                            public void accept(int[] found, Throwable ex) {
+                                SwingUtilities.invokeLater(new Runnable() {
+                                    public void run() {
+                                        if (f == incBackground && backgroundListener != null)
+                                            backgroundListener.run();
+                                    }
+                                });
+                            }
+                        });
+                        return false;
+                    }
+                } else if (budgetNanos != Long.MAX_VALUE && !incBackground.isDone())
+                    return false;
+                int[] found;
+                try {
+                    found = incBackground.join();
+                } finally {
+                    incBackground = null;
+                }
+                // Highlighted like cached matches, a slice at a time
+                incCandidates = found;
+                incCandidateCount = found.length;
+                incCandidateIndex = 0;
+                incCandidatesFinal = true;
+                incScanFrom = length;
+                return continueIncremental(budgetNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime());
+            }
+            if (budgetNanos != Long.MAX_VALUE) {
+                if (!scanSliced(lastIndex, length, deadline, overlapping))
+                    return false;
+                lastIndex = length + 1;
+            }
+            while (lastIndex <= length) {
+                text.setDeadline(System.nanoTime() + SEARCH_TIMEOUT_NANOS);
+                if (!matcher.find(lastIndex))
+                    break;
+                int start = matcher.start();
+                int end = matcher.end();
+                if (end > start)
+                    addMatch(start, end);
+                lastIndex = (overlapping || end == start) ? start + 1 : end;
+            }
+        } catch (CancellationException e) {
+            // Timed out or cancelled: keep what was found, don't cache it
+            cancelled = true;
+            incWord = null;
+            incDone = true;
+            return true;
+        }
+        incScanFrom = text.length();
+
+        if (!incInexact) {
+            int[] result = new int[incCount];
+            System.arraycopy(incMatches, 0, result, 0, incCount);
+            cache.put(cacheKey(incWord, mode), result);
         }
+        incDone = true;
+        return true;
+    }
 
-        // Look for the word we are given - insensitive search
-        String content = null;
+    // The time sliced part of continueIncremental(): scans from lastIndex
+    // in windows of incWindow chars, each find() reading at most that much
+    // further, so one attempt is short and the guard can stop it at the
+    // slice deadline; it is then retried in the next slice, until it has
+    // been stuck for SEARCH_TIMEOUT_NANOS. Literal matches are never
+    // longer than the query, so the windows only need to overlap by that.
+    // A regular expression may match more than a window, so a window whose
+    // last find() ran into its end is searched again twice as wide; when
+    // nothing at all is found that can't be told apart from a match longer
+    // than the window, so such a result is not cached and search() looks
+    // again. Returns false when the slice is over.
+    private boolean scanSliced(int lastIndex, int length, long deadline, boolean overlapping) {
+        boolean regex = (mode & MODE_REGEX) != 0;
+        while (lastIndex < length) {
+            int limit = (int) Math.min((long) lastIndex + incWindow, length);
+            int regionEnd = (int) Math.min((long) limit + (regex ? incWindow : incWord.length() - 1), length);
+            matcher.region(lastIndex, regionEnd);
+            long attempt = System.nanoTime();
+            text.setDeadline(deadline);
+            boolean any;
+            try {
+                any = matcher.find();
+            } catch (CancellationException e) {
+                if (text.isCancelled())
+                    throw e;
+                incStalled += System.nanoTime() - attempt;
+                if (incStalled > SEARCH_TIMEOUT_NANOS)
+                    throw new CancellationException("Search timed out");
+                incScanFrom = lastIndex;
+                return false;
+            }
+            incStalled = 0;
+            boolean found = any && matcher.start() < limit;
+            if (regex && regionEnd < length && matcher.hitEnd()) {
+                if (any) {
+                    incWindow = (int) Math.min(incWindow * 2L, Integer.MAX_VALUE / 2);
+                    continue;
+                }
+                incInexact = true;
+            }
+            if (found) {
+                int start = matcher.start();
+                int end = matcher.end();
+                if (end > start)
+                    addMatch(start, end);
+                lastIndex = (overlapping || end == start) ? start + 1 : end;
+            } else
+                lastIndex = limit;
+            if (System.nanoTime() > deadline) {
+                incScanFrom = lastIndex;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Replaces every match of word (in the current mode) with replacement.
+    // The new text is built in one pass and applied as a single document
+    // change covering the first to the last match. In regex mode the
+    // replacement may refer to groups ($1); otherwise it is taken literally.
+    // Returns the number of replacements, or -1 if the search was cancelled
+    // or timed out (the document is then left unchanged). Throws
+    // PatternSyntaxException for an invalid regular expression and
+    // IllegalArgumentException for an invalid replacement.
+    public int replaceAll(String word, String replacement) throws BadLocationException {
+        startIncremental(null);
+        if (word == null || word.equals(""))
+            return 0;
+        Pattern p = getPattern(word, mode);
+        if ((mode & MODE_REGEX) == 0)
+            replacement = Matcher.quoteReplacement(replacement);
+        else
+            checkReplacement(p, replacement);
+
+        Document doc = comp.getDocument();
+        if (text == null)
+            text = new DocumentCharSequence(doc);
+        text.resetGuard();
+        Matcher m = p.matcher(text);
+        StringBuffer sb = new StringBuffer();
+        int count = 0;
+        int first = -1;
+        int last = 0;
         try {
-            Document d = comp.getDocument();
-            content = d.getText(0, d.getLength()).toLowerCase();
-        } catch (BadLocationException e) {
-            // Cannot happen
+            while (true) {
+                text.setDeadline(System.nanoTime() + SEARCH_TIMEOUT_NANOS);
+                if (!m.find())
+                    break;
+                if (first == -1)
+                    first = m.start();
+                m.appendReplacement(sb, replacement);
+                last = m.end();
+                count++;
+            }
+        } catch (CancellationException e) {
+            cancelled = true;
             return -1;
         }
+        if (count == 0)
+            return 0;
 
-        word = word.toLowerCase();
-        int lastIndex = 0;
-        int wordSize = word.length();
+        // appendReplacement() also copied the text before the first match
+        String middle = sb.substring(first);
+        if (doc instanceof AbstractDocument)
+            ((AbstractDocument) doc).replace(first, last - first, middle, null);
+        else {
+            doc.remove(first, last - first);
+            doc.insertString(first, middle, null);
+        }
+        return count;
+    }
 
-        while ((lastIndex = content.indexOf(word, lastIndex)) != -1) {
-            int endIndex = lastIndex + wordSize;
-            try {
-                highlighter.addHighlight(lastIndex, endIndex, painter);
-            } catch (BadLocationException e) {
-                // Nothing to do
+    // Checks a regex mode replacement the way Matcher.appendReplacement()
+    // reads it, so a bad one is reported before anything is replaced
+    // instead of failing half way through. Throws IllegalArgumentException.
+    static void checkReplacement(Pattern p, String replacement) {
+        int groups = p.matcher("").groupCount();
+        int i = 0;
+        while (i < replacement.length()) {
+            char c = replacement.charAt(i++);
+            if (c == '\\') {
+                if (i == replacement.length())
+                    throw new IllegalArgumentException("trailing \\ with nothing to escape");
+                i++;
+            } else if (c == '$') {
+                if (i == replacement.length())
+                    throw new IllegalArgumentException("trailing $ without a group");
+                c = replacement.charAt(i++);
+                if (c == '{') {
+                    int close = replacement.indexOf('}', i);
+                    if (close < 0)
+                        throw new IllegalArgumentException("missing } after ${");
+                    String name = replacement.substring(i, close);
+                    if (name.length() == 0 || !p.pattern().contains("(?<" + name + ">"))
+                        throw new IllegalArgumentException("no group named " + name);
+                    i = close + 1;
+                } else if (c < '0' || c > '9') {
+                    throw new IllegalArgumentException("$ must be followed by a group number or {name}");
+                } else if (c - '0' > groups) {
+                    throw new IllegalArgumentException("no group " + (c - '0'));
+                }
+            }
+        }
+    }
+
+    // Highlights every occurrence of every term in one pass over the
+    // document, each term with its own colour (see getTermColor()).
+    // Honours MODE_CASE_SENSITIVE and MODE_WHOLE_WORD; MODE_REGEX doesn't
+    // apply. Returns the number of highlighted matches per term (a term
+    // that equals an earlier one in this mode gets that one's count and
+    // colour, see distinctTerms()), or null if the search was cancelled or
+    // timed out. The document is scanned in chunks of TERM_CHUNK chars,
+    // each with SEARCH_TIMEOUT_NANOS to finish in.
+    public int[] searchTerms(List<String> terms) {
+        startIncremental(null);
+        final int[] counts = new int[terms.size()];
+        if (terms.isEmpty())
+            return counts;
+
+        final Highlighter.HighlightPainter[] painters = new Highlighter.HighlightPainter[terms.size()];
+        for (int i = 0; i < painters.length; i++)
+            painters[i] = new UnderlineHighlighter.UnderlineHighlightPainter(getTermColor(i));
+        final int[] lastEnd = new int[terms.size()];
+        final boolean wholeWord = (mode & MODE_WHOLE_WORD) != 0;
+        final Highlighter highlighter = comp.getHighlighter();
+
+        AhoCorasick ac = new AhoCorasick(terms, (mode & MODE_CASE_SENSITIVE) == 0);
+        if (text == null)
+            text = new DocumentCharSequence(comp.getDocument());
+        text.resetGuard();
+        final CharSequence t = text;
+        // Matches ending at or before this were reported with the previous chunk
+        final int[] reported = new int[1];
+        AhoCorasick.MatchListener listener = new AhoCorasick.MatchListener() {
+            public void match(int start, int end, int term) {
+                if (end <= reported[0])
+                    return;
+                // Overlaps with other terms are fine, with itself not
+                if (start < lastEnd[term])
+                    return;
+                if (wholeWord && (isWordChar(t, start - 1) || isWordChar(t, end)))
+                    return;
+                try {
+                    highlighter.addHighlight(start, end, painters[term]);
+                } catch (BadLocationException e) {
+                    // Nothing to do
+                }
+                counts[term]++;
+                lastEnd[term] = end;
+                if (firstOffset == -1 || start < firstOffset)
+                    firstOffset = start;
             }
-            if (firstOffset == -1) {
-                firstOffset = lastIndex;
+        };
+        try {
+            int length = t.length();
+            for (int from = 0; from < length; from += TERM_CHUNK) {
+                text.setDeadline(System.nanoTime() + SEARCH_TIMEOUT_NANOS);
+                reported[0] = from;
+                // Start early enough to see terms crossing into this chunk
+                ac.search(t, Math.max(0, from - ac.getMaxTermLength() + 1),
+                        (int) Math.min((long) from + TERM_CHUNK, length), listener);
             }
-            lastIndex = endIndex;
+        } catch (CancellationException e) {
+            cancelled = true;
+            return null;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            int r = ac.getReportedTerm(i);
+            if (r >= 0)
+                counts[i] = counts[r];
         }
+        return counts;
+    }
+
+    // Returns terms without those equal to an earlier one in the current
+    // mode (ignoring case unless MODE_CASE_SENSITIVE) and without empty ones.
+    public List<String> distinctTerms(List<String> terms) {
+        boolean ignoreCase = (mode & MODE_CASE_SENSITIVE) == 0;
+        List<String> distinct = new ArrayList<String>();
+        Set<String> seen = new HashSet<String>();
+        for (String term : terms)
+            if (term.length() > 0 && seen.add(AhoCorasick.fold(term, ignoreCase)))
+                distinct.add(term);
+        return distinct;
+    }
+
+    // Colour used for the i-th term of searchTerms().
+    static Color getTermColor(int i) {
+        return TERM_COLORS[i % TERM_COLORS.length];
+    }
 
+    // Reads a term list: one term per line, blank lines and lines starting
+    // with '#' are skipped, exact duplicates are dropped (see also
+    // distinctTerms()).
+    static List<String> loadTerms(File f) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        List<String> terms = new ArrayList<String>();
+        Set<String> seen = new HashSet<String>();
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                if (seen.add(line))
+                    terms.add(line);
+            }
+        } finally {
+            br.close();
+        }
+        return terms;
+    }
+
+    private static boolean isWordChar(CharSequence t, int pos) {
+        if (pos < 0 || pos >= t.length())
+            return false;
+        char c = t.charAt(pos);
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    // Returns the offset of the first occurrence found so far, or -1.
+    public int getFirstOffset() {
         return firstOffset;
     }
 
+    private void setIncremental(String word, int[] candidates, int candidateCount, int scanFrom) {
+        incWord = word;
+        incMode = mode;
+        incCount = 0;
+        incCandidates = candidates;
+        incCandidateCount = candidateCount;
+        incCandidateIndex = 0;
+        incCandidatesFinal = false;
+        incScanFrom = scanFrom;
+        incWindow = FIND_WINDOW;
+        incStalled = 0;
+        incInexact = false;
+        incDone = false;
+    }
+
+    // Records an occurrence; overlapping occurrences are remembered for
+    // narrowing but only non-overlapping ones are highlighted.
+    private void addMatch(int start, int end) {
+        if (incCount + 2 > incMatches.length) {
+            int[] tmp = new int[incMatches.length * 2];
+            System.arraycopy(incMatches, 0, tmp, 0, incCount);
+            incMatches = tmp;
+        }
+        incMatches[incCount++] = start;
+        incMatches[incCount++] = end;
+
+        if (start < highlightEnd)
+            return;
+        try {
+            comp.getHighlighter().addHighlight(start, end, painter);
+        } catch (BadLocationException e) {
+            // Nothing to do
+        }
+        if (firstOffset == -1) {
+            firstOffset = start;
+        }
+        highlightEnd = end;
+    }
+
+    // Compares the query to the document text at pos, honouring the case mode.
+    private boolean regionMatches(int pos, String word) {
+        int len = word.length();
+        if (pos + len > text.length())
+            return false;
+        boolean ignoreCase = (mode & MODE_CASE_SENSITIVE) == 0;
+        for (int i = 0; i < len; i++) {
+            char c1 = text.charAt(pos + i);
+            char c2 = word.charAt(i);
+            if (c1 == c2)
+                continue;
+            if (!ignoreCase)
+                return false;
+            if (Character.toUpperCase(c1) != Character.toUpperCase(c2)
+                    && Character.toLowerCase(c1) != Character.toLowerCase(c2))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(String word, String prefix) {
+        if ((mode & MODE_CASE_SENSITIVE) != 0)
+            return word.startsWith(prefix);
+        return word.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    private static String cacheKey(String word, int mode) {
+        if ((mode & MODE_CASE_SENSITIVE) == 0)
+            word = word.toLowerCase();
+        return mode + ":" + word;
+    }
+
+    // Returns a compiled pattern for the query from the LRU cache.
+    private Pattern getPattern(String word, int mode) {
+        String key = mode + ":" + word;
+        Pattern p = patterns.get(key);
+        if (p != null)
+            return p;
+
+        String regex = (mode & MODE_REGEX) != 0 ? word : Pattern.quote(word);
+        // word chars as in isWordChar(), so "č" doesn't end a word; the
+        // query's own \w keeps its meaning
+        if ((mode & MODE_WHOLE_WORD) != 0)
+            regex = "(?<![\\p{L}\\p{Nd}_])(?:" + regex + ")(?![\\p{L}\\p{Nd}_])";
+        int flags = 0;
+        if ((mode & MODE_CASE_SENSITIVE) == 0)
+            flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        p = Pattern.compile(regex, flags);
+        patterns.put(key, p);
+        return p;
+    }
+
+    // Drops everything derived from the document text.
+    private void invalidate() {
+        if (text != null)
+            text.cancel();
+        cancelBackground();
+        text = null;
+        matcher = null;
+        cache.clear();
+        incWord = null;
+        incDone = true;
+    }
+
+    // Abandons a parallel search that continueIncremental() waits for.
+    private void cancelBackground() {
+        if (incBackground != null) {
+            incBackground.cancel(false);
+            incBackground = null;
+        }
+    }
+
     public void removeHighlights() {
         // Remove any existing highlights for last word
         Highlighter highlighter = comp.getHighlighter();
@@ -84,8 +703,60 @@ class WordSearcher {
         }
     }
 
+    private final DocumentListener docListener = new DocumentListener() {
+        public void insertUpdate(DocumentEvent e) {
+            invalidate();
+        }
+        public void removeUpdate(DocumentEvent e) {
+            invalidate();
+        }
+        public void changedUpdate(DocumentEvent e) {
+            // Attribute changes don't affect the text
+        }
+    };
+
+    // LRU of finished queries: mode and query -> (start, end) pairs of all matches
+    private final Map<String, int[]> cache = new LinkedHashMap<String, int[]>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // LRU of compiled patterns: mode and query -> pattern
+    private final Map<String, Pattern> patterns = new LinkedHashMap<String, Pattern>(PATTERN_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > PATTERN_CACHE_SIZE;
+        }
+    };
+
     protected JTextComponent comp;
     protected Highlighter.HighlightPainter painter;
+
+    private int mode = 0;
+    private DocumentCharSequence text;
+    private Matcher matcher;
+    private Pattern incPattern;
+    private PatternSyntaxException patternError;
+    private volatile boolean cancelled;
+    private String incWord;
+    private int incMode;
+    private boolean incDone = true;
+    private int[] incMatches = new int[32];
+    private int incCount;
+    private int[] incCandidates;
+    private int incCandidateCount;
+    private int incCandidateIndex;
+    private boolean incCandidatesFinal;
+    private int incScanFrom;
+    private int incWindow;
+    private long incStalled;
+    private boolean incInexact;
+    private volatile CompletableFuture<int[]> incBackground;
+    private Runnable backgroundListener;
+    private int firstOffset = -1;
+    private int highlightEnd;
 }
 
 class UnderlineHighlighter extends DefaultHighlighter {
@@ -5,13 +5,18 @@
 
 package enotes.doc;
 
-import enotes.smartcard.CardCommunication;
+import enotes.smartcard.CardService;
 import java.io.*;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.AlgorithmParameterSpec;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
@@ -100,6 +105,11 @@ public class Doc {
 
         bout.write(keyHash, 0, 2); /* Save password hash */
         bout.write(iv);
+        if (docm.wrappedKey != null) {
+            bout.write(docm.wrappedKey.length);
+            bout.write(docm.wrappedKey);
+        } else
+            bout.write(0);
 
         AlgorithmParameterSpec paramSpec = new IvParameterSpec(iv);
         Cipher ecipher = null;
@@ -155,31 +165,92 @@ public class Doc {
      * @throws IOException
      */
     public boolean doOpen(File fOpen, String pwd) throws FileNotFoundException, IOException, DocException, DocPasswordException {
-        FileInputStream fin = new FileInputStream(fOpen);
+        return doOpen(fOpen, null, pwd);
+    }
+
+
+    /**
+     * Opens the specified file, whose contents were already read if
+     * contents isn't null. Waits for the card; the event thread uses
+     * fetchKey() and doOpen() with the key instead.
+     */
+    public boolean doOpen(File fOpen, byte[] contents, String pwd) throws FileNotFoundException, IOException, DocException, DocPasswordException {
+        byte[] key;
+        try {
+            key = fetchKey(fOpen, contents).join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof DocException)
+                throw (DocException) ex.getCause();
+            throw ex;
+        }
+        return doOpen(fOpen, contents, key, pwd);
+    }
+
+
+    /**
+     * Gets the key of the specified file (whose contents were already read
+     * if contents isn't null) from the card, without waiting for it: the
+     * file's own key from its header unwrapped, or the hash of the card's
+     * secret key. Completes with null if the card refused or the header
+     * can't be read (doOpen() then says why), and exceptionally with a
+     * DocException if the card can't unwrap the file's key.
+     */
+    public static CompletableFuture<byte[]> fetchKey(final File fOpen, final byte[] contents) {
+        return CompletableFuture.supplyAsync(new Supplier<Header>() {
+            public Header get() {
+                try {
+                    InputStream fin = contents != null ? new ByteArrayInputStream(contents) : new FileInputStream(fOpen);
+                    try {
+                        return readHeader(new BufferedInputStream(fin), fOpen);
+                    } finally {
+                        fin.close();
+                    }
+                } catch (Exception ex) {
+                    return null;
+                }
+            }
+        }).thenCompose(new Function<Header, CompletionStage<byte[]>>() {
+            public CompletionStage<byte[]> apply(final Header h) {
+                final CardService card = CardService.getInstance();
+                if (h == null)
+                    return CompletableFuture.completedFuture(null);
+                if (h.wrappedKey == null)
+                    return card.getSecretKey().thenApply(new Function<byte[], byte[]>() {
+                        public byte[] apply(byte[] secret) {
+                            return secret == null ? null : Util.sha1hash(secret);
+                        }
+                    });
+                return card.isKeyWrapAvailable().thenCompose(new Function<Boolean, CompletionStage<byte[]>>() {
+                    public CompletionStage<byte[]> apply(Boolean available) {
+                        if (!available)
+                            throw new CompletionException(new DocException("File key is wrapped by a card, but this card can't unwrap keys"));
+                        return card.unwrapFileKey(h.wrappedKey);
+                    }
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Opens the specified file with the key fetchKey() got for it.
+     */
+    public boolean doOpen(File fOpen, byte[] contents, byte[] key, String pwd) throws FileNotFoundException, IOException, DocException, DocPasswordException {
+        InputStream fin = contents != null ? new ByteArrayInputStream(contents) : new FileInputStream(fOpen);
         BufferedInputStream bin = new BufferedInputStream(fin);
 
-        byte[] sig = new byte[DocMetadata.SIGNATURE.length];
-        bin.read(sig);
-        boolean equal = true;
-        for (int i = 0; i < sig.length; i++)
-            if (sig[i] != DocMetadata.SIGNATURE[i])
-                equal = false;
-        if (!equal)
-            throw new DocException("File is not a valid Encrypted Notepad file: "+fOpen.getAbsolutePath());
-        byte ver_format = (byte) bin.read();
-        if (ver_format > DocMetadata.VERSION_FORMAT)
-            throw new DocException("File is a Encrypted Notepad file but cannot be opened by this version of the program: "+fOpen.getAbsolutePath());
-        byte ver_minor = (byte) bin.read();
-        if (ver_minor > DocMetadata.VERSION_MINOR)
-            throw new DocException("File format version is newer than this app version supports");
-        byte[] pwdhash = new byte[2];
-        bin.read(pwdhash);
-        byte[] iv = new byte[16];
-        bin.read(iv);
+        Header h = readHeader(bin, fOpen);
+        byte ver_minor = h.ver_minor;
+        byte[] pwdhash = h.pwdhash;
+        byte[] iv = h.iv;
 
+        if (key == null)
+            throw new DocPasswordException(h.wrappedKey != null ? "The card could not unwrap the file key" : "The card did not give its key");
         DocMetadata newdocm = new DocMetadata();
-        newdocm.key = Util.sha1hash(CardCommunication.getSecretKey());
+        newdocm.key = key;
+        newdocm.wrappedKey = h.wrappedKey;
 
+        boolean equal;
         if (ver_minor == 0) {
             equal = true;
             for (int i = 0; i < pwdhash.length; i++)
@@ -187,7 +258,7 @@ public class Doc {
                     equal = false;
                     break;
                 }
-        } else if (ver_minor == 1 || ver_minor == 2) {
+        } else if (ver_minor >= 1 && ver_minor <= 3) {
             byte[] keyHash = Util.sha1hash(Util.concat(newdocm.key, iv));
             equal = keyHash[0] == pwdhash[0] && keyHash[1] == pwdhash[1];
         } else
@@ -251,6 +322,44 @@ public class Doc {
     }
 
 
+    // The file header, up to the encrypted data
+    private static class Header {
+        byte ver_minor;
+        byte[] pwdhash = new byte[2];
+        byte[] iv = new byte[16];
+        byte[] wrappedKey = null;
+    }
+
+
+    private static Header readHeader(InputStream bin, File fOpen) throws IOException, DocException {
+        byte[] sig = new byte[DocMetadata.SIGNATURE.length];
+        bin.read(sig);
+        boolean equal = true;
+        for (int i = 0; i < sig.length; i++)
+            if (sig[i] != DocMetadata.SIGNATURE[i])
+                equal = false;
+        if (!equal)
+            throw new DocException("File is not a valid Encrypted Notepad file: "+fOpen.getAbsolutePath());
+        byte ver_format = (byte) bin.read();
+        if (ver_format > DocMetadata.VERSION_FORMAT)
+            throw new DocException("File is a Encrypted Notepad file but cannot be opened by this version of the program: "+fOpen.getAbsolutePath());
+        Header h = new Header();
+        h.ver_minor = (byte) bin.read();
+        if (h.ver_minor > DocMetadata.VERSION_MINOR)
+            throw new DocException("File format version is newer than this app version supports");
+        bin.read(h.pwdhash);
+        bin.read(h.iv);
+        if (h.ver_minor >= 3) {
+            int len = bin.read();
+            if (len > 0) {
+                h.wrappedKey = new byte[len];
+                bin.read(h.wrappedKey);
+            }
+        }
+        return h;
+    }
+
+
     public String getText() {
         return text;
     }
@@ -5,12 +5,15 @@
 
 package enotes.doc;
 
-import enotes.smartcard.CardCommunication;
+import enotes.smartcard.CardService;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 
 /**
  *
@@ -27,14 +30,21 @@ public class DocMetadata implements Serializable {
      * Version 1.0: key hash is last 2 bytes of SHA1 hash of the password
      * Version 1.1: key hash is first 2 bytes of SHA1(SHA1(password) + IV)
      * Version 1.2: support for > 64 KiB data
+     * Version 1.3: length byte and per-file key wrapped by the card after
+     *              the IV; length 0 means the key is the card's secret key.
+     *              Builds before 1.3 refuse these files, wrapped key or not.
      */
-    static final byte VERSION_MINOR = 2;
+    static final byte VERSION_MINOR = 3;
+
+    /* Give new documents their own key wrapped by the card, if it can */
+    static boolean useWrappedKeys = !Boolean.getBoolean("enotes.doc.nowrap");
 
     public ArrayList<SaveMetadata> saveHistory = new ArrayList<SaveMetadata>();
     public boolean modified = false;
     public String filename;
     public int caretPosition;
     public byte[] key;
+    public byte[] wrappedKey;
 
     void saveMetadata(DataOutputStream oout) throws IOException {
         oout.writeInt(caretPosition);
@@ -55,8 +65,41 @@ public class DocMetadata implements Serializable {
             saveHistory.add(new SaveMetadata(ois.readLong(), ois.readUTF()));
     }
 
+    /**
+     * Gets a key for a new document from the card, without waiting for it:
+     * its own key wrapped by the card if useWrappedKeys and the card can,
+     * else the hash of the card's secret key. Completes with {wrapped key
+     * or null, key} for setKey(), or null if the card refused.
+     */
+    public static CompletableFuture<byte[][]> fetchKey() {
+        final CardService card = CardService.getInstance();
+        CompletableFuture<byte[][]> wrapped = useWrappedKeys ? card.newFileKey() : CompletableFuture.completedFuture((byte[][]) null);
+        return wrapped.thenCompose(new Function<byte[][], CompletionStage<byte[][]>>() {
+            public CompletionStage<byte[][]> apply(byte[][] fileKey) {
+                if (fileKey != null)
+                    return CompletableFuture.completedFuture(fileKey);
+                return card.getSecretKey().thenApply(new Function<byte[], byte[][]>() {
+                    public byte[][] apply(byte[] secret) {
+                        return secret == null ? null : new byte[][]{null, Util.sha1hash(secret)};
+                    }
+                });
+            }
+        });
+    }
+
+    public void setKey(byte[][] fileKey) {
+        wrappedKey = fileKey[0];
+        key = fileKey[1];
+    }
+
+    /**
+     * Sets a key from fetchKey(), waiting for the card; leaves the key
+     * unset if the card refused. Not for the event thread.
+     */
     public void setKey(String pwd) {
-        key = Util.sha1hash(CardCommunication.getSecretKey());
+        byte[][] fileKey = fetchKey().join();
+        if (fileKey != null)
+            setKey(fileKey);
     }
 
 }
@@ -0,0 +1,111 @@
+package enotes.smartcard;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Flight recorder event for one card command, chained parts and GET
+ * RESPONSE included: enotes.APDU, "Card Command" in the enotes/Smart Card
+ * category. Only header fields and lengths are recorded, never command or
+ * response data.
+ *
+ * The event type is made at run time with jdk.jfr.EventFactory, through
+ * reflection: a subclass of jdk.jfr.Event can't be compiled with javac
+ * --release 16 (its superclass jdk.internal.event.Event is missing from
+ * the release's API), and runtimes without JFR must still load this.
+ *
+ * @author aoeiko
+ */
+class APDUEvent {
+
+    // Field order of the event type, the indexes for Event.set()
+    private static final String FIELDS[][] = {
+        {"cla", "CLA"}, {"ins", "INS"}, {"sw", "Status Word"},
+        {"bytesSent", "Bytes Sent"}, {"bytesReceived", "Bytes Received"}, {"failed", "Failed"}};
+
+    private static Object factory = null;
+    private static Method newEvent;
+    private static Method isEnabled;
+    private static Method begin;
+    private static Method set;
+    private static Method commit;
+
+    static {
+        try {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+            Constructor<?> descriptor = descriptorClass.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), "enotes.APDU"));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), "Card Command"));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"enotes", "Smart Card"}));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Description"), "One command sent to the card and its response"));
+            List<Object> fields = new ArrayList<Object>();
+            for (String field[] : FIELDS) {
+                Object label = annotation.newInstance(Class.forName("jdk.jfr.Label"), field[1]);
+                fields.add(descriptor.newInstance(field[0].equals("failed") ? boolean.class : int.class,
+                        field[0], Arrays.asList(label)));
+            }
+
+            Object f = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            newEvent = factoryClass.getMethod("newEvent");
+            isEnabled = eventClass.getMethod("isEnabled");
+            begin = eventClass.getMethod("begin");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            commit = eventClass.getMethod("commit");
+            factory = f;
+        } catch (Throwable ex) {
+            // Runtimes before 8u262 have no jdk.jfr
+            factory = null;
+        }
+    }
+
+    private final Object event;
+
+    private APDUEvent(Object event) {
+        this.event = event;
+    }
+
+    static boolean isAvailable() {
+        return factory != null;
+    }
+
+    /**
+     * Starts timing a command; null if no recording wants the event.
+     */
+    static APDUEvent begin() {
+        if (factory == null)
+            return null;
+        try {
+            Object e = newEvent.invoke(factory);
+            if (!(Boolean) isEnabled.invoke(e))
+                return null;
+            begin.invoke(e);
+            return new APDUEvent(e);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    void commit(int cla, int ins, int sw, int bytesSent, int bytesReceived, boolean failed) {
+        try {
+            set.invoke(event, 0, cla);
+            set.invoke(event, 1, ins);
+            set.invoke(event, 2, sw);
+            set.invoke(event, 3, bytesSent);
+            set.invoke(event, 4, bytesReceived);
+            set.invoke(event, 5, failed);
+            commit.invoke(event);
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package enotes.smartcard;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.management.ObjectName;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Counts the card traffic going through CardMngr: per instruction a
+ * latency histogram, bytes on the wire and failures, plus how often each
+ * status word came back. Registered as an MXBean (enotes:type=APDUStats)
+ * on first use, and each command is also a JFR event (enotes.APDU) when
+ * the runtime has flight recorder.
+ *
+ * The histograms keep 4 significant bits, so percentiles are within about
+ * 6%, in microseconds up to about 2^40 (12 days).
+ *
+ * With -Denotes.apdu.trace=true, or setTraceEnabled(), every APDU on the
+ * wire is printed as its header, lengths and status word; data is never
+ * printed, since it holds PINs and keys.
+ *
+ * @author aoeiko
+ */
+public class APDUStats implements APDUStatsMXBean {
+
+    static final String OBJECT_NAME = "enotes:type=APDUStats";
+
+    private static APDUStats instance = null;
+
+    private final Histogram latency[] = new Histogram[256];
+    private final long counts[] = new long[256];
+    private final long failures[] = new long[256];
+    private final long sent[] = new long[256];
+    private final long received[] = new long[256];
+    private final Map<Integer, Long> statusWords = new TreeMap<Integer, Long>();
+    private volatile boolean trace = Boolean.getBoolean("enotes.apdu.trace");
+
+    /**
+     * Returns the shared counters, registering them over JMX on first use.
+     */
+    public static synchronized APDUStats getInstance() {
+        if (instance == null) {
+            instance = new APDUStats();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            } catch (Exception ex) {
+                // For debugging print out exception
+                System.out.println("Exception: " + ex.getMessage());
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Called before a command goes out; returns what completed() and
+     * failed() need back.
+     */
+    Object begin() {
+        return APDUEvent.begin();
+    }
+
+    /** Called with the final response to a command. */
+    void completed(CommandAPDU command, ResponseAPDU response, long nanos, int bytesSent, int bytesReceived, Object event) {
+        int ins = command.getINS() & 0xff;
+        synchronized (this) {
+            record(ins, nanos, bytesSent, bytesReceived);
+            Long n = statusWords.get(response.getSW());
+            statusWords.put(response.getSW(), n == null ? 1 : n + 1);
+        }
+        if (event != null)
+            commit(event, command, response.getSW(), bytesSent, bytesReceived, false);
+    }
+
+    /** Called when sending a command threw. */
+    void failed(CommandAPDU command, long nanos, int bytesSent, int bytesReceived, Object event) {
+        int ins = command.getINS() & 0xff;
+        synchronized (this) {
+            record(ins, nanos, bytesSent, bytesReceived);
+            failures[ins]++;
+        }
+        if (event != null)
+            commit(event, command, 0, bytesSent, bytesReceived, true);
+    }
+
+    /** Called for every APDU on the wire if tracing is on. */
+    void trace(CommandAPDU command, ResponseAPDU response) {
+        if (response == null) {
+            System.out.println(String.format("APDU > %02X %02X %02X %02X Nc=%d Ne=%d",
+                    command.getCLA(), command.getINS(), command.getP1(), command.getP2(),
+                    command.getNc(), command.getNe()));
+        } else {
+            System.out.println(String.format("APDU < %04X Nr=%d", response.getSW(), response.getNr()));
+        }
+    }
+
+    public boolean isTraceEnabled() {
+        return trace;
+    }
+
+    public void setTraceEnabled(boolean enabled) {
+        trace = enabled;
+    }
+
+    /** Latency percentile of an instruction in nanoseconds, 0 if never sent */
+    public synchronized long getPercentileNanos(byte ins, double percentile) {
+        Histogram h = latency[ins & 0xff];
+        return h == null ? 0 : h.percentile(percentile) * 1000;
+    }
+
+    public synchronized long getCommands() {
+        long total = 0;
+        for (long n : counts)
+            total += n;
+        return total;
+    }
+
+    public synchronized long getFailures() {
+        long total = 0;
+        for (long n : failures)
+            total += n;
+        return total;
+    }
+
+    public synchronized long getBytesSent() {
+        long total = 0;
+        for (long n : sent)
+            total += n;
+        return total;
+    }
+
+    public synchronized long getBytesReceived() {
+        long total = 0;
+        for (long n : received)
+            total += n;
+        return total;
+    }
+
+    public synchronized Map<String, Long> getCommandCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (int ins = 0; ins < 256; ins++)
+            if (counts[ins] > 0)
+                result.put(String.format("%02X", ins), counts[ins]);
+        return result;
+    }
+
+    public synchronized Map<String, Long> getStatusWordCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<Integer, Long> e : statusWords.entrySet())
+            result.put(String.format("%04X", e.getKey()), e.getValue());
+        return result;
+    }
+
+    public Map<String, Long> getP50Micros() {
+        return percentiles(50);
+    }
+
+    public Map<String, Long> getP99Micros() {
+        return percentiles(99);
+    }
+
+    public Map<String, Long> getMaxMicros() {
+        return percentiles(100);
+    }
+
+    public synchronized String[] getReport() {
+        String lines[] = new String[getCommandCounts().size()];
+        int i = 0;
+        for (int ins = 0; ins < 256; ins++) {
+            if (counts[ins] == 0)
+                continue;
+            Histogram h = latency[ins];
+            lines[i++] = String.format("INS %02X  n %6d  failed %4d  p50 %9.2f ms  p99 %9.2f ms  max %9.2f ms  sent %8d B  received %8d B",
+                    ins, counts[ins], failures[ins], h.percentile(50) / 1e3, h.percentile(99) / 1e3,
+                    h.percentile(100) / 1e3, sent[ins], received[ins]);
+        }
+        return lines;
+    }
+
+    /** getReport() as one string */
+    public String report() {
+        StringBuilder buf = new StringBuilder();
+        for (String line : getReport())
+            buf.append(line).append('\n');
+        return buf.toString();
+    }
+
+    public synchronized void reset() {
+        for (int ins = 0; ins < 256; ins++) {
+            latency[ins] = null;
+            counts[ins] = 0;
+            failures[ins] = 0;
+            sent[ins] = 0;
+            received[ins] = 0;
+        }
+        statusWords.clear();
+    }
+
+    private void record(int ins, long nanos, int bytesSent, int bytesReceived) {
+        if (latency[ins] == null)
+            latency[ins] = new Histogram();
+        latency[ins].add(nanos / 1000);
+        counts[ins]++;
+        sent[ins] += bytesSent;
+        received[ins] += bytesReceived;
+    }
+
+    private synchronized Map<String, Long> percentiles(double percentile) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (int ins = 0; ins < 256; ins++)
+            if (latency[ins] != null)
+                result.put(String.format("%02X", ins), latency[ins].percentile(percentile));
+        return result;
+    }
+
+    private static void commit(Object event, CommandAPDU command, int sw, int bytesSent, int bytesReceived, boolean failed) {
+        ((APDUEvent) event).commit(command.getCLA(), command.getINS(), sw, bytesSent, bytesReceived, failed);
+    }
+
+    /**
+     * Log-linear histogram like HdrHistogram's: values below 32 have a
+     * bucket each, above that every power of two is split in 16 buckets.
+     */
+    static class Histogram {
+
+        static final int SUB_BITS = 4;
+        static final int SUB_COUNT = 1 << SUB_BITS;
+        static final int LINEAR = 2 * SUB_COUNT;
+        static final int MAX_EXPONENT = 40;
+
+        final long buckets[] = new long[LINEAR + (MAX_EXPONENT - SUB_BITS) * SUB_COUNT];
+        long total = 0;
+        long max = 0;
+
+        void add(long value) {
+            value = Math.max(0, value);
+            buckets[index(value)]++;
+            total++;
+            if (value > max)
+                max = value;
+        }
+
+        /** Highest value equivalent to the given percentile, max for 100 */
+        long percentile(double percentile) {
+            if (total == 0)
+                return 0;
+            if (percentile >= 100)
+                return max;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank)
+                    return Math.min(highestEquivalent(i), max);
+            }
+            return max;
+        }
+
+        static int index(long value) {
+            if (value < LINEAR)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent >= MAX_EXPONENT)
+                return LINEAR + (MAX_EXPONENT - SUB_BITS - 1) * SUB_COUNT + SUB_COUNT - 1;
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return LINEAR + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+        }
+
+        static long highestEquivalent(int index) {
+            if (index < LINEAR)
+                return index;
+            int exponent = (index - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+            int sub = (index - LINEAR) % SUB_COUNT;
+            long width = 1L << (exponent - SUB_BITS);
+            return ((long) (SUB_COUNT + sub) << (exponent - SUB_BITS)) + width - 1;
+        }
+    }
+}
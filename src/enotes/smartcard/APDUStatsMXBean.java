@@ -0,0 +1,41 @@
+package enotes.smartcard;
+
+import java.util.Map;
+
+/**
+ * Card traffic counters as seen over JMX, object name
+ * enotes:type=APDUStats. Maps are keyed by INS or status word in hex;
+ * latencies are in microseconds and cover a whole command, including
+ * chained parts, GET RESPONSE and any simulated card time.
+ *
+ * @author aoeiko
+ */
+public interface APDUStatsMXBean {
+
+    long getCommands();
+
+    long getFailures();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getStatusWordCounts();
+
+    Map<String, Long> getP50Micros();
+
+    Map<String, Long> getP99Micros();
+
+    Map<String, Long> getMaxMicros();
+
+    /** One line per instruction seen */
+    String[] getReport();
+
+    boolean isTraceEnabled();
+
+    void setTraceEnabled(boolean enabled);
+
+    void reset();
+}
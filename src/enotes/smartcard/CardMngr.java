@@ -1,9 +1,19 @@
 package enotes.smartcard;
 
-import com.licel.jcardsim.io.CAD;
-import com.licel.jcardsim.io.JavaxSmartCardInterface;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.List;
-import javacard.framework.AID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.prefs.Preferences;
 import javax.smartcardio.*;
 
 /**
@@ -16,8 +26,28 @@ public class CardMngr {
     Card m_card = null;
     
     // Simulator related attributes
-    private static CAD m_cad = null;
-    private static JavaxSmartCardInterface m_simulator = null;
+    private final SimulatedCard m_simulator;
+    private boolean m_useSimulator = false;
+
+    // Commands with more than MAX_SHORT_DATA bytes go out as one extended
+    // APDU if the card says it takes them, else as a chain of short ones
+    // whose parts but the last have m_chainingBit set in CLA
+    private boolean m_extendedLength = false;
+    private byte m_chainingBit = (byte) 0x10;
+
+    // Told when a command fails because the card was pulled
+    private Runnable m_removalListener = null;
+
+    // Readers are probed in parallel, each for up to the probe timeout
+    // (enotes.reader.timeout, milliseconds); the one that answered last
+    // time is remembered in the user preferences and tried first
+    static final long DEFAULT_PROBE_TIMEOUT_MILLIS = 3000;
+    private static final String PREF_READER = "reader";
+    private static long m_probeTimeout = Long.getLong("enotes.reader.timeout", DEFAULT_PROBE_TIMEOUT_MILLIS);
+
+    // Bytes on the wire, for APDUStats
+    private long m_bytesSent = 0;
+    private long m_bytesReceived = 0;
 
     
     private final byte selectCM[] = {
@@ -31,38 +61,247 @@ public class CardMngr {
     public static final byte OFFSET_LC = 0x04;
     public static final byte OFFSET_DATA = 0x05;
     public static final byte HEADER_LENGTH = 0x05;
+    public static final int MAX_SHORT_DATA = 255;
+    public static final byte INS_GET_RESPONSE = (byte) 0xC0;
     public final static short DATA_RECORD_LENGTH = (short) 0x80; // 128B per record
     public final static short NUMBER_OF_RECORDS = (short) 0x0a; // 10 records
 
+    /**
+     * A manager whose simulated card is the application's jcardsim card.
+     */
+    public CardMngr() {
+        this(SimulatedCard.shared());
+    }
+
+    CardMngr(SimulatedCard simulator) {
+        m_simulator = simulator;
+    }
+
     public boolean ConnectToCard() throws Exception {
-        // TRY ALL READERS, FIND FIRST SELECTABLE
+        return ConnectToCard(null);
+    }
+
+    /**
+     * Connects to a card that answers selectAPDU with 9000 (any card if
+     * null), leaving it selected. The reader that worked last time is tried
+     * first, then all others in parallel; the first to answer wins.
+     */
+    public boolean ConnectToCard(final byte selectAPDU[]) throws Exception {
+        m_useSimulator = false;
         List terminalList = GetReaderList();
 
-        if (terminalList.isEmpty()) {
+        if (terminalList == null || terminalList.isEmpty()) {
             return false;
         }
 
-        //List numbers of Card readers
-        boolean cardFound = false;
+        List<CardTerminal> others = new ArrayList<CardTerminal>();
+        CardTerminal preferred = null;
+        String preferredName = getPreferredReader();
         for (int i = 0; i < terminalList.size(); i++) {
-            m_terminal = (CardTerminal) terminalList.get(i);
-            if (m_terminal.isCardPresent()) {
-                m_card = m_terminal.connect("*");
-                m_channel = m_card.getBasicChannel();
-
-                //reset the card
-                ATR atr = m_card.getATR();
-                cardFound = true;
+            CardTerminal terminal = (CardTerminal) terminalList.get(i);
+            if (preferred == null && terminal.getName().equals(preferredName)) {
+                preferred = terminal;
+            } else {
+                others.add(terminal);
+            }
+        }
+
+        ExecutorService probes = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "enotes reader probe");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            if (preferred != null) {
+                List<CardTerminal> one = new ArrayList<CardTerminal>();
+                one.add(preferred);
+                if (probe(probes, one, selectAPDU)) {
+                    return true;
+                }
             }
+            return probe(probes, others, selectAPDU);
+        } finally {
+            // probes still running disconnect their cards themselves
+            probes.shutdown();
+        }
+    }
+
+    // Probes the terminals in parallel and adopts the first card that
+    // answers; cards found later, or after the timeout, are disconnected
+    private boolean probe(ExecutorService probes, List<CardTerminal> terminals, final byte selectAPDU[])
+            throws InterruptedException {
+        if (terminals.isEmpty()) {
+            return false;
+        }
+        final AtomicBoolean decided = new AtomicBoolean(false);
+        CompletionService<Object[]> done = new ExecutorCompletionService<Object[]>(probes);
+        for (final CardTerminal terminal : terminals) {
+            done.submit(new Callable<Object[]>() {
+                public Object[] call() throws Exception {
+                    Card card = probeTerminal(terminal, selectAPDU);
+                    if (card != null && !decided.compareAndSet(false, true)) {
+                        card.disconnect(false);
+                        card = null;
+                    }
+                    return card == null ? null : new Object[]{terminal, card};
+                }
+            });
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_probeTimeout);
+        int pending = terminals.size();
+        while (pending > 0) {
+            long wait = deadline - System.nanoTime();
+            Future<Object[]> f = wait > 0 ? done.poll(wait, TimeUnit.NANOSECONDS) : null;
+            if (f == null) {
+                if (decided.compareAndSet(false, true)) {
+                    // timed out; late answers are dropped
+                    return false;
+                }
+                // a probe won just now, its result is on the way
+                f = done.take();
+            }
+            pending--;
+            Object result[];
+            try {
+                result = f.get();
+            } catch (ExecutionException ex) {
+                continue;
+            }
+            if (result != null) {
+                adopt((CardTerminal) result[0], (Card) result[1]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Connects and selects; null if the reader has no card, or a card
+    // without the applet
+    private static Card probeTerminal(CardTerminal terminal, byte selectAPDU[]) throws CardException {
+        if (!terminal.isCardPresent()) {
+            return null;
         }
+        Card card = terminal.connect("*");
+        if (selectAPDU != null) {
+            ResponseAPDU response = card.getBasicChannel().transmit(new CommandAPDU(selectAPDU));
+            if (response.getSW() != 0x9000) {
+                card.disconnect(false);
+                return null;
+            }
+        }
+        return card;
+    }
+
+    private void adopt(CardTerminal terminal, Card card) {
+        m_card = card;
+        m_channel = card.getBasicChannel();
+        m_terminal = terminal;
+        m_extendedLength = supportsExtendedLength(card.getATR().getHistoricalBytes());
+        setPreferredReader(terminal.getName());
+    }
+
+    /** Name of the reader tried first, null if none is remembered */
+    public static String getPreferredReader() {
+        try {
+            return Preferences.userNodeForPackage(CardMngr.class).get(PREF_READER, null);
+        } catch (SecurityException ex) {
+            return null;
+        }
+    }
+
+    public static void setPreferredReader(String name) {
+        try {
+            Preferences prefs = Preferences.userNodeForPackage(CardMngr.class);
+            if (!name.equals(prefs.get(PREF_READER, null)))
+                prefs.put(PREF_READER, name);
+        } catch (SecurityException ex) {
+            // not remembered then
+        }
+    }
+
+    /** Sets how long each reader may take to answer, in milliseconds */
+    public static void setProbeTimeout(long millis) {
+        m_probeTimeout = millis;
+    }
+
+    /**
+     * Connects to the card in the given reader.
+     */
+    public void ConnectToTerminal(CardTerminal terminal) throws CardException {
+        m_useSimulator = false;
+        m_card = terminal.connect("*");
+        m_channel = m_card.getBasicChannel();
+        m_terminal = terminal;
+
+        ATR atr = m_card.getATR();
+        m_extendedLength = supportsExtendedLength(atr.getHistoricalBytes());
+    }
+
+    /**
+     * Drops the connection to a card that was pulled; there is nothing left
+     * to disconnect from, so failures are ignored.
+     */
+    public void CardRemoved() {
+        if (m_card != null) {
+            try {
+                m_card.disconnect(false);
+            } catch (CardException ex) {
+                // already gone
+            }
+        }
+        m_card = null;
+        m_channel = null;
+    }
+
+    /**
+     * Selects the applet of selectAPDU again, which resets its transient
+     * state and PIN validation. The simulator is told through its runtime,
+     * as jcardsim hands SELECT commands to the applet.
+     */
+    public boolean reselect(byte selectAPDU[]) throws Exception {
+        if (m_useSimulator) {
+            byte aid[] = new byte[selectAPDU[OFFSET_LC]];
+            System.arraycopy(selectAPDU, OFFSET_DATA, aid, 0, aid.length);
+            return m_simulator.select(aid);
+        }
+        return sendAPDU(selectAPDU).getSW() == 0x9000;
+    }
+
+    /**
+     * Sets what to run when a command fails because the card is gone,
+     * null for nothing.
+     */
+    void setRemovalListener(Runnable listener) {
+        m_removalListener = listener;
+    }
+
+    /** True while connected to a card in a reader */
+    public boolean isConnected() {
+        return m_card != null;
+    }
 
-        return cardFound;
+    /** The reader of the current or last card, null before any */
+    public CardTerminal getTerminal() {
+        return m_terminal;
     }
 
     public void DisconnectFromCard() throws CardException{
+        if (m_useSimulator) {
+            // like pulling the card: transient state and PIN validation are lost
+            m_useSimulator = false;
+            try {
+                m_simulator.reset();
+            } catch (Exception ex) {
+                throw new CardException(ex);
+            }
+        }
         if (m_card != null) {
             m_card.disconnect(false);
             m_card = null;
+            m_channel = null;
         }
     }
 
@@ -78,31 +317,153 @@ public class CardMngr {
     }
 
     public ResponseAPDU sendAPDU(byte apdu[]) throws Exception {
-        CommandAPDU commandAPDU = new CommandAPDU(apdu);
+        return sendAPDU(new CommandAPDU(apdu));
+    }
 
-        /*
-        System.out.println(">>>>");
-        System.out.println(commandAPDU);
-
-        System.out.println(bytesToHex(commandAPDU.getBytes()));
-        */
-        
-        ResponseAPDU responseAPDU = m_channel.transmit(commandAPDU);
-/*
-        System.out.println(responseAPDU);
-        System.out.println(bytesToHex(responseAPDU.getBytes()));
-*/
-        if (responseAPDU.getSW1() == (byte) 0x61) {
-            CommandAPDU apduToSend = new CommandAPDU((byte) 0x00,
-                    (byte) 0xC0, (byte) 0x00, (byte) 0x00,
-                    (int) responseAPDU.getSW1());
-
-            responseAPDU = m_channel.transmit(apduToSend);
-            System.out.println(bytesToHex(responseAPDU.getBytes()));
+    /**
+     * Sends a command of any length and returns the complete response,
+     * fetching the rest of a long response with GET RESPONSE. Counted in
+     * APDUStats.
+     */
+    public ResponseAPDU sendAPDU(CommandAPDU commandAPDU) throws Exception {
+        APDUStats stats = APDUStats.getInstance();
+        Object event = stats.begin();
+        long sent0 = m_bytesSent;
+        long received0 = m_bytesReceived;
+        long t0 = System.nanoTime();
+        ResponseAPDU responseAPDU;
+        try {
+            responseAPDU = sendCommand(commandAPDU);
+        } catch (Exception ex) {
+            stats.failed(commandAPDU, System.nanoTime() - t0,
+                    (int) (m_bytesSent - sent0), (int) (m_bytesReceived - received0), event);
+            throw ex;
+        }
+        stats.completed(commandAPDU, responseAPDU, System.nanoTime() - t0,
+                (int) (m_bytesSent - sent0), (int) (m_bytesReceived - received0), event);
+        return responseAPDU;
+    }
+
+    private ResponseAPDU sendCommand(CommandAPDU commandAPDU) throws Exception {
+        if (commandAPDU.getNc() <= MAX_SHORT_DATA || m_extendedLength) {
+            return sendAndCollect(commandAPDU);
+        }
+
+        // ISO 7816-4 command chaining
+        byte data[] = commandAPDU.getData();
+        int off = 0;
+        while (data.length - off > MAX_SHORT_DATA) {
+            CommandAPDU part = new CommandAPDU(commandAPDU.getCLA() | m_chainingBit, commandAPDU.getINS(),
+                    commandAPDU.getP1(), commandAPDU.getP2(), data, off, MAX_SHORT_DATA);
+            ResponseAPDU responseAPDU = transmit(part);
+            if (responseAPDU.getSW() != 0x9000) {
+                return responseAPDU;
+            }
+            off += MAX_SHORT_DATA;
+        }
+        return sendAndCollect(new CommandAPDU(commandAPDU.getCLA(), commandAPDU.getINS(),
+                commandAPDU.getP1(), commandAPDU.getP2(), data, off, data.length - off,
+                Math.min(commandAPDU.getNe(), 256)));
+    }
+
+    // Sends one command and gathers its response: 6Cxx asks to send it again
+    // with Le = xx, 61xx says xx more bytes (00: 256 or more) are waiting
+    private ResponseAPDU sendAndCollect(CommandAPDU commandAPDU) throws Exception {
+        ResponseAPDU responseAPDU = transmit(commandAPDU);
+        if (m_useSimulator) {
+            SimulatedLatency.sleep(SimulatedLatency.getInstance().processingMicros((byte) commandAPDU.getINS()));
+        }
+
+        if (responseAPDU.getSW1() == 0x6C) {
+            commandAPDU = new CommandAPDU(commandAPDU.getCLA(), commandAPDU.getINS(),
+                    commandAPDU.getP1(), commandAPDU.getP2(), commandAPDU.getData(),
+                    responseAPDU.getSW2() == 0 ? 256 : responseAPDU.getSW2());
+            responseAPDU = transmit(commandAPDU);
+        }
+        if (responseAPDU.getSW1() != 0x61) {
+            return responseAPDU;
+        }
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        while (responseAPDU.getSW1() == 0x61) {
+            response.write(responseAPDU.getData());
+            responseAPDU = transmit(new CommandAPDU(0x00, INS_GET_RESPONSE, 0x00, 0x00,
+                    responseAPDU.getSW2() == 0 ? 256 : responseAPDU.getSW2()));
+        }
+        response.write(responseAPDU.getBytes());
+        return new ResponseAPDU(response.toByteArray());
+    }
+
+    private ResponseAPDU transmit(CommandAPDU commandAPDU) throws Exception {
+        boolean trace = APDUStats.getInstance().isTraceEnabled();
+        if (trace) {
+            APDUStats.getInstance().trace(commandAPDU, null);
+        }
+        m_bytesSent += commandAPDU.getBytes().length;
+
+        ResponseAPDU responseAPDU;
+        if (m_useSimulator) {
+            responseAPDU = m_simulator.transmit(commandAPDU);
+            SimulatedLatency.sleep(SimulatedLatency.getInstance().transferMicros(commandAPDU, responseAPDU));
+        } else {
+            if (m_channel == null) {
+                throw new CardException("No card connected");
+            }
+            try {
+                responseAPDU = m_channel.transmit(commandAPDU);
+            } catch (CardException ex) {
+                if (m_removalListener != null && (m_terminal == null || !m_terminal.isCardPresent()))
+                    m_removalListener.run();
+                throw ex;
+            }
+        }
+
+        m_bytesReceived += responseAPDU.getBytes().length;
+        if (trace) {
+            APDUStats.getInstance().trace(commandAPDU, responseAPDU);
         }
         return (responseAPDU);
     }
 
+    /**
+     * Whether the card takes extended-length APDUs; read from the ATR on
+     * connect, false for the simulator.
+     */
+    public boolean isExtendedLength() {
+        return m_extendedLength;
+    }
+
+    public void setExtendedLength(boolean extendedLength) {
+        m_extendedLength = extendedLength;
+    }
+
+    /**
+     * Sets the CLA bit that marks all parts of a chained command but the
+     * last; ISO 7816-4 uses 0x10, applets whose class byte already has it
+     * set need another.
+     */
+    public void setChainingBit(byte chainingBit) {
+        m_chainingBit = chainingBit;
+    }
+
+    // Card capabilities (ISO 7816-4 compact-TLV tag 7 in the historical
+    // bytes), third byte, bit b7: extended Lc and Le fields
+    static boolean supportsExtendedLength(byte historical[]) {
+        if (historical.length == 0 || historical[0] != (byte) 0x80) {
+            return false;
+        }
+        int i = 1;
+        while (i < historical.length) {
+            int tag = (historical[i] >> 4) & 0x0f;
+            int len = historical[i] & 0x0f;
+            if (tag == 7 && len >= 3 && i + 3 < historical.length) {
+                return (historical[i + 3] & 0x40) != 0;
+            }
+            i += 1 + len;
+        }
+        return false;
+    }
+
     public String byteToHex(byte data) {
         StringBuilder buf = new StringBuilder();
         buf.append(toHexChar((data >>> 4) & 0x0F));
@@ -127,15 +488,44 @@ public class CardMngr {
         return (buf.toString());
     }
     
-    // see if we need this, if not then delete
-    public boolean prepareLocalSimulatorApplet(byte[] appletAIDArray, byte[] installData, Class appletClass) {
-        System.setProperty("com.licel.jcardsim.terminal.type", "2");
-        m_cad = new CAD(System.getProperties());
-        m_simulator = (JavaxSmartCardInterface) m_cad.getCardInterface();
-        AID appletAID = new AID(appletAIDArray, (short) 0, (byte) appletAIDArray.length);
+    /**
+     * Uses an in-process jcardsim card with the given applet instead of a
+     * reader. The applet is installed on first use and selected again on
+     * later calls, so its state (PIN, secret key) survives reconnects.
+     */
+    public boolean ConnectToSimulator(byte[] appletAIDArray, byte[] installData, Class<?> appletClass) {
+        boolean ok;
+        try {
+            if (!m_simulator.isInstalled()) {
+                ok = prepareLocalSimulatorApplet(appletAIDArray, installData, appletClass);
+            } else {
+                ok = m_simulator.select(appletAIDArray);
+            }
+        } catch (Exception ex) {
+            System.out.println("Exception : " + ex);
+            ok = false;
+        }
+        m_useSimulator = ok;
+        m_extendedLength = false;
+        return ok;
+    }
+
+    public boolean isSimulator() {
+        return m_useSimulator;
+    }
 
-        AID appletAIDRes =  m_simulator.installApplet(appletAID, appletClass, installData, (short) 0, (byte) installData.length);
-        return m_simulator.selectApplet(appletAID);
+    /**
+     * Makes the simulated card take the given time to process an instruction,
+     * to approximate a real card in benchmarks. See SimulatedLatency for
+     * sampled times and transfer time.
+     */
+    public static void setSimulatedLatency(byte ins, long micros) {
+        SimulatedLatency.getInstance().setFixed(ins, micros);
+    }
+
+    // see if we need this, if not then delete
+    public boolean prepareLocalSimulatorApplet(byte[] appletAIDArray, byte[] installData, Class<?> appletClass) throws Exception {
+        return m_simulator.install(appletAIDArray, installData, appletClass);
     }
     
     // see if we need this, if not then delete
@@ -143,7 +533,7 @@ public class CardMngr {
         System.out.println(">>>>");
         System.out.println(bytesToHex(apdu));
 
-        byte[] responseBytes = m_simulator.transmitCommand(apdu);
+        byte[] responseBytes = m_simulator.transmit(new CommandAPDU(apdu)).getBytes();
 
         System.out.println(bytesToHex(responseBytes));
         System.out.println("<<<<");
@@ -0,0 +1,160 @@
+package enotes.smartcard;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+/**
+ * Watches the readers in the background so a connection to the card is
+ * ready before anyone needs it. When the card is pulled, the cached key and
+ * the PIN state are dropped at once; when a card is inserted (the same one
+ * or another, in any reader), it is connected and the applet selected
+ * again. Reconnecting runs on the CardService I/O thread, so it never
+ * interleaves with other card commands.
+ *
+ * The thread blocks in CardTerminals.waitForChange(), waking up at least
+ * every enotes.monitor.poll milliseconds (default 5000) to catch readers
+ * that come and go.
+ *
+ * @author aoeiko
+ */
+public class CardPresenceMonitor {
+
+    static final long DEFAULT_POLL_MILLIS = 5000;
+
+    private static CardPresenceMonitor instance = null;
+
+    private final long pollMillis;
+    private final Thread watcher;
+
+    // Counters
+    private long insertions = 0;
+    private long removals = 0;
+    private long reconnectNanosLast = 0;
+
+    /**
+     * Returns the shared monitor, starting its thread on first use.
+     */
+    public static synchronized CardPresenceMonitor getInstance() {
+        if (instance == null)
+            instance = new CardPresenceMonitor(Long.getLong("enotes.monitor.poll", DEFAULT_POLL_MILLIS));
+        return instance;
+    }
+
+    CardPresenceMonitor(long pollMillis) {
+        this.pollMillis = Math.max(1, pollMillis);
+        watcher = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "enotes card presence");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public synchronized long getInsertions() {
+        return insertions;
+    }
+
+    public synchronized long getRemovals() {
+        return removals;
+    }
+
+    /** How long the last reconnect (connect and select) took */
+    public synchronized long getLastReconnectNanos() {
+        return reconnectNanosLast;
+    }
+
+    /** Stops watching; the current connection is left as it is. */
+    public void shutdown() {
+        watcher.interrupt();
+    }
+
+    private void watch() {
+        CardTerminals terminals = TerminalFactory.getDefault().terminals();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                terminals.waitForChange(pollMillis);
+                check(terminals);
+            } catch (CardException ex) {
+                // the PC/SC service went away
+                if (!pause())
+                    return;
+            } catch (IllegalStateException ex) {
+                // no readers (yet)
+                if (!pause())
+                    return;
+            }
+        }
+    }
+
+    private boolean pause() {
+        try {
+            Thread.sleep(pollMillis);
+            return true;
+        } catch (InterruptedException ex) {
+            return false;
+        }
+    }
+
+    private void check(CardTerminals terminals) throws CardException {
+        if (CardCommunication.isSimulator())
+            return;
+        CardService card = CardService.getInstance();
+        if (CardCommunication.isConnected()) {
+            if (isCardPresent(CardCommunication.getTerminal()))
+                return;
+            // the key goes at once, not after whatever the I/O thread is doing
+            SessionKeyCache.cardRemoved();
+            synchronized (this) {
+                removals++;
+            }
+            card.submit(new Callable<Void>() {
+                public Void call() {
+                    CardCommunication.cardRemoved();
+                    return null;
+                }
+            }).join();
+        }
+
+        // prefer the reader the card was last in
+        List<CardTerminal> present = new ArrayList<CardTerminal>(terminals.list(CardTerminals.State.CARD_PRESENT));
+        CardTerminal last = CardCommunication.getTerminal();
+        for (CardTerminal t : present) {
+            if (last != null && t.getName().equals(last.getName())) {
+                present.remove(t);
+                present.add(0, t);
+                break;
+            }
+        }
+        for (final CardTerminal t : present) {
+            long t0 = System.nanoTime();
+            boolean connected = card.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    // someone may have connected in the meantime
+                    return CardCommunication.isConnected() || CardCommunication.connectToTerminal(t);
+                }
+            }).join();
+            if (connected) {
+                synchronized (this) {
+                    insertions++;
+                    reconnectNanosLast = System.nanoTime() - t0;
+                }
+                return;
+            }
+        }
+    }
+
+    private static boolean isCardPresent(CardTerminal terminal) {
+        try {
+            return terminal != null && terminal.isCardPresent();
+        } catch (CardException ex) {
+            // the reader itself was unplugged
+            return false;
+        }
+    }
+}
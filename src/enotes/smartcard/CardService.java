@@ -0,0 +1,292 @@
+package enotes.smartcard;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs card operations on one dedicated I/O thread, in the order they were
+ * requested, so callers never interleave APDUs and the Swing event thread
+ * doesn't wait for the card. Every operation returns a CompletableFuture.
+ *
+ * Reads without side effects (tries remaining, the secret key, unwrapping
+ * a given file key) are coalesced: a request while the same one is queued
+ * or running gets the pending result instead of another card round trip.
+ * PIN operations are never coalesced.
+ *
+ * Code on the I/O thread may call CardCommunication directly; everything
+ * else should go through here.
+ *
+ * After useAgent() the operations go to a KeyAgent process instead of the
+ * card, still one at a time from the I/O thread.
+ *
+ * @author aoeiko
+ */
+public class CardService {
+
+    private static CardService instance = null;
+
+    /** Runs completion stages on the Swing event thread */
+    public static final Executor EDT = new Executor() {
+        public void execute(Runnable r) {
+            SwingUtilities.invokeLater(r);
+        }
+    };
+
+    private final ExecutorService io;
+    private volatile Thread ioThread = null;
+    private volatile KeyAgentClient agent = null;
+    private final Map<String, CompletableFuture<?>> inFlight = new HashMap<String, CompletableFuture<?>>();
+
+    // Counters
+    private long submitted = 0;
+    private long coalesced = 0;
+
+    public static synchronized CardService getInstance() {
+        if (instance == null)
+            instance = new CardService();
+        return instance;
+    }
+
+    CardService() {
+        io = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "enotes card I/O");
+                t.setDaemon(true);
+                ioThread = t;
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Sends all further operations to the key agent behind client.
+     */
+    public void useAgent(KeyAgentClient client) {
+        agent = client;
+    }
+
+    /** True if operations go to a key agent */
+    public boolean isAgent() {
+        return agent != null;
+    }
+
+    /** True on the card I/O thread */
+    public boolean isIOThread() {
+        return Thread.currentThread() == ioThread;
+    }
+
+    /**
+     * Queues any card operation; the result is completed on the I/O thread,
+     * exceptionally if the task throws.
+     */
+    public <T> CompletableFuture<T> submit(final Callable<T> task) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        synchronized (this) {
+            submitted++;
+        }
+        if (isIOThread()) {
+            // already on the I/O thread: queueing would deadlock a caller that waits
+            run(task, result);
+            return result;
+        }
+        io.execute(new Runnable() {
+            public void run() {
+                CardService.run(task, result);
+            }
+        });
+        return result;
+    }
+
+    public CompletableFuture<Boolean> verifyPIN(byte pin[]) {
+        final byte p[] = pin.clone();
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                try {
+                    if (agent != null)
+                        return agent.verifyPIN(p);
+                    boolean ok = CardCommunication.verifyPIN(p);
+                    if (ok)
+                        SessionKeyCache.pinVerified();
+                    return ok;
+                } finally {
+                    Arrays.fill(p, (byte) 0);
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> changePIN(byte pin[]) {
+        final byte p[] = pin.clone();
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                try {
+                    return agent != null ? agent.changePIN(p) : CardCommunication.changePIN(p);
+                } finally {
+                    Arrays.fill(p, (byte) 0);
+                }
+            }
+        });
+    }
+
+    /** Tries remaining, or -1 if the card didn't answer */
+    public CompletableFuture<Integer> getTriesRemaining() {
+        return coalesce("tries", new Callable<Integer>() {
+            public Integer call() {
+                return agent != null ? agent.getTriesRemaining() : CardCommunication.getTriesRemaining();
+            }
+        });
+    }
+
+    /**
+     * The card's secret key through SessionKeyCache, so a cached key
+     * doesn't touch the card; null if the card refused. Each caller gets
+     * its own copy.
+     */
+    public CompletableFuture<byte[]> getSecretKey() {
+        return copies(coalesce("secret key", new Callable<byte[]>() {
+            public byte[] call() {
+                return agent != null ? agent.getSecretKey() : SessionKeyCache.getSecretKey();
+            }
+        }));
+    }
+
+    public CompletableFuture<Boolean> isKeyWrapAvailable() {
+        return coalesce("key wrap", new Callable<Boolean>() {
+            public Boolean call() {
+                return agent != null ? agent.isKeyWrapAvailable() : CardCommunication.isKeyWrapAvailable();
+            }
+        });
+    }
+
+    /** See CardCommunication.newFileKey() */
+    public CompletableFuture<byte[][]> newFileKey() {
+        return submit(new Callable<byte[][]>() {
+            public byte[][] call() {
+                return agent != null ? agent.newFileKey() : used(CardCommunication.newFileKey());
+            }
+        });
+    }
+
+    /** See CardCommunication.unwrapFileKey(); each caller gets its own copy */
+    public CompletableFuture<byte[]> unwrapFileKey(byte wrappedKey[]) {
+        final byte w[] = wrappedKey.clone();
+        return copies(coalesce("unwrap " + Arrays.toString(w), new Callable<byte[]>() {
+            public byte[] call() {
+                return agent != null ? agent.unwrapFileKey(w) : used(CardCommunication.unwrapFileKey(w));
+            }
+        }));
+    }
+
+    /** See CardCommunication.unwrapFileKeys() */
+    public CompletableFuture<byte[][]> unwrapFileKeys(byte wrappedKeys[][]) {
+        final byte w[][] = wrappedKeys.clone();
+        return submit(new Callable<byte[][]>() {
+            public byte[][] call() {
+                return agent != null ? agent.unwrapFileKeys(w) : used(CardCommunication.unwrapFileKeys(w));
+            }
+        });
+    }
+
+    /**
+     * Locks the session, the key agent's if one is used: the cached key is
+     * zeroed at once, and the card forgets the verified PIN once the
+     * commands queued before have run, so the next key needs the PIN again
+     * in every editor. False if the card didn't answer.
+     */
+    public CompletableFuture<Boolean> lock() {
+        SessionKeyCache.lock();
+        return submit(new Callable<Boolean>() {
+            public Boolean call() {
+                if (agent != null)
+                    return agent.lock();
+                // again, in case a queued verifyPIN() unlocked it meanwhile
+                SessionKeyCache.lock();
+                return CardCommunication.logout();
+            }
+        });
+    }
+
+    /**
+     * True if a key agent is in use and its card already has a verified
+     * PIN, so the PIN needn't be asked for.
+     */
+    public CompletableFuture<Boolean> isAgentUnlocked() {
+        return coalesce("unlocked", new Callable<Boolean>() {
+            public Boolean call() {
+                return agent != null && agent.isUnlocked();
+            }
+        });
+    }
+
+    public synchronized long getSubmitted() {
+        return submitted;
+    }
+
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    // Returns the pending future for key if there is one, else submits task
+    // under it
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> coalesce(final String key, Callable<T> task) {
+        CompletableFuture<T> result;
+        synchronized (this) {
+            result = (CompletableFuture<T>) inFlight.get(key);
+            if (result != null) {
+                coalesced++;
+                return result;
+            }
+            result = new CompletableFuture<T>();
+            inFlight.put(key, result);
+        }
+        final CompletableFuture<T> pending = result;
+        submit(task).whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable ex) {
+                synchronized (CardService.this) {
+                    inFlight.remove(key);
+                }
+                if (ex != null)
+                    pending.completeExceptionally(ex);
+                else
+                    pending.complete(value);
+            }
+        });
+        return pending;
+    }
+
+    // File keys from the card use the unlocked session like the secret key
+    // does, so its idle timeout starts over
+    private static <T> T used(T keys) {
+        if (keys != null)
+            SessionKeyCache.keyUsed();
+        return keys;
+    }
+
+    // Coalesced callers mustn't share (and zero) one key array
+    private static CompletableFuture<byte[]> copies(CompletableFuture<byte[]> shared) {
+        return shared.thenApply(new Function<byte[], byte[]>() {
+            public byte[] apply(byte[] key) {
+                return key == null ? null : key.clone();
+            }
+        });
+    }
+
+    private static <T> void run(Callable<T> task, CompletableFuture<T> result) {
+        try {
+            result.complete(task.call());
+        } catch (Throwable ex) {
+            result.completeExceptionally(ex);
+        }
+    }
+}
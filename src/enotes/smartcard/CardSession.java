@@ -0,0 +1,997 @@
+package enotes.smartcard;
+
+import enotes.smartcard.applet.EnotesApplet;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * One connection to a card running EnotesApplet, with the protocol state
+ * that goes with it: the negotiated transport, PIN session key, secure
+ * channel. The editor uses one session through the static
+ * CardCommunication; load tests and services that talk to many cards use
+ * a session per card. A session is not thread-safe, so each should be
+ * used by one thread at a time.
+ *
+ * @author aoeiko
+ */
+public class CardSession {
+    // The applet's class bytes already have the ISO chaining bit set
+    final static byte CLA_CHAINING = (byte) 0x08;
+
+    // INSTRUCTIONS
+    final static byte INS_GEN_PUB_KEY_MOD = (byte) 0x50;
+    final static byte INS_RET_PUB_EXP = (byte) 0x51;
+    final static byte INS_GEN_SEC_KEY = (byte) 0x52;
+    final static byte INS_SET_MOD = (byte) 0x53;
+    final static byte INS_SET_EXP_SEND_SEC_KEY = (byte) 0x54;
+    final static byte INS_VERIFYPIN = (byte) 0x55;
+    final static byte INS_CHANGEPIN = (byte) 0x56;
+    final static byte INS_GET_TRIES_REM = (byte) 0x57;
+    final static byte INS_GET_TRANSPORT = (byte) 0x58;
+    final static byte INS_EC_KEY_AGREE = (byte) 0x59;
+    final static byte INS_EC_SEND_SEC_KEY = (byte) 0x5A;
+    final static byte INS_OPEN_CHANNEL = (byte) 0x5B;
+    final static byte INS_NEW_FILE_KEY = (byte) 0x5C;
+    final static byte INS_UNWRAP_KEY = (byte) 0x5D;
+    final static byte INS_UNWRAP_KEYS = (byte) 0x5E;
+    final static byte INS_RSA_SEND_SEC_KEY = (byte) 0x5F;
+
+    // P1 of INS_GEN_PUB_KEY_MOD: card keeps the keypair until deselect
+    final static byte P1_SESSION_KEY = (byte) 0x01;
+    // P2 of INS_GEN_PUB_KEY_MOD: answer modulus || exponent || exponent
+    // length; older applets answer just the modulus (at most 129 bytes)
+    final static byte P2_WITH_EXPONENT = (byte) 0x01;
+    // The card's own keypair is RSA-1024
+    final static int CARD_MODULUS_LENGTH = 128;
+
+    // Key transport protocols offered by the card (INS_GET_TRANSPORT bits)
+    final static byte TRANSPORT_RSA = (byte) 0x01;
+    final static byte TRANSPORT_ECDH_P256 = (byte) 0x02;
+    final static byte TRANSPORT_ECDH_P192 = (byte) 0x04;
+    final static byte TRANSPORT_CHANNEL = (byte) 0x08;
+    final static byte TRANSPORT_KEY_WRAP = (byte) 0x10;
+
+    // P1 of INS_VERIFYPIN/INS_CHANGEPIN: PIN block encrypted with the ECDH transport key
+    final static byte P1_ECDH = (byte) 0x02;
+
+    /** Length of the card's secret key (AES-128) */
+    public final static int SECRET_KEY_LENGTH = 16;
+
+    /** Length of a wrapped file key */
+    public final static int WRAPPED_KEY_LENGTH = 32;
+
+    // Wrapped keys per INS_UNWRAP_KEYS: the card answers 17 bytes per key in
+    // one short response, behind the full C-MAC in its APDU buffer
+    final static int UNWRAP_BATCH = 13;
+
+    // Status words which mean the card did decrypt the PIN
+    final static short SW_OK = (short) 0x9000;
+    final static short SW_BAD_PIN = (short) 0x6900;
+    final static short SW_PIN_REQUIRED = (short) 0x6982;
+    final static short SW_COMMAND_NOT_ALLOWED = (short) 0x6986;
+    final static short SW_WRONG_DATA = (short) 0x6A80;
+    final static short SW_CONDITIONS_NOT_SATISFIED = (short) 0x6985;
+    final static short SW_SM_FAILED = (short) 0x6988;
+    final static short SW_INS_NOT_SUPPORTED = (short) 0x6D00;
+    // A PIN sent under a keypair the card no longer has fails in the
+    // applet's RSA decryption with an uncaught CryptoException, which a
+    // card answers with SW_UNKNOWN and jcardsim with the exception's
+    // reason, UNINITIALIZED_KEY
+    final static short SW_UNKNOWN = (short) 0x6F00;
+    final static short SW_SIM_UNINITIALIZED_KEY = (short) 0x0002;
+
+    final CardMngr cardManager;
+
+    // Told whenever the card's PIN state and keys are gone; the editor's
+    // session clears SessionKeyCache with it, other sessions pass null
+    private final Runnable keysInvalidated;
+
+    // PIN transport: reuse the card's keypair for the whole connection
+    // instead of having the card generate one for every PIN operation
+    private boolean usePINSessionKey = !Boolean.getBoolean("enotes.pin.nosessionkey");
+    private boolean pinSessionKeyRefused = false;
+    private RSAPublicKey pinSessionKey = null;
+
+    // Transport of PINs and keys when the card offers more than RSA:
+    // a secure channel opened once per connection (the default), the
+    // ECDH transport (-Denotes.transport=ecdh) or RSA (-Denotes.transport=rsa).
+    // The ECDH transport key is kept like pinSessionKey.
+    private String transportProperty = System.getProperty("enotes.transport", "");
+    private boolean useECDH = !"rsa".equalsIgnoreCase(transportProperty);
+    private boolean useChannel = useECDH && !"ecdh".equalsIgnoreCase(transportProperty);
+    private byte cardTransports = 0;
+    private byte[] ecTransportKey = null;
+    private SecureChannel channel = null;
+
+    // Card behind connectToCard(): a reader through PC/SC (the default) or,
+    // with -Denotes.card=sim, EnotesApplet in an in-process jcardsim card,
+    // for benchmarks, tests and machines without a reader
+    private boolean useSimulatorBackend = "sim".equalsIgnoreCase(System.getProperty("enotes.card", ""));
+
+    private static final byte SELECT_ENOTESAPPLET[] = {(byte) 0x00, (byte) 0xa4, (byte) 0x04, (byte) 0x00, (byte) 0x0b,
+        (byte) 0x65, (byte) 0x6e, (byte) 0x6f, (byte) 0x74, (byte) 0x65,
+        (byte) 0x73, (byte) 0x20, (byte) 0x61, (byte) 0x70, (byte) 0x70,
+        (byte) 0x6c/*, (byte) 0x65, (byte) 0x74*/};
+
+    /**
+     * A session of its own, without a card until connected. Its simulated
+     * card, if it uses one, runs in a jcardsim runtime of its own, so many
+     * sessions can have independent simulated cards in one JVM.
+     */
+    public CardSession() {
+        this(new CardMngr(SimulatedCard.isolated()), null);
+    }
+
+    CardSession(CardMngr cardManager, Runnable keysInvalidated) {
+        this.cardManager = cardManager;
+        this.keysInvalidated = keysInvalidated;
+        cardManager.setChainingBit(CLA_CHAINING);
+        // a pulled card takes the keys with it
+        cardManager.setRemovalListener(keysInvalidated);
+    }
+
+    public boolean connectToCard() {
+        if (useSimulatorBackend) {
+            return connectToSimulator();
+        }
+        invalidateKeyCache();
+        resetPINSessionKey();
+        try {
+            // selects the applet on the way
+            if (!cardManager.ConnectToCard(SELECT_ENOTESAPPLET)) {
+                return false;
+            }
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Connects to the card in the given reader and selects the applet; used
+     * by CardPresenceMonitor when a card is inserted.
+     */
+    boolean connectToTerminal(CardTerminal terminal) {
+        invalidateKeyCache();
+        resetPINSessionKey();
+        try {
+            cardManager.ConnectToTerminal(terminal);
+            ResponseAPDU respAPDU = cardManager.sendAPDU(SELECT_ENOTESAPPLET);
+            if (respAPDU.getSW() != (SW_OK & 0xffff)) {
+                cardManager.CardRemoved();
+                return false;
+            }
+            CardMngr.setPreferredReader(terminal.getName());
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            cardManager.CardRemoved();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the card, its keys and the PIN state after it was pulled.
+     */
+    void cardRemoved() {
+        invalidateKeyCache();
+        resetPINSessionKey();
+        cardManager.CardRemoved();
+    }
+
+    /** True while a card in a reader (not the simulator) is connected */
+    public boolean isConnected() {
+        return cardManager.isConnected();
+    }
+
+    boolean isSimulator() {
+        return cardManager.isSimulator();
+    }
+
+    CardTerminal getTerminal() {
+        return cardManager.getTerminal();
+    }
+    
+    /**
+     * Connects to an in-process simulated card running EnotesApplet
+     * instead of a reader.
+     */
+    public boolean connectToSimulator() {
+        invalidateKeyCache();
+        resetPINSessionKey();
+        byte aid[] = new byte[SELECT_ENOTESAPPLET[CardMngr.OFFSET_LC]];
+        System.arraycopy(SELECT_ENOTESAPPLET, CardMngr.OFFSET_DATA, aid, 0, aid.length);
+        // the applet only initialises itself with more than 9 bytes of install data
+        byte installData[] = new byte[10];
+        return cardManager.ConnectToSimulator(aid, installData, EnotesApplet.class);
+    }
+
+    /**
+     * Selects whether connectToCard() uses the simulated card instead of a
+     * reader.
+     */
+    public void setSimulatorBackend(boolean enabled) {
+        useSimulatorBackend = enabled;
+    }
+
+    public boolean isSimulatorBackend() {
+        return useSimulatorBackend;
+    }
+
+    public void disconnect(){
+        invalidateKeyCache();
+        resetPINSessionKey();
+        try {
+            cardManager.DisconnectFromCard();
+        } catch (CardException ex) {
+            // For debugging print out exception
+            System.out.println(ex.getMessage());
+        }
+    }
+    
+    /**
+     * Makes the card forget the verified PIN by selecting the applet again,
+     * which resets it; key operations then need verifyPIN() first. The
+     * transport keys and channel go with it, as the card drops them on
+     * deselect. True if there was no card to log out of.
+     */
+    public boolean logout() {
+        invalidateKeyCache();
+        resetPINSessionKey();
+        if (!cardManager.isConnected() && !cardManager.isSimulator()) {
+            return true;
+        }
+        try {
+            return cardManager.reselect(SELECT_ENOTESAPPLET);
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    public boolean generateSecretKey() {
+        byte apdu[] = new byte[CardMngr.HEADER_LENGTH];
+        apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+        apdu[CardMngr.OFFSET_INS] = INS_GEN_SEC_KEY;
+        apdu[CardMngr.OFFSET_P1] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_LC] = (byte) 0;
+
+        byte response[];
+        try {
+            response = cardManager.sendAPDU(apdu).getBytes();
+            if (response[0] != (byte) 0x90 || response[1] != (byte) 0x00) {
+                return false;
+            }
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Selects whether PIN operations reuse one card transport keypair per
+     * connection (the default; disable with -Denotes.pin.nosessionkey=true)
+     * or have the card generate a new keypair for each one.
+     */
+    public void setPINSessionKey(boolean enabled) {
+        usePINSessionKey = enabled;
+        pinSessionKey = null;
+        clearTransportKey();
+    }
+
+    /**
+     * Selects whether the ECDH key transport is used with cards that offer
+     * it, or always RSA.
+     */
+    public void setECDHTransport(boolean enabled) {
+        useECDH = enabled;
+        clearTransportKey();
+    }
+
+    /**
+     * Selects whether PIN and key operations go through a secure channel
+     * with cards that offer it. Needs the ECDH transport enabled.
+     */
+    public void setSecureChannel(boolean enabled) {
+        useChannel = enabled;
+        closeChannel();
+    }
+
+    /**
+     * Returns the key transport used with the current card: "RSA-1024",
+     * "ECDH P-256", "ECDH P-192", "channel P-256" or "channel P-192".
+     */
+    public String getTransport() {
+        String prefix = channelCurve() != 0 ? "channel " : "ECDH ";
+        switch (ecdhCurve()) {
+            case TRANSPORT_ECDH_P256:
+                return prefix + "P-256";
+            case TRANSPORT_ECDH_P192:
+                return prefix + "P-192";
+            default:
+                return "RSA-1024";
+        }
+    }
+
+    private void invalidateKeyCache() {
+        if (keysInvalidated != null) {
+            keysInvalidated.run();
+        }
+    }
+
+    private void resetPINSessionKey() {
+        pinSessionKey = null;
+        pinSessionKeyRefused = false;
+        cardTransports = 0;
+        clearTransportKey();
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void clearTransportKey() {
+        if (ecTransportKey != null) {
+            Arrays.fill(ecTransportKey, (byte) 0);
+            ecTransportKey = null;
+        }
+    }
+
+    // Asks the card once per connection which transports it has; cards
+    // without INS_GET_TRANSPORT only do RSA. Returns the curve bit to use,
+    // or 0 for RSA.
+    private byte ecdhCurve() {
+        if (!useECDH) {
+            return 0;
+        }
+        if (cardTransports == 0) {
+            byte apdu[] = new byte[CardMngr.HEADER_LENGTH];
+            apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+            apdu[CardMngr.OFFSET_INS] = INS_GET_TRANSPORT;
+            try {
+                ResponseAPDU respAPDU = cardManager.sendAPDU(apdu);
+                if (respAPDU.getSW() == (SW_OK & 0xffff) && respAPDU.getNr() == 1) {
+                    cardTransports = respAPDU.getData()[0];
+                } else {
+                    cardTransports = TRANSPORT_RSA;
+                }
+            } catch (Exception ex) {
+                // For debugging print out exception
+                System.out.println("Exception: " + ex.getMessage());
+                return 0;
+            }
+        }
+        if ((cardTransports & TRANSPORT_ECDH_P256) != 0) {
+            return TRANSPORT_ECDH_P256;
+        }
+        if ((cardTransports & TRANSPORT_ECDH_P192) != 0) {
+            return TRANSPORT_ECDH_P192;
+        }
+        return 0;
+    }
+
+    // Curve bit if commands should go through a secure channel, or 0
+    private byte channelCurve() {
+        byte curve = ecdhCurve();
+        if (!useChannel || (cardTransports & TRANSPORT_CHANNEL) == 0) {
+            return 0;
+        }
+        return curve;
+    }
+
+    private boolean openChannel(byte curve) {
+        closeChannel();
+        try {
+            SecureChannel c = new SecureChannel(curve == TRANSPORT_ECDH_P256 ? "secp256r1" : "secp192r1");
+            byte point[] = c.getPublicPoint();
+            byte apdu[] = new byte[CardMngr.HEADER_LENGTH + point.length];
+            apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+            apdu[CardMngr.OFFSET_INS] = INS_OPEN_CHANNEL;
+            apdu[CardMngr.OFFSET_P1] = curve;
+            apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+            apdu[CardMngr.OFFSET_LC] = (byte) point.length;
+            System.arraycopy(point, 0, apdu, CardMngr.OFFSET_DATA, point.length);
+
+            ResponseAPDU respAPDU = cardManager.sendAPDU(apdu);
+            if (respAPDU.getSW() != (SW_OK & 0xffff)) {
+                return false;
+            }
+            c.open(respAPDU.getData());
+            channel = c;
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    // Sends a command through the secure channel, opening it first if
+    // needed, and returns the card's inner response or null. If the card
+    // dropped an existing channel (e.g. it was reselected), the channel is
+    // opened again and the command resent once.
+    private ResponseAPDU sendSecure(byte ins, byte payload[], byte curve) {
+        boolean fresh = false;
+        while (true) {
+            if (channel == null) {
+                if (!openChannel(curve)) {
+                    return null;
+                }
+                fresh = true;
+            }
+            try {
+                ResponseAPDU respAPDU = cardManager.sendAPDU(channel.wrap(ins, payload));
+                if (respAPDU.getSW() == (SW_OK & 0xffff)) {
+                    return channel.unwrap(respAPDU);
+                }
+            } catch (Exception ex) {
+                // For debugging print out exception
+                System.out.println("Exception: " + ex.getMessage());
+                closeChannel();
+                return null;
+            }
+            closeChannel();
+            if (fresh) {
+                return null;
+            }
+        }
+    }
+
+    // Agrees on a fresh AES transport key with the card, or returns the
+    // one agreed earlier in this session
+    private byte[] ecdhTransportKey(byte curve, boolean fresh) {
+        if (!fresh && usePINSessionKey && ecTransportKey != null) {
+            return ecTransportKey;
+        }
+        clearTransportKey();
+        byte[] key;
+        try {
+            ECDHTransport transport = new ECDHTransport(curve == TRANSPORT_ECDH_P256 ? "secp256r1" : "secp192r1");
+            byte point[] = transport.getPublicPoint();
+            byte apdu[] = new byte[CardMngr.HEADER_LENGTH + point.length];
+            apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+            apdu[CardMngr.OFFSET_INS] = INS_EC_KEY_AGREE;
+            apdu[CardMngr.OFFSET_P1] = curve;
+            apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+            apdu[CardMngr.OFFSET_LC] = (byte) point.length;
+            System.arraycopy(point, 0, apdu, CardMngr.OFFSET_DATA, point.length);
+
+            ResponseAPDU respAPDU = cardManager.sendAPDU(apdu);
+            if (respAPDU.getSW() != (SW_OK & 0xffff)) {
+                return null;
+            }
+            key = transport.deriveKey(respAPDU.getData());
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return null;
+        }
+        if (usePINSessionKey) {
+            ecTransportKey = key;
+        }
+        return key;
+    }
+
+    // Generates a keypair on the card and returns the public key; with
+    // P1_SESSION_KEY the card only generates it once per session
+    private PublicKey generateKeyPair(byte p1) {
+
+        byte apdu[] = new byte[CardMngr.HEADER_LENGTH];
+        apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+        apdu[CardMngr.OFFSET_INS] = INS_GEN_PUB_KEY_MOD;
+        apdu[CardMngr.OFFSET_P1] = p1;
+        apdu[CardMngr.OFFSET_P2] = P2_WITH_EXPONENT;
+        apdu[CardMngr.OFFSET_LC] = (byte) 0;
+
+        byte response[];
+        byte modulus[];
+        byte exponent[];
+        PublicKey publicKey;
+        try {
+            ResponseAPDU respAPDU = cardManager.sendAPDU(apdu);
+            response = respAPDU.getBytes();
+            if (response[response.length - 2] != (byte) 0x90 || response[response.length - 1] != (byte) 0x00) {
+                return null;
+            }
+            if (response.length - 2 > CARD_MODULUS_LENGTH + 1) {
+                int expLen = response[response.length - 3] & 0xff;
+                int modLen = response.length - 3 - expLen;
+                modulus = Arrays.copyOf(response, modLen);
+                exponent = Arrays.copyOfRange(response, modLen, modLen + expLen);
+            } else {
+                // older applets ignore P2 and need a second command
+                modulus = new byte[response.length - 2];
+                System.arraycopy(response, 0, modulus, 0, response.length - 2);
+
+                apdu[CardMngr.OFFSET_INS] = INS_RET_PUB_EXP;
+                apdu[CardMngr.OFFSET_P1] = (byte) 0x00;
+                apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+                response = cardManager.sendAPDU(apdu).getBytes();
+                if (response[response.length - 2] != (byte) 0x90 || response[response.length - 1] != (byte) 0x00) {
+                    return null;
+                }
+
+                exponent = new byte[response.length - 2];
+                System.arraycopy(response, 0, exponent, 0, response.length - 2);
+            }
+
+            // set modulus and exponent to new public key object
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            RSAPublicKeySpec pubKeySpec = new RSAPublicKeySpec(new BigInteger(1, modulus), new BigInteger(1, exponent));
+            publicKey = keyFactory.generatePublic(pubKeySpec);
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return null;
+        }
+        return publicKey;
+    }
+
+
+    //whatToDo: INS_VERIFYPIN to verify PIN or INS_CHANGEPIN to change PIN
+    private boolean doStuffWithPIN(byte pin[], byte whatToDo) {
+        byte curve = channelCurve();
+        if (curve != 0) {
+            ResponseAPDU respAPDU = sendSecure(whatToDo, pin, curve);
+            return respAPDU != null && respAPDU.getSW() == (SW_OK & 0xffff);
+        }
+        curve = ecdhCurve();
+        if (curve != 0) {
+            return doStuffWithPINECDH(pin, whatToDo, curve);
+        }
+
+        boolean session = usePINSessionKey && !pinSessionKeyRefused;
+        RSAPublicKey publicKey = session ? pinSessionKey : null;
+        boolean reused = publicKey != null;
+        if (publicKey == null) {
+            publicKey = (RSAPublicKey) generateKeyPair(session ? P1_SESSION_KEY : (byte) 0x00);
+        }
+        if (publicKey == null) {
+            // For debugging
+            System.out.println("Public key is null");
+            return false;
+        }
+
+        short sw = sendEncryptedPIN(publicKey, pin, whatToDo);
+        boolean decrypted = sw == SW_OK || sw == SW_BAD_PIN || sw == SW_PIN_REQUIRED || sw == SW_COMMAND_NOT_ALLOWED;
+        if (session && decrypted) {
+            pinSessionKey = publicKey;
+        } else if (reused && (sw == SW_UNKNOWN || sw == SW_SIM_UNINITIALIZED_KEY)) {
+            // The card no longer has the keypair: an applet without session
+            // keys, which clears it after each use. Don't reuse from now on.
+            // No PIN try was used, the card failed before checking it.
+            pinSessionKey = null;
+            pinSessionKeyRefused = true;
+            return doStuffWithPIN(pin, whatToDo);
+        }
+        // anything else, including -1 for an I/O error, is a failure; the
+        // PIN isn't sent again
+        return sw == SW_OK;
+    }
+
+    private boolean doStuffWithPINECDH(byte pin[], byte whatToDo, byte curve) {
+        boolean reused = usePINSessionKey && ecTransportKey != null;
+        short sw = sendPINBlock(ecdhTransportKey(curve, false), pin, whatToDo);
+        if (reused && (sw == SW_WRONG_DATA || sw == SW_CONDITIONS_NOT_SATISFIED)) {
+            // The card lost or replaced the transport key (e.g. it was
+            // reselected); padding is checked before the PIN, so no try was used
+            sw = sendPINBlock(ecdhTransportKey(curve, true), pin, whatToDo);
+        }
+        return sw == SW_OK;
+    }
+
+    private short sendPINBlock(byte key[], byte pin[], byte whatToDo) {
+        if (key == null) {
+            return -1;
+        }
+        try {
+            byte block[] = ECDHTransport.encryptPIN(key, pin);
+            byte apdu[] = new byte[CardMngr.HEADER_LENGTH + block.length];
+            apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+            apdu[CardMngr.OFFSET_INS] = whatToDo;
+            apdu[CardMngr.OFFSET_P1] = P1_ECDH;
+            apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+            apdu[CardMngr.OFFSET_LC] = (byte) block.length;
+            System.arraycopy(block, 0, apdu, CardMngr.OFFSET_DATA, block.length);
+            return (short) cardManager.sendAPDU(apdu).getSW();
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return -1;
+        }
+    }
+
+    // Encrypts the PIN for the card and returns the status word, or -1
+    private short sendEncryptedPIN(RSAPublicKey publicKey, byte pin[], byte whatToDo) {
+        byte encryptedPin[];
+        try {
+            Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding"/*, "BC"*/);  //not sure about BC here - bouncy castle? do we use this?
+            cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+            encryptedPin = cipher.doFinal(pin);
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return -1;
+        }
+
+        byte apdu[] = new byte[CardMngr.HEADER_LENGTH + encryptedPin.length];
+        apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+        apdu[CardMngr.OFFSET_INS] = whatToDo;
+        apdu[CardMngr.OFFSET_P1] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_LC] = (byte) encryptedPin.length;
+
+        System.arraycopy(encryptedPin, 0, apdu, CardMngr.OFFSET_DATA, encryptedPin.length);
+        try {
+            return (short) cardManager.sendAPDU(apdu).getSW();
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return -1;
+        }
+    }
+
+    public boolean changePIN(byte pin[]) {
+        // the card wants the new PIN verified before it hands out keys again
+        invalidateKeyCache();
+        return doStuffWithPIN(pin, INS_CHANGEPIN);
+    }
+
+    public boolean verifyPIN(byte pin[]) {
+        return doStuffWithPIN(pin, INS_VERIFYPIN);
+    }
+
+    /**
+     * Returns the card's secret key, SECRET_KEY_LENGTH bytes whichever
+     * transport brought it, or null.
+     */
+    public byte[] getSecretKey() {
+        byte key[] = fetchSecretKey();
+        if (key == null || key.length == SECRET_KEY_LENGTH) {
+            return key;
+        }
+        // jcardsim's RSA PKCS#1 leaves the plaintext padded with zeros to
+        // the block length; anything else is not a key
+        boolean padded = key.length > SECRET_KEY_LENGTH;
+        for (int i = SECRET_KEY_LENGTH; padded && i < key.length; i++) {
+            padded = key[i] == 0;
+        }
+        byte trimmed[] = padded ? Arrays.copyOf(key, SECRET_KEY_LENGTH) : null;
+        if (!padded) {
+            System.out.println("Secret key of wrong length " + key.length);
+        }
+        Arrays.fill(key, (byte) 0);
+        return trimmed;
+    }
+
+    private byte[] fetchSecretKey() {
+        byte curve = channelCurve();
+        if (curve != 0) {
+            ResponseAPDU respAPDU = sendSecure(INS_EC_SEND_SEC_KEY, new byte[0], curve);
+            if (respAPDU == null || respAPDU.getSW() != (SW_OK & 0xffff)) {
+                return null;
+            }
+            return respAPDU.getData();
+        }
+        curve = ecdhCurve();
+        if (curve != 0) {
+            return getSecretKeyECDH(curve);
+        }
+
+        // ephemeral transport keypair, usually generated in the background
+        KeyPair keyPair = TransportKeyPool.getInstance().take();
+        if (keyPair == null) {
+            return null;
+        }
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+        //byte[] modBytes = new byte[1024];
+        //publicKey.getModulus(modBytes, (short) 0);
+        byte[] modBytes = publicKey.getModulus().toByteArray();
+        //byte[] modBytes = i2os(publicKey.getModulus(), 129);
+        if (modBytes[0] == 0) {
+            byte[] tmp = new byte[modBytes.length - 1];
+            System.arraycopy(modBytes, 1, tmp, 0, tmp.length);
+            modBytes = tmp;
+        }
+
+        byte[] expBytes = publicKey.getPublicExponent().toByteArray();
+        //byte[] expBytes = i2os(publicKey.getPublicExponent(), 129);
+        if (expBytes[0] == 0 && expBytes.length > 128) {
+            byte[] tmp = new byte[expBytes.length - 1];
+            System.arraycopy(expBytes, 1, tmp, 0, tmp.length);
+            expBytes = tmp;
+        }
+
+        ResponseAPDU respAPDU = sendHostKey(modBytes, expBytes);
+        if (respAPDU == null) {
+            return null;
+        }
+
+        byte[] encryptedSecretKey = respAPDU.getData();
+        PrivateKey privateKey = keyPair.getPrivate();
+        Cipher cipher;
+        try {
+            cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        } catch (NoSuchAlgorithmException ex) {
+            // For debugging print out exception
+            System.out.println(ex.getMessage());
+            return null;
+        } catch (NoSuchPaddingException ex) {
+            // For debugging print out exception
+            System.out.println(ex.getMessage());
+            return null;
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, (Key) privateKey);
+        } catch (InvalidKeyException ex) {
+            // For debugging print out exception
+            System.out.println(ex.getMessage());
+            return null;
+        }
+
+        byte[] secretKey;
+        try {
+            secretKey = cipher.doFinal(encryptedSecretKey);
+        } catch (IllegalBlockSizeException ex) {
+            // For debugging print out exception
+            System.out.println(ex.getMessage());
+            return null;
+        } catch (BadPaddingException ex) {
+            // For debugging print out exception
+            System.out.println(ex.getMessage());
+            return null;
+        }
+
+        return secretKey;
+    }
+
+    // Sends the host's public key and returns the card's answer with the
+    // encrypted secret key, or null. One command where the applet has
+    // INS_RSA_SEND_SEC_KEY (a 2048-bit modulus is sent chained), otherwise
+    // modulus and exponent separately, which only works for RSA-1024.
+    private ResponseAPDU sendHostKey(byte modBytes[], byte expBytes[]) {
+        byte data[] = Arrays.copyOf(modBytes, modBytes.length + expBytes.length);
+        System.arraycopy(expBytes, 0, data, modBytes.length, expBytes.length);
+        ResponseAPDU respAPDU;
+        try {
+            respAPDU = cardManager.sendAPDU(new CommandAPDU(0xB0, INS_RSA_SEND_SEC_KEY, expBytes.length, 0x00, data, 256));
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return null;
+        }
+        if (respAPDU.getSW() == (SW_OK & 0xffff)) {
+            return respAPDU;
+        }
+        if (respAPDU.getSW() != (SW_INS_NOT_SUPPORTED & 0xffff) || modBytes.length != CARD_MODULUS_LENGTH) {
+            return null;
+        }
+        return sendHostKeySplit(modBytes, expBytes);
+    }
+
+    private ResponseAPDU sendHostKeySplit(byte modBytes[], byte expBytes[]) {
+        byte apdu[] = new byte[CardMngr.HEADER_LENGTH + modBytes.length];
+        apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+        apdu[CardMngr.OFFSET_INS] = INS_SET_MOD;
+        apdu[CardMngr.OFFSET_P1] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_LC] = (byte) modBytes.length;
+
+        System.arraycopy(modBytes, 0, apdu, CardMngr.OFFSET_DATA, modBytes.length);
+        byte response[];
+        try {
+            response = cardManager.sendAPDU(apdu).getBytes();
+            if (response[response.length - 2] != (byte) 0x90 || response[response.length - 1] != (byte) 0x00) {
+                return null;
+            }
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return null;
+        }
+
+        apdu = new byte[CardMngr.HEADER_LENGTH + expBytes.length];
+        apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+        apdu[CardMngr.OFFSET_INS] = INS_SET_EXP_SEND_SEC_KEY;
+        apdu[CardMngr.OFFSET_P1] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_LC] = (byte) expBytes.length;
+        
+        System.arraycopy(expBytes, 0, apdu, CardMngr.OFFSET_DATA, expBytes.length);
+
+        ResponseAPDU respAPDU;
+        try {
+            respAPDU = cardManager.sendAPDU(apdu);
+            response = respAPDU.getBytes();
+            if (response[response.length - 2] != (byte) 0x90 || response[response.length - 1] != (byte) 0x00) {
+                return null;
+            }
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return null;
+        }
+        return respAPDU;
+    }
+
+    private byte[] getSecretKeyECDH(byte curve) {
+        boolean reused = usePINSessionKey && ecTransportKey != null;
+        byte key[] = ecdhTransportKey(curve, false);
+        if (key == null) {
+            return null;
+        }
+
+        byte apdu[] = new byte[CardMngr.HEADER_LENGTH];
+        apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+        apdu[CardMngr.OFFSET_INS] = INS_EC_SEND_SEC_KEY;
+        try {
+            ResponseAPDU respAPDU = cardManager.sendAPDU(apdu);
+            if (reused && respAPDU.getSW() == (SW_CONDITIONS_NOT_SATISFIED & 0xffff)) {
+                key = ecdhTransportKey(curve, true);
+                if (key == null) {
+                    return null;
+                }
+                respAPDU = cardManager.sendAPDU(apdu);
+            }
+            if (respAPDU.getSW() != (SW_OK & 0xffff)) {
+                return null;
+            }
+            return ECDHTransport.decrypt(key, respAPDU.getData());
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the card can wrap per-file keys, which needs the
+     * secure channel.
+     */
+    public boolean isKeyWrapAvailable() {
+        return channelCurve() != 0 && (cardTransports & TRANSPORT_KEY_WRAP) != 0;
+    }
+
+    /**
+     * Has the card generate a random file key. Returns { wrapped key, key },
+     * where the wrapped key can only be unwrapped by this card, or null if
+     * the card refused (e.g. the PIN isn't verified) or can't wrap keys.
+     */
+    public byte[][] newFileKey() {
+        if (!isKeyWrapAvailable()) {
+            return null;
+        }
+        ResponseAPDU respAPDU = sendSecure(INS_NEW_FILE_KEY, new byte[0], channelCurve());
+        if (respAPDU == null || respAPDU.getSW() != (SW_OK & 0xffff) || respAPDU.getNr() != WRAPPED_KEY_LENGTH + 16) {
+            return null;
+        }
+        byte data[] = respAPDU.getData();
+        byte result[][] = {Arrays.copyOf(data, WRAPPED_KEY_LENGTH), Arrays.copyOfRange(data, WRAPPED_KEY_LENGTH, data.length)};
+        Arrays.fill(data, (byte) 0);
+        return result;
+    }
+
+    /**
+     * Unwraps a file key from newFileKey() with one command. Returns null if
+     * the card refused, e.g. the PIN isn't verified or the key was wrapped
+     * by another card.
+     */
+    public byte[] unwrapFileKey(byte wrappedKey[]) {
+        if (!isKeyWrapAvailable() || wrappedKey.length != WRAPPED_KEY_LENGTH) {
+            return null;
+        }
+        ResponseAPDU respAPDU = sendSecure(INS_UNWRAP_KEY, wrappedKey, channelCurve());
+        if (respAPDU == null || respAPDU.getSW() != (SW_OK & 0xffff)) {
+            return null;
+        }
+        return respAPDU.getData();
+    }
+
+    /**
+     * Unwraps many file keys with one command per UNWRAP_BATCH keys, for
+     * bulk jobs over many files. The result has the key for each wrapped
+     * key, or null where the card couldn't unwrap it (damaged, or wrapped
+     * by another card). Returns null if the card refused altogether, e.g.
+     * the PIN isn't verified.
+     */
+    public byte[][] unwrapFileKeys(byte wrappedKeys[][]) {
+        if (!isKeyWrapAvailable()) {
+            return null;
+        }
+        byte keys[][] = new byte[wrappedKeys.length][];
+        int i = 0;
+        while (i < wrappedKeys.length) {
+            // collect the next batch, skipping keys of the wrong length
+            int batch[] = new int[UNWRAP_BATCH];
+            int n = 0;
+            for (; i < wrappedKeys.length && n < UNWRAP_BATCH; i++) {
+                if (wrappedKeys[i] != null && wrappedKeys[i].length == WRAPPED_KEY_LENGTH) {
+                    batch[n++] = i;
+                }
+            }
+            if (n == 0) {
+                break;
+            }
+            byte payload[] = new byte[n * WRAPPED_KEY_LENGTH];
+            for (int j = 0; j < n; j++) {
+                System.arraycopy(wrappedKeys[batch[j]], 0, payload, j * WRAPPED_KEY_LENGTH, WRAPPED_KEY_LENGTH);
+            }
+
+            ResponseAPDU respAPDU = sendSecure(INS_UNWRAP_KEYS, payload, channelCurve());
+            if (respAPDU == null || respAPDU.getSW() != (SW_OK & 0xffff) || respAPDU.getNr() != n * 17) {
+                return null;
+            }
+            byte data[] = respAPDU.getData();
+            for (int j = 0; j < n; j++) {
+                if (data[j * 17] == 0) {
+                    keys[batch[j]] = Arrays.copyOfRange(data, j * 17 + 1, j * 17 + 17);
+                }
+            }
+            Arrays.fill(data, (byte) 0);
+        }
+        return keys;
+    }
+
+    public int getTriesRemaining(){
+        byte curve = channelCurve();
+        if (curve != 0) {
+            ResponseAPDU respAPDU = sendSecure(INS_GET_TRIES_REM, new byte[0], curve);
+            if (respAPDU == null || respAPDU.getSW() != (SW_OK & 0xffff) || respAPDU.getNr() != 1) {
+                return -1;
+            }
+            return respAPDU.getData()[0];
+        }
+
+        byte[] apdu = new byte[CardMngr.HEADER_LENGTH ];
+        apdu[CardMngr.OFFSET_CLA] = (byte) 0xB0;
+        apdu[CardMngr.OFFSET_INS] = INS_GET_TRIES_REM;
+        apdu[CardMngr.OFFSET_P1] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_LC] = (byte) 0x00;
+        
+        ResponseAPDU respAPDU;
+        byte[] response;
+        try {
+            respAPDU = cardManager.sendAPDU(apdu);
+            response = respAPDU.getBytes();
+            if (response[response.length - 2] != (byte) 0x90 || response[response.length - 1] != (byte) 0x00) {
+                return -1;
+            }
+        } catch (Exception ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return -1;
+        }
+        
+        return response[0];
+    }
+}
@@ -0,0 +1,113 @@
+package enotes.smartcard;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+
+/**
+ * Host side of the ECDH key transport: an ephemeral EC keypair and the
+ * AES-128 transport key agreed with the card (the first 16 bytes of SHA-1
+ * of the shared x coordinate, which is what the card's ALG_EC_SVDP_DH
+ * produces).
+ *
+ * The curve math uses the BouncyCastle classes that come with jcardsim,
+ * since the JDK no longer supports P-192, the only curve jcardsim offers.
+ *
+ * @author aoeiko
+ */
+class ECDHTransport {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final X9ECParameters curve;
+    private final ECDomainParameters domain;
+    private final AsymmetricCipherKeyPair keyPair;
+    private final int fieldLen;
+
+    /**
+     * Generates an ephemeral keypair on the given curve.
+     *
+     * @param curveName "secp256r1" or "secp192r1"
+     */
+    ECDHTransport(String curveName) {
+        curve = SECNamedCurves.getByName(curveName);
+        domain = new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(), curve.getH());
+        fieldLen = (curve.getCurve().getFieldSize() + 7) / 8;
+        ECKeyPairGenerator gen = new ECKeyPairGenerator();
+        gen.init(new ECKeyGenerationParameters(domain, random));
+        keyPair = gen.generateKeyPair();
+    }
+
+    /** Our public point, uncompressed (04 || x || y) */
+    byte[] getPublicPoint() {
+        return ((ECPublicKeyParameters) keyPair.getPublic()).getQ().getEncoded();
+    }
+
+    /**
+     * Returns the shared secret as the card's ALG_EC_SVDP_DH produces it:
+     * SHA-1 of the shared x coordinate.
+     *
+     * @throws IllegalArgumentException if the point is not on the curve
+     */
+    byte[] agree(byte[] cardPoint) throws GeneralSecurityException {
+        ECPublicKeyParameters cardKey = new ECPublicKeyParameters(curve.getCurve().decodePoint(cardPoint), domain);
+        ECDHBasicAgreement agreement = new ECDHBasicAgreement();
+        agreement.init(keyPair.getPrivate());
+        byte[] x = toFixedLength(agreement.calculateAgreement(cardKey), fieldLen);
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(x);
+        Arrays.fill(x, (byte) 0);
+        return hash;
+    }
+
+    /**
+     * Derives the transport key from the card's public point.
+     *
+     * @throws IllegalArgumentException if the point is not on the curve
+     */
+    byte[] deriveKey(byte[] cardPoint) throws GeneralSecurityException {
+        byte[] hash = agree(cardPoint);
+        byte[] key = Arrays.copyOf(hash, 16);
+        Arrays.fill(hash, (byte) 0);
+        return key;
+    }
+
+    /** PIN block as the card expects it: PIN, 0x80, zeros up to 16 bytes */
+    static byte[] encryptPIN(byte[] key, byte[] pin) throws GeneralSecurityException {
+        byte[] block = new byte[16];
+        System.arraycopy(pin, 0, block, 0, pin.length);
+        block[pin.length] = (byte) 0x80;
+        byte[] encrypted = crypt(Cipher.ENCRYPT_MODE, key, block);
+        Arrays.fill(block, (byte) 0);
+        return encrypted;
+    }
+
+    static byte[] decrypt(byte[] key, byte[] data) throws GeneralSecurityException {
+        return crypt(Cipher.DECRYPT_MODE, key, data);
+    }
+
+    private static byte[] crypt(int mode, byte[] key, byte[] data) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"));
+        return cipher.doFinal(data);
+    }
+
+    private static byte[] toFixedLength(BigInteger i, int size) {
+        byte[] signed = i.toByteArray();
+        byte[] os = new byte[size];
+        int n = Math.min(signed.length, size);
+        System.arraycopy(signed, signed.length - n, os, size - n, n);
+        return os;
+    }
+}
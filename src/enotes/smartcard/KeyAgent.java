@@ -0,0 +1,354 @@
+package enotes.smartcard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+
+/**
+ * A process that owns the card and the session key cache, so several
+ * editors (and command line tools) share one card connection and one PIN
+ * entry. Clients talk to it through KeyAgentClient over a Unix domain
+ * socket; every request goes through the agent's CardService, so requests
+ * from different processes are queued and coalesced like those of one.
+ *
+ * The socket is enotes.agent.socket, by default ~/.enotes/agent.sock. Its
+ * directory must belong to the user and is made readable by the owner
+ * only, which is what keeps other users away from the unlocked card.
+ *
+ * Usage: KeyAgent [status | lock]
+ *
+ * @author aoeiko
+ */
+public class KeyAgent {
+
+    // Requests: the op, then its arguments. Replies: a status, then the result.
+    static final byte OP_TRIES_REMAINING = 1;
+    static final byte OP_VERIFY_PIN = 2;
+    static final byte OP_CHANGE_PIN = 3;
+    static final byte OP_GET_SECRET_KEY = 4;
+    static final byte OP_KEY_WRAP_AVAILABLE = 5;
+    static final byte OP_NEW_FILE_KEY = 6;
+    static final byte OP_UNWRAP_FILE_KEY = 7;
+    static final byte OP_UNWRAP_FILE_KEYS = 8;
+    static final byte OP_IS_UNLOCKED = 9;
+    static final byte OP_LOCK = 10;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_FAILED = 1;
+
+    // Largest array in a request or reply: a wrapped file key; PINs and
+    // keys are shorter. Largest count: keys unwrapped in one request.
+    static final int MAX_BYTES = CardSession.WRAPPED_KEY_LENGTH;
+    static final int MAX_ARRAYS = 1024;
+
+    private final Path socket;
+    private ServerSocketChannel server = null;
+
+    /** The agent's socket, from enotes.agent.socket or ~/.enotes/agent.sock */
+    public static Path getSocketPath() {
+        String path = System.getProperty("enotes.agent.socket");
+        if (path != null)
+            return Paths.get(path);
+        return Paths.get(System.getProperty("user.home"), ".enotes", "agent.sock");
+    }
+
+    public KeyAgent(Path socket) {
+        this.socket = socket;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            KeyAgentClient client = KeyAgentClient.connect();
+            if (client == null) {
+                System.err.println("No key agent at " + getSocketPath());
+                System.exit(1);
+            }
+            if (args[0].equals("lock"))
+                client.lock();
+            System.out.println((client.isUnlocked() ? "unlocked" : "locked")
+                    + ", tries remaining " + client.getTriesRemaining());
+            client.close();
+            return;
+        }
+
+        // clients connecting before the card is ready wait in the backlog
+        final KeyAgent agent = new KeyAgent(getSocketPath());
+        agent.bind();
+        Runtime.getRuntime().addShutdownHook(new Thread("enotes key agent shutdown") {
+            @Override
+            public void run() {
+                agent.close();
+            }
+        });
+
+        // start generating transport keys while the first editor asks for the PIN
+        TransportKeyPool.getInstance();
+        if (!CardCommunication.connectToCard()) {
+            System.err.println("No smart card present!");
+            System.exit(1);
+        }
+        if (!CardCommunication.isSimulatorBackend())
+            CardPresenceMonitor.getInstance();
+
+        System.out.println("Key agent listening on " + agent.socket);
+        agent.serve();
+    }
+
+    /**
+     * Creates the socket; fails if another agent is running.
+     */
+    public synchronized void bind() throws IOException {
+        server = bindPrivate(socket);
+        if (server == null)
+            throw new IOException("A key agent is already running on " + socket);
+    }
+
+    /**
+     * Binds a Unix domain socket only its owner can use, in a directory
+     * readable by the owner only: created so, or restricted if it exists;
+     * fails if the directory belongs to another user. A socket file nobody
+     * answers on is left over from a process that died and is replaced; if
+     * a process answers, returns null.
+     */
+    public static ServerSocketChannel bindPrivate(Path socket) throws IOException {
+        Path dir = socket.toAbsolutePath().getParent();
+        if (!Files.isDirectory(dir))
+            Files.createDirectories(dir);
+        else if (!isOwner(dir))
+            throw new IOException(dir + " belongs to another user");
+        restrict(dir, "rwx------");
+        if (Files.exists(socket)) {
+            SocketChannel running = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                running.connect(UnixDomainSocketAddress.of(socket));
+                return null;
+            } catch (IOException ex) {
+                Files.delete(socket);
+            } finally {
+                running.close();
+            }
+        }
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        restrict(socket, "rw-------");
+        return server;
+    }
+
+    /**
+     * Accepts clients until the socket is closed, each on a thread of its
+     * own.
+     */
+    public void serve() {
+        ServerSocketChannel s;
+        synchronized (this) {
+            s = server;
+        }
+        while (s.isOpen()) {
+            final SocketChannel client;
+            try {
+                client = s.accept();
+            } catch (IOException ex) {
+                if (s.isOpen())
+                    System.out.println("Exception: " + ex.getMessage());
+                continue;
+            }
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    handle(client);
+                }
+            }, "enotes key agent client");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (server != null)
+                server.close();
+            Files.deleteIfExists(socket);
+        } catch (IOException ex) {
+            System.out.println("Exception: " + ex.getMessage());
+        }
+    }
+
+    // Answers one client's requests until it disconnects
+    private static void handle(SocketChannel client) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException ex) {
+                    return;
+                }
+                try {
+                    execute(op, in, out);
+                } catch (RuntimeException ex) {
+                    // the card operation failed; arguments were read, the client waits
+                    out.writeByte(STATUS_FAILED);
+                }
+                out.flush();
+            }
+        } catch (IOException ex) {
+            System.out.println("Exception: " + ex.getMessage());
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    private static void execute(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+        CardService card = CardService.getInstance();
+        byte pin[];
+        switch (op) {
+            case OP_TRIES_REMAINING:
+                int tries = card.getTriesRemaining().join();
+                out.writeByte(STATUS_OK);
+                out.writeInt(tries);
+                break;
+            case OP_VERIFY_PIN:
+            case OP_CHANGE_PIN:
+                pin = readBytes(in);
+                try {
+                    boolean ok = (op == OP_VERIFY_PIN ? card.verifyPIN(pin) : card.changePIN(pin)).join();
+                    out.writeByte(STATUS_OK);
+                    out.writeBoolean(ok);
+                } finally {
+                    Arrays.fill(pin, (byte) 0);
+                }
+                break;
+            case OP_GET_SECRET_KEY:
+                writeKey(out, card.getSecretKey().join());
+                break;
+            case OP_KEY_WRAP_AVAILABLE:
+                boolean available = card.isKeyWrapAvailable().join();
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(available);
+                break;
+            case OP_NEW_FILE_KEY:
+                writeKeys(out, card.newFileKey().join());
+                break;
+            case OP_UNWRAP_FILE_KEY:
+                writeKey(out, card.unwrapFileKey(readBytes(in)).join());
+                break;
+            case OP_UNWRAP_FILE_KEYS:
+                writeKeys(out, card.unwrapFileKeys(readArrays(in)).join());
+                break;
+            case OP_IS_UNLOCKED:
+                out.writeByte(STATUS_OK);
+                out.writeBoolean(SessionKeyCache.isUnlocked());
+                break;
+            case OP_LOCK:
+                card.lock().join();
+                out.writeByte(STATUS_OK);
+                break;
+            default:
+                throw new IOException("Unknown key agent request " + op);
+        }
+    }
+
+    // Writes the key and zeroes it
+    private static void writeKey(DataOutputStream out, byte key[]) throws IOException {
+        out.writeByte(STATUS_OK);
+        writeBytes(out, key);
+        if (key != null)
+            Arrays.fill(key, (byte) 0);
+    }
+
+    private static void writeKeys(DataOutputStream out, byte keys[][]) throws IOException {
+        out.writeByte(STATUS_OK);
+        writeArrays(out, keys);
+        if (keys != null)
+            for (byte key[] : keys)
+                if (key != null)
+                    Arrays.fill(key, (byte) 0);
+    }
+
+    // A length, -1 for null, and the bytes
+    static void writeBytes(DataOutputStream out, byte b[]) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        if (length > MAX_BYTES)
+            throw new IOException("Key agent message too long: " + length + " bytes");
+        byte b[] = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    // A count, -1 for null, and the arrays
+    static void writeArrays(DataOutputStream out, byte b[][]) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        for (byte a[] : b)
+            writeBytes(out, a);
+    }
+
+    static byte[][] readArrays(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0)
+            return null;
+        if (count > MAX_ARRAYS)
+            throw new IOException("Key agent message too long: " + count + " keys");
+        byte b[][] = new byte[count][];
+        for (int i = 0; i < count; i++)
+            b[i] = readBytes(in);
+        return b;
+    }
+
+    // Whether path belongs to the user running this; true where owners are unknown
+    private static boolean isOwner(Path path) throws IOException {
+        try {
+            UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            return user.equals(Files.getOwner(path));
+        } catch (UnsupportedOperationException ex) {
+            return true;
+        }
+    }
+
+    private static void restrict(Path path, String permissions) throws IOException {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+        } catch (UnsupportedOperationException ex) {
+            // not a POSIX file system; only the owner's profile protects it
+            File f = path.toFile();
+            f.setReadable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(false, false);
+            f.setWritable(true, true);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package enotes.smartcard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Connection to a KeyAgent. The methods are those of CardCommunication
+ * and fail the same way (null, false or -1, printing the exception); a
+ * broken connection is reopened on the next request.
+ *
+ * @author aoeiko
+ */
+public class KeyAgentClient {
+
+    private final Path socket;
+    private SocketChannel channel = null;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    /** The agent on KeyAgent.getSocketPath(), or null if none is running */
+    public static KeyAgentClient connect() {
+        return connect(KeyAgent.getSocketPath());
+    }
+
+    public static KeyAgentClient connect(Path socket) {
+        if (!Files.exists(socket))
+            return null;
+        KeyAgentClient client = new KeyAgentClient(socket);
+        try {
+            client.open();
+        } catch (IOException ex) {
+            return null;
+        }
+        return client;
+    }
+
+    private KeyAgentClient(Path socket) {
+        this.socket = socket;
+    }
+
+    public synchronized int getTriesRemaining() {
+        try {
+            return request(KeyAgent.OP_TRIES_REMAINING) ? in.readInt() : -1;
+        } catch (IOException ex) {
+            return failed(ex, -1);
+        }
+    }
+
+    public boolean verifyPIN(byte pin[]) {
+        return sendPIN(KeyAgent.OP_VERIFY_PIN, pin);
+    }
+
+    public boolean changePIN(byte pin[]) {
+        return sendPIN(KeyAgent.OP_CHANGE_PIN, pin);
+    }
+
+    public synchronized byte[] getSecretKey() {
+        try {
+            return request(KeyAgent.OP_GET_SECRET_KEY) ? KeyAgent.readBytes(in) : null;
+        } catch (IOException ex) {
+            return failed(ex, null);
+        }
+    }
+
+    public synchronized boolean isKeyWrapAvailable() {
+        try {
+            return request(KeyAgent.OP_KEY_WRAP_AVAILABLE) && in.readBoolean();
+        } catch (IOException ex) {
+            return failed(ex, false);
+        }
+    }
+
+    public synchronized byte[][] newFileKey() {
+        try {
+            return request(KeyAgent.OP_NEW_FILE_KEY) ? KeyAgent.readArrays(in) : null;
+        } catch (IOException ex) {
+            return failed(ex, null);
+        }
+    }
+
+    public synchronized byte[] unwrapFileKey(byte wrappedKey[]) {
+        try {
+            open();
+            out.writeByte(KeyAgent.OP_UNWRAP_FILE_KEY);
+            KeyAgent.writeBytes(out, wrappedKey);
+            return reply() ? KeyAgent.readBytes(in) : null;
+        } catch (IOException ex) {
+            return failed(ex, null);
+        }
+    }
+
+    /** Unwraps the keys in requests of up to KeyAgent.MAX_ARRAYS keys */
+    public synchronized byte[][] unwrapFileKeys(byte wrappedKeys[][]) {
+        if (wrappedKeys == null)
+            return null;
+        try {
+            byte keys[][] = new byte[wrappedKeys.length][];
+            for (int i = 0; i < wrappedKeys.length; i += KeyAgent.MAX_ARRAYS) {
+                byte part[][] = Arrays.copyOfRange(wrappedKeys, i, Math.min(i + KeyAgent.MAX_ARRAYS, wrappedKeys.length));
+                open();
+                out.writeByte(KeyAgent.OP_UNWRAP_FILE_KEYS);
+                KeyAgent.writeArrays(out, part);
+                byte unwrapped[][] = reply() ? KeyAgent.readArrays(in) : null;
+                if (unwrapped == null)
+                    return null;
+                System.arraycopy(unwrapped, 0, keys, i, unwrapped.length);
+            }
+            return keys;
+        } catch (IOException ex) {
+            return failed(ex, null);
+        }
+    }
+
+    /** True while the agent's card has a verified PIN, i.e. no PIN is needed */
+    public synchronized boolean isUnlocked() {
+        try {
+            return request(KeyAgent.OP_IS_UNLOCKED) && in.readBoolean();
+        } catch (IOException ex) {
+            return failed(ex, false);
+        }
+    }
+
+    /** Makes the agent forget the secret key and the card the PIN */
+    public synchronized boolean lock() {
+        try {
+            return request(KeyAgent.OP_LOCK);
+        } catch (IOException ex) {
+            return failed(ex, false);
+        }
+    }
+
+    public synchronized void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException ex) {
+        }
+        channel = null;
+    }
+
+    private synchronized boolean sendPIN(byte op, byte pin[]) {
+        try {
+            open();
+            out.writeByte(op);
+            KeyAgent.writeBytes(out, pin);
+            return reply() && in.readBoolean();
+        } catch (IOException ex) {
+            return failed(ex, false);
+        }
+    }
+
+    // Sends a request without arguments; true if the agent answers OK
+    private boolean request(byte op) throws IOException {
+        open();
+        out.writeByte(op);
+        return reply();
+    }
+
+    private boolean reply() throws IOException {
+        out.flush();
+        return in.readByte() == KeyAgent.STATUS_OK;
+    }
+
+    private void open() throws IOException {
+        if (channel != null)
+            return;
+        SocketChannel c = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            c.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException ex) {
+            c.close();
+            throw ex;
+        }
+        channel = c;
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+    }
+
+    // The connection is in an unknown state after an error
+    private <T> T failed(IOException ex, T result) {
+        // For debugging print out exception
+        System.out.println("Exception: " + ex.getMessage());
+        close();
+        return result;
+    }
+}
@@ -0,0 +1,223 @@
+package enotes.smartcard;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Host side of the secure messaging session with EnotesApplet. One ECDH
+ * handshake (INS_OPEN_CHANNEL) gives both sides AES-128 keys for
+ * encryption and MAC:
+ *
+ *   K       = SHA-1(shared x coordinate)
+ *   K_enc   = SHA-1(K || 01), first 16 bytes
+ *   K_mac   = SHA-1(K || 02), first 16 bytes
+ *
+ * The card proves it has the keys by returning
+ * CMAC(K_mac, host point || card point), truncated to 8 bytes.
+ *
+ * A protected command is CLA_SECURE, the INS of the plain command, P1 = P2
+ * = 0 and data SEQ || AES-CTR(payload) || C-MAC, where SEQ counts commands
+ * from 1 and C-MAC is the first 8 bytes of the CMAC over the APDU up to
+ * and including the encrypted payload. Lc is in extended form there if the
+ * data is longer than 255 bytes, whether the command then goes out as an
+ * extended APDU or chained. The response is AES-CTR(data || status word)
+ * || R-MAC with SW 9000; R-MAC is the CMAC over the full 16-byte C-MAC of
+ * the command and the encrypted response. Counter blocks
+ * are DIR || 00 .. 00 || SEQ || block number, DIR being 01 for commands
+ * and 02 for responses.
+ *
+ * @author aoeiko
+ */
+class SecureChannel {
+
+    static final byte CLA_SECURE = (byte) 0xB4;
+    static final int MAC_LENGTH = 8;
+
+    private static final byte DIR_COMMAND = (byte) 0x01;
+    private static final byte DIR_RESPONSE = (byte) 0x02;
+
+    private final ECDHTransport ecdh;
+    private byte[] encKey = null;
+    private byte[] macKey = null;
+    private int seq = 0;
+    private byte[] lastCommandMac = null;
+
+    SecureChannel(String curveName) {
+        ecdh = new ECDHTransport(curveName);
+    }
+
+    /** Data of INS_OPEN_CHANNEL */
+    byte[] getPublicPoint() {
+        return ecdh.getPublicPoint();
+    }
+
+    /**
+     * Derives the session keys from the card's answer to INS_OPEN_CHANNEL
+     * and checks the card's key confirmation.
+     *
+     * @throws GeneralSecurityException if the confirmation doesn't match
+     */
+    void open(byte[] response) throws GeneralSecurityException {
+        if (response.length <= MAC_LENGTH) {
+            throw new GeneralSecurityException("Short channel response");
+        }
+        byte[] hostPoint = ecdh.getPublicPoint();
+        byte[] cardPoint = Arrays.copyOf(response, response.length - MAC_LENGTH);
+        byte[] k = ecdh.agree(cardPoint);
+        encKey = deriveKey(k, (byte) 0x01);
+        macKey = deriveKey(k, (byte) 0x02);
+        Arrays.fill(k, (byte) 0);
+
+        byte[] mac = cmac(concat(hostPoint, cardPoint));
+        if (!MessageDigest.isEqual(Arrays.copyOf(mac, MAC_LENGTH),
+                Arrays.copyOfRange(response, cardPoint.length, response.length))) {
+            close();
+            throw new GeneralSecurityException("Card failed the channel key confirmation");
+        }
+        seq = 0;
+    }
+
+    boolean isOpen() {
+        return macKey != null;
+    }
+
+    /**
+     * Builds the protected APDU for a command.
+     */
+    byte[] wrap(byte ins, byte[] payload) throws GeneralSecurityException {
+        seq++;
+        int lc = 4 + payload.length + MAC_LENGTH;
+        // Lc in extended form for long commands; the MAC covers it either way
+        int header = lc > CardMngr.MAX_SHORT_DATA ? CardMngr.HEADER_LENGTH + 2 : CardMngr.HEADER_LENGTH;
+        byte apdu[] = new byte[header + lc];
+        apdu[CardMngr.OFFSET_CLA] = CLA_SECURE;
+        apdu[CardMngr.OFFSET_INS] = ins;
+        apdu[CardMngr.OFFSET_P1] = (byte) 0x00;
+        apdu[CardMngr.OFFSET_P2] = (byte) 0x00;
+        if (header == CardMngr.HEADER_LENGTH) {
+            apdu[CardMngr.OFFSET_LC] = (byte) lc;
+        } else {
+            apdu[CardMngr.OFFSET_LC] = (byte) 0x00;
+            apdu[CardMngr.OFFSET_LC + 1] = (byte) (lc >>> 8);
+            apdu[CardMngr.OFFSET_LC + 2] = (byte) lc;
+        }
+        int off = header;
+        apdu[off++] = (byte) (seq >>> 24);
+        apdu[off++] = (byte) (seq >>> 16);
+        apdu[off++] = (byte) (seq >>> 8);
+        apdu[off++] = (byte) seq;
+        byte[] encrypted = ctr(DIR_COMMAND, payload);
+        System.arraycopy(encrypted, 0, apdu, off, encrypted.length);
+        off += encrypted.length;
+        lastCommandMac = cmac(Arrays.copyOf(apdu, off));
+        System.arraycopy(lastCommandMac, 0, apdu, off, MAC_LENGTH);
+        return apdu;
+    }
+
+    /**
+     * Checks and decrypts the response to the last wrap()ped command.
+     * Returns the inner response, i.e. the card's data and status word.
+     *
+     * @throws GeneralSecurityException if the response MAC is wrong
+     */
+    ResponseAPDU unwrap(ResponseAPDU response) throws GeneralSecurityException {
+        byte[] data = response.getData();
+        if (data.length < 2 + MAC_LENGTH) {
+            throw new GeneralSecurityException("Short secure response");
+        }
+        byte[] encrypted = Arrays.copyOf(data, data.length - MAC_LENGTH);
+        byte[] mac = cmac(concat(lastCommandMac, encrypted));
+        if (!MessageDigest.isEqual(Arrays.copyOf(mac, MAC_LENGTH),
+                Arrays.copyOfRange(data, encrypted.length, data.length))) {
+            throw new GeneralSecurityException("Bad response MAC");
+        }
+        return new ResponseAPDU(ctr(DIR_RESPONSE, encrypted));
+    }
+
+    /** Forgets the session keys */
+    void close() {
+        if (encKey != null) {
+            Arrays.fill(encKey, (byte) 0);
+            Arrays.fill(macKey, (byte) 0);
+        }
+        encKey = null;
+        macKey = null;
+    }
+
+    private static byte[] deriveKey(byte[] k, byte label) throws GeneralSecurityException {
+        MessageDigest sha = MessageDigest.getInstance("SHA-1");
+        sha.update(k);
+        sha.update(label);
+        byte[] hash = sha.digest();
+        byte[] key = Arrays.copyOf(hash, 16);
+        Arrays.fill(hash, (byte) 0);
+        return key;
+    }
+
+    private byte[] ctr(byte dir, byte[] data) throws GeneralSecurityException {
+        byte[] iv = new byte[16];
+        iv[0] = dir;
+        iv[10] = (byte) (seq >>> 24);
+        iv[11] = (byte) (seq >>> 16);
+        iv[12] = (byte) (seq >>> 8);
+        iv[13] = (byte) seq;
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encKey, "AES"), new IvParameterSpec(iv));
+        return cipher.doFinal(data);
+    }
+
+    // AES-CMAC (RFC 4493), full 16-byte tag
+    private byte[] cmac(byte[] data) throws GeneralSecurityException {
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(macKey, "AES"));
+        byte[] k1 = doubleBlock(aes.doFinal(new byte[16]));
+        byte[] k2 = doubleBlock(k1);
+
+        byte[] state = new byte[16];
+        int pos = 0;
+        while (data.length - pos > 16) {
+            for (int i = 0; i < 16; i++) {
+                state[i] ^= data[pos + i];
+            }
+            state = aes.doFinal(state);
+            pos += 16;
+        }
+        int n = data.length - pos;
+        for (int i = 0; i < n; i++) {
+            state[i] ^= data[pos + i];
+        }
+        byte[] subkey = k1;
+        if (n < 16) {
+            state[n] ^= (byte) 0x80;
+            subkey = k2;
+        }
+        for (int i = 0; i < 16; i++) {
+            state[i] ^= subkey[i];
+        }
+        return aes.doFinal(state);
+    }
+
+    // Multiplication by x in GF(2^128), for the CMAC subkeys
+    private static byte[] doubleBlock(byte[] b) {
+        byte[] r = new byte[16];
+        for (int i = 0; i < 15; i++) {
+            r[i] = (byte) ((b[i] << 1) | ((b[i + 1] & 0xff) >>> 7));
+        }
+        r[15] = (byte) (b[15] << 1);
+        if ((b[0] & 0x80) != 0) {
+            r[15] ^= (byte) 0x87;
+        }
+        return r;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] r = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+}
@@ -0,0 +1,254 @@
+package enotes.smartcard;
+
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+
+/**
+ * Keeps the secret key unwrapped from the card for the rest of the session,
+ * so opening and saving documents doesn't repeat the RSA exchange of
+ * CardCommunication.getSecretKey() every time, and tracks whether the
+ * session is unlocked, i.e. the card has a verified PIN.
+ *
+ * The session is locked (the key zeroed and the unlocked state dropped)
+ * when neither the key nor a file key from the card (keyUsed()) was used
+ * for the idle timeout (system property enotes.keycache.idle, in seconds,
+ * default 300; 0 disables caching and the timeout), when the card is
+ * removed, disconnected or its PIN changed, and on lock(). The idle
+ * timeout also has the card forget the PIN; CardService.lock() does so
+ * for an explicit lock.
+ *
+ * @author aoeiko
+ */
+public class SessionKeyCache {
+
+    static final long DEFAULT_IDLE_SECONDS = 300;
+
+    private static byte[] key = null;
+    private static boolean unlocked = false;
+    private static long lastUsed = 0;
+    private static long idleMillis = Long.getLong("enotes.keycache.idle", DEFAULT_IDLE_SECONDS) * 1000;
+    private static Timer timer = null;
+    private static TimerTask expiry = null;
+    // Incremented by every clear(), so a fetch can tell it raced with one
+    private static long clears = 0;
+
+    // Counters
+    private static long hits = 0;
+    private static long misses = 0;
+    private static long fetches = 0;
+    private static long failedFetches = 0;
+    private static long fetchNanosTotal = 0;
+    private static long fetchNanosMax = 0;
+    private static long lastFetchNanos = 0;
+
+    /**
+     * Returns a copy of the card's secret key, fetching it from the card
+     * only if it isn't cached. Returns null if the card refused (e.g. the
+     * PIN isn't verified).
+     *
+     * The card is asked outside the lock, so lock(), isCached() and the
+     * statistics don't wait for it; a key fetched while the cache was
+     * cleared is returned but not cached.
+     */
+    public static byte[] getSecretKey() {
+        long generation;
+        boolean expired = false;
+        synchronized (SessionKeyCache.class) {
+            // in case the idle timer is late
+            if ((key != null || unlocked) && idleMillis > 0 && System.currentTimeMillis() - lastUsed > idleMillis) {
+                forget();
+                expired = true;
+            }
+            if (key != null) {
+                hits++;
+                touch();
+                return key.clone();
+            }
+            misses++;
+            generation = clears;
+        }
+        if (expired)
+            CardCommunication.logout();
+
+        long t0 = System.nanoTime();
+        byte[] k = CardCommunication.getSecretKey();
+        long t = System.nanoTime() - t0;
+
+        synchronized (SessionKeyCache.class) {
+            fetches++;
+            fetchNanosTotal += t;
+            lastFetchNanos = t;
+            if (t > fetchNanosMax)
+                fetchNanosMax = t;
+            if (k == null) {
+                failedFetches++;
+                return null;
+            }
+            if (idleMillis > 0 && clears == generation) {
+                if (key != null)
+                    Arrays.fill(key, (byte) 0);
+                key = k.clone();
+                touch();
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Called when the card accepted the PIN; starts the idle timeout.
+     */
+    public static synchronized void pinVerified() {
+        unlocked = true;
+        touch();
+    }
+
+    /**
+     * Called when the card handed out a file key; restarts the idle
+     * timeout like a use of the cached key.
+     */
+    public static synchronized void keyUsed() {
+        if (unlocked)
+            touch();
+    }
+
+    /**
+     * Zeroes the cached key and drops the unlocked state; the next
+     * getSecretKey() goes to the card. The card still has the PIN, see
+     * CardService.lock().
+     */
+    public static synchronized void lock() {
+        forget();
+    }
+
+    /**
+     * Called when the card is removed, disconnected or replaced, or its
+     * PIN changed.
+     */
+    public static synchronized void cardRemoved() {
+        forget();
+    }
+
+    public static synchronized boolean isCached() {
+        return key != null;
+    }
+
+    /** True from pinVerified() until the session is locked */
+    public static synchronized boolean isUnlocked() {
+        return unlocked;
+    }
+
+    /**
+     * Sets the idle timeout; 0 disables caching and the timeout and zeroes
+     * the current key.
+     */
+    public static synchronized void setIdleTimeout(long seconds) {
+        idleMillis = seconds * 1000;
+        if (idleMillis <= 0) {
+            clear();
+            cancelExpiry();
+        } else if (key != null || unlocked)
+            touch();
+    }
+
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    public static synchronized long getFetches() {
+        return fetches;
+    }
+
+    public static synchronized long getFailedFetches() {
+        return failedFetches;
+    }
+
+    /** Average card fetch latency in nanoseconds */
+    public static synchronized long getAverageFetchNanos() {
+        return fetches == 0 ? 0 : fetchNanosTotal / fetches;
+    }
+
+    public static synchronized long getMaxFetchNanos() {
+        return fetchNanosMax;
+    }
+
+    public static synchronized long getLastFetchNanos() {
+        return lastFetchNanos;
+    }
+
+    public static synchronized void resetStats() {
+        hits = misses = fetches = failedFetches = 0;
+        fetchNanosTotal = fetchNanosMax = lastFetchNanos = 0;
+    }
+
+    public static synchronized String getStats() {
+        return String.format("key cache: %d hits, %d misses, %d fetches (%d failed), fetch avg %.1f ms, max %.1f ms, last %.1f ms",
+                hits, misses, fetches, failedFetches, getAverageFetchNanos() / 1e6, fetchNanosMax / 1e6, lastFetchNanos / 1e6);
+    }
+
+    private static void clear() {
+        clears++;
+        if (key != null) {
+            Arrays.fill(key, (byte) 0);
+            key = null;
+        }
+    }
+
+    // Locks the session, without telling the card
+    private static void forget() {
+        clear();
+        unlocked = false;
+        cancelExpiry();
+    }
+
+    private static void cancelExpiry() {
+        if (expiry != null) {
+            expiry.cancel();
+            expiry = null;
+        }
+    }
+
+    // Marks the key as used and (re)arms the idle timer.
+    private static void touch() {
+        lastUsed = System.currentTimeMillis();
+        if (idleMillis <= 0)
+            return;
+        if (expiry != null) {
+            expiry.cancel();
+            timer.purge();
+        }
+        if (timer == null)
+            timer = new Timer("enotes key cache", true);
+        expiry = new TimerTask() {
+            @Override
+            public void run() {
+                expire(this);
+            }
+        };
+        timer.schedule(expiry, idleMillis);
+    }
+
+    // The idle timeout: locks the session and has the card forget the PIN,
+    // on the card's I/O thread, unless the PIN was verified again by then
+    private static void expire(TimerTask task) {
+        synchronized (SessionKeyCache.class) {
+            if (expiry != task)
+                return;
+            forget();
+        }
+        CardService.getInstance().submit(new Callable<Boolean>() {
+            public Boolean call() {
+                synchronized (SessionKeyCache.class) {
+                    if (unlocked)
+                        return false;
+                }
+                return CardCommunication.logout();
+            }
+        });
+    }
+}
@@ -0,0 +1,147 @@
+package enotes.smartcard;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * An in-process jcardsim card. jcardsim 2.2.2 keeps the card runtime in
+ * static fields, so all simulators loaded by one class loader are one card.
+ * shared() is that card for the application's class loader; isolated()
+ * loads jcardsim, its BouncyCastle and the applet package again in a class
+ * loader of its own, giving an independent card. Everything is called
+ * through reflection, since the classes of an isolated card aren't ours.
+ *
+ * @author aoeiko
+ */
+class SimulatedCard {
+
+    // Loaded again for every isolated card
+    private static final String ISOLATED_PACKAGES[] = {
+        "com.licel.", "javacard.", "javacardx.", "org.bouncycastle.", "enotes.smartcard.applet."};
+
+    private static SimulatedCard shared = null;
+
+    private final ClassLoader loader;
+    private Object simulator = null;
+    private Constructor<?> aidConstructor;
+    private Method installApplet;
+    private Method selectApplet;
+    private Method transmitCommand;
+    private Method reset;
+    private boolean installed = false;
+
+    /** The card of the application's own jcardsim runtime */
+    static synchronized SimulatedCard shared() {
+        if (shared == null)
+            shared = new SimulatedCard(SimulatedCard.class.getClassLoader());
+        return shared;
+    }
+
+    /** A card with a jcardsim runtime of its own */
+    static SimulatedCard isolated() {
+        return new SimulatedCard(new IsolatingClassLoader());
+    }
+
+    private SimulatedCard(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    boolean isInstalled() {
+        return installed;
+    }
+
+    /**
+     * Installs and selects the applet, creating the simulator on first use.
+     */
+    synchronized boolean install(byte aid[], byte installData[], Class<?> appletClass) throws Exception {
+        if (simulator == null) {
+            Class<?> simClass = loader.loadClass("com.licel.jcardsim.io.JavaxSmartCardInterface");
+            Class<?> aidClass = loader.loadClass("javacard.framework.AID");
+            aidConstructor = aidClass.getConstructor(byte[].class, short.class, byte.class);
+            installApplet = simClass.getMethod("installApplet", aidClass, Class.class, byte[].class, short.class, byte.class);
+            selectApplet = simClass.getMethod("selectApplet", aidClass);
+            transmitCommand = simClass.getMethod("transmitCommand", CommandAPDU.class);
+            reset = simClass.getMethod("reset");
+            simulator = simClass.getDeclaredConstructor().newInstance();
+        }
+        invoke(installApplet, aid(aid), loader.loadClass(appletClass.getName()),
+                installData, (short) 0, (byte) installData.length);
+        installed = true;
+        return select(aid);
+    }
+
+    synchronized boolean select(byte aid[]) throws Exception {
+        return (Boolean) invoke(selectApplet, aid(aid));
+    }
+
+    synchronized ResponseAPDU transmit(CommandAPDU commandAPDU) throws Exception {
+        return (ResponseAPDU) invoke(transmitCommand, commandAPDU);
+    }
+
+    /** Like pulling the card: transient state and PIN validation are lost */
+    synchronized void reset() throws Exception {
+        if (simulator != null)
+            invoke(reset);
+    }
+
+    private Object aid(byte aid[]) throws Exception {
+        return aidConstructor.newInstance(aid, (short) 0, (byte) aid.length);
+    }
+
+    private Object invoke(Method method, Object... args) throws Exception {
+        try {
+            return method.invoke(simulator, args);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw ex;
+        }
+    }
+
+    // Loads ISOLATED_PACKAGES itself from where our copies came from, the
+    // rest (javax.smartcardio in particular) from the application
+    private static class IsolatingClassLoader extends URLClassLoader {
+
+        IsolatingClassLoader() {
+            super(new URL[]{
+                location("com.licel.jcardsim.io.JavaxSmartCardInterface"),
+                location("enotes.smartcard.applet.EnotesApplet")},
+                    SimulatedCard.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!isolated(name))
+                return super.loadClass(name, resolve);
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null)
+                    c = findClass(name);
+                if (resolve)
+                    resolveClass(c);
+                return c;
+            }
+        }
+
+        private static boolean isolated(String name) {
+            for (String prefix : ISOLATED_PACKAGES)
+                if (name.startsWith(prefix))
+                    return true;
+            return false;
+        }
+
+        private static URL location(String className) {
+            try {
+                return Class.forName(className).getProtectionDomain().getCodeSource().getLocation();
+            } catch (ClassNotFoundException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
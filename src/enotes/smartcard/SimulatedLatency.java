@@ -0,0 +1,174 @@
+package enotes.smartcard;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Random;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Makes the simulated card about as slow as a real one, so benchmarks on
+ * jcardsim show where the time goes. Two parts:
+ *
+ * Processing time per INS, fixed or drawn at random from recorded samples,
+ * charged once per command (not for chained parts or GET RESPONSE).
+ *
+ * Transfer time per byte on the wire at the configured baud rate, for
+ * every APDU. T=0 sends 12 etu per character, plus the procedure byte and
+ * the GET RESPONSE it needs for case 4 commands; T=1 sends 11 etu per
+ * character, in blocks of up to 254 bytes with a 3-byte prologue and an
+ * LRC byte, each but the last acknowledged. A baud rate of 0 (the
+ * default) leaves transfer time out.
+ *
+ * Configured by system properties enotes.sim.protocol (T=0 or T=1,
+ * default T=1), enotes.sim.baud (default 0; 9600 for a card that doesn't
+ * negotiate, readers often reach 115200), enotes.sim.seed (for the
+ * samples) and enotes.sim.latency, a file with one line per instruction:
+ *
+ *   # INS  microseconds ...
+ *   50     1500000
+ *   55     148000 151000 163000 149000
+ *
+ * One value is a fixed time, more are samples.
+ *
+ * @author aoeiko
+ */
+public class SimulatedLatency {
+
+    static final int T0_ETU_PER_CHAR = 12;
+    static final int T1_ETU_PER_CHAR = 11;
+    static final int T1_IFS = 254;
+
+    private static SimulatedLatency instance = null;
+
+    private final long samples[][] = new long[256][];
+    private final Random random;
+    private int protocol = 1;
+    private int baud = 0;
+
+    /**
+     * Returns the shared model, configured from the system properties.
+     */
+    public static synchronized SimulatedLatency getInstance() {
+        if (instance == null) {
+            instance = new SimulatedLatency(Long.getLong("enotes.sim.seed", System.nanoTime()));
+            instance.setTransfer("T=0".equalsIgnoreCase(System.getProperty("enotes.sim.protocol")) ? 0 : 1,
+                    Integer.getInteger("enotes.sim.baud", 0));
+            String file = System.getProperty("enotes.sim.latency");
+            if (file != null) {
+                try {
+                    instance.load(new FileReader(file));
+                } catch (IOException ex) {
+                    // For debugging print out exception
+                    System.out.println("Exception: " + ex.getMessage());
+                }
+            }
+        }
+        return instance;
+    }
+
+    SimulatedLatency(long seed) {
+        random = new Random(seed);
+    }
+
+    /** The card takes the given time for every ins command. */
+    public synchronized void setFixed(byte ins, long micros) {
+        samples[ins & 0xff] = micros > 0 ? new long[]{micros} : null;
+    }
+
+    /** The card takes one of the given times, at random, for every ins command. */
+    public synchronized void setSamples(byte ins, long micros[]) {
+        samples[ins & 0xff] = micros.length > 0 ? micros.clone() : null;
+    }
+
+    /**
+     * Charges transfer time for protocol T=0 or T=1 at the given baud rate;
+     * 0 turns it off.
+     */
+    public synchronized void setTransfer(int protocol, int baud) {
+        if (protocol != 0 && protocol != 1)
+            throw new IllegalArgumentException("Protocol T=" + protocol);
+        this.protocol = protocol;
+        this.baud = Math.max(0, baud);
+    }
+
+    /** Clears all processing times and turns transfer time off. */
+    public synchronized void reset() {
+        for (int i = 0; i < samples.length; i++)
+            samples[i] = null;
+        baud = 0;
+    }
+
+    /**
+     * Reads processing times as described above; lines it doesn't
+     * understand are skipped.
+     */
+    public void load(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int hash = line.indexOf('#');
+                if (hash >= 0)
+                    line = line.substring(0, hash);
+                String fields[] = line.trim().split("\\s+");
+                if (fields.length < 2)
+                    continue;
+                try {
+                    int ins = Integer.parseInt(fields[0], 16);
+                    long micros[] = new long[fields.length - 1];
+                    for (int i = 0; i < micros.length; i++)
+                        micros[i] = Long.parseLong(fields[i + 1]);
+                    if (ins >= 0 && ins < 256)
+                        setSamples((byte) ins, micros);
+                } catch (NumberFormatException ex) {
+                    // not an instruction line
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Processing time of the next ins command, in microseconds */
+    public synchronized long processingMicros(byte ins) {
+        long s[] = samples[ins & 0xff];
+        if (s == null)
+            return 0;
+        return s.length == 1 ? s[0] : s[random.nextInt(s.length)];
+    }
+
+    /** Time the command and its response take on the wire, in microseconds */
+    public synchronized long transferMicros(CommandAPDU command, ResponseAPDU response) {
+        if (baud == 0)
+            return 0;
+        long chars;
+        long etu;
+        if (protocol == 0) {
+            // header, procedure byte, data; case 4 answers 61xx and needs
+            // GET RESPONSE with its own header and procedure byte
+            chars = command.getBytes().length + 1 + response.getBytes().length;
+            if (command.getNc() > 0 && response.getNr() > 0)
+                chars += 2 + CardMngr.HEADER_LENGTH + 1;
+            etu = T0_ETU_PER_CHAR;
+        } else {
+            chars = t1Chars(command.getBytes().length) + t1Chars(response.getBytes().length);
+            etu = T1_ETU_PER_CHAR;
+        }
+        return chars * etu * 1000000L / baud;
+    }
+
+    // I-blocks of NAD, PCB, LEN, up to T1_IFS bytes and LRC; each but the
+    // last acknowledged by a 4-byte R-block
+    private static long t1Chars(int length) {
+        int blocks = Math.max(1, (length + T1_IFS - 1) / T1_IFS);
+        return length + 4 * blocks + 4 * (blocks - 1);
+    }
+
+    static void sleep(long micros) throws InterruptedException {
+        if (micros > 0)
+            Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+    }
+}
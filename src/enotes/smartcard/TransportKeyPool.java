@@ -0,0 +1,127 @@
+package enotes.smartcard;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of ephemeral RSA keypairs used to transport the secret key from the
+ * card. RSA key generation is the slowest host-side step of getSecretKey(),
+ * so a low priority background thread generates keypairs ahead of time and
+ * a key fetch just takes a ready one. Every keypair is handed out once.
+ *
+ * Configured by system properties enotes.keypool.depth (keypairs kept
+ * ready, default 2) and enotes.keypool.keysize (bits, default 1024). The
+ * applet takes 1024 or 2048 bit keys; older applets, which only have
+ * INS_SET_MOD, only 1024.
+ *
+ * @author aoeiko
+ */
+public class TransportKeyPool {
+
+    static final int DEFAULT_DEPTH = 2;
+    static final int DEFAULT_KEY_SIZE = 1024;
+
+    private static TransportKeyPool instance = null;
+
+    private final int keySize;
+    private final BlockingQueue<KeyPair> pool;
+    private final SecureRandom random = new SecureRandom();
+    private final Thread refiller;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Returns the shared pool, starting its background thread on first use.
+     */
+    public static synchronized TransportKeyPool getInstance() {
+        if (instance == null)
+            instance = new TransportKeyPool(Integer.getInteger("enotes.keypool.depth", DEFAULT_DEPTH),
+                    Integer.getInteger("enotes.keypool.keysize", DEFAULT_KEY_SIZE));
+        return instance;
+    }
+
+    public TransportKeyPool(int depth, int keySize) {
+        this.keySize = keySize;
+        this.pool = new ArrayBlockingQueue<KeyPair>(Math.max(1, depth));
+        refiller = new Thread(new Runnable() {
+            public void run() {
+                refill();
+            }
+        }, "enotes transport key pool");
+        refiller.setDaemon(true);
+        refiller.setPriority(Thread.MIN_PRIORITY);
+        if (depth > 0)
+            refiller.start();
+    }
+
+    /**
+     * Returns a fresh keypair; a pooled one if available, otherwise one is
+     * generated on the calling thread. Returns null if RSA isn't available.
+     */
+    public KeyPair take() {
+        KeyPair kp = pool.poll();
+        synchronized (this) {
+            if (kp != null)
+                hits++;
+            else
+                misses++;
+        }
+        if (kp == null)
+            kp = generate();
+        return kp;
+    }
+
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /** Number of keypairs ready right now */
+    public int available() {
+        return pool.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Stops the background thread and drops the pooled keypairs. */
+    public void shutdown() {
+        refiller.interrupt();
+        pool.clear();
+    }
+
+    private void refill() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                KeyPair kp = generate();
+                if (kp == null)
+                    return;
+                pool.put(kp);
+            }
+        } catch (InterruptedException ex) {
+            // shutdown
+        }
+    }
+
+    private KeyPair generate() {
+        KeyPairGenerator keyGen;
+        try {
+            keyGen = KeyPairGenerator.getInstance("RSA");
+        } catch (NoSuchAlgorithmException ex) {
+            // For debugging print out exception
+            System.out.println("Exception: " + ex.getMessage());
+            return null;
+        }
+        keyGen.initialize(keySize, random);
+        return keyGen.genKeyPair();
+    }
+}
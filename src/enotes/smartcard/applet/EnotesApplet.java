@@ -2,12 +2,20 @@ package enotes.smartcard.applet;
 
 import javacard.framework.*;
 import javacard.security.*;
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.*;
 
-public class EnotesApplet  extends javacard.framework.Applet
+public class EnotesApplet  extends javacard.framework.Applet implements ExtendedLength
 {
     // MAIN INSTRUCTION CLASS
     final static byte CLA_ENOTESAPPLET                = (byte) 0xB0;
+    // SAME INSTRUCTIONS WRAPPED IN SECURE MESSAGING
+    final static byte CLA_SECURE                      = (byte) 0xB4;
+    // COMMAND CHAINING: ALL PARTS BUT THE LAST CARRY THIS BIT. OUR CLASSES ALREADY HAVE
+    // THE ISO 7816 CHAINING BIT (0x10) SET, SO CHAINED PARTS ARE B8 AND BC
+    final static byte CLA_CHAINING                    = (byte) 0x08;
+    // ISO GET RESPONSE FOR THE REST OF A LONG RESPONSE (SW 61XX)
+    final static byte INS_GET_RESPONSE                = (byte) 0xC0;
 
     // INSTRUCTIONS
     final static byte INS_GEN_PUB_KEY_MOD            = (byte) 0x50;
@@ -18,6 +26,31 @@ public class EnotesApplet  extends javacard.framework.Applet
     final static byte INS_VERIFYPIN                  = (byte) 0x55;
     final static byte INS_CHANGEPIN                  = (byte) 0x56;
     final static byte INS_GET_TRIES_REM              = (byte) 0x57;
+    final static byte INS_GET_TRANSPORT              = (byte) 0x58;
+    final static byte INS_EC_KEY_AGREE               = (byte) 0x59;
+    final static byte INS_EC_SEND_SEC_KEY            = (byte) 0x5A;
+    final static byte INS_OPEN_CHANNEL               = (byte) 0x5B;
+    // PER-FILE KEYS WRAPPED BY THE CARD, SECURE MESSAGING ONLY
+    final static byte INS_NEW_FILE_KEY               = (byte) 0x5C;
+    final static byte INS_UNWRAP_KEY                 = (byte) 0x5D;
+    final static byte INS_UNWRAP_KEYS                = (byte) 0x5E;
+    // HOST PUBLIC KEY AND SECRET KEY EXPORT IN ONE COMMAND, RSA-1024 OR RSA-2048
+    final static byte INS_RSA_SEND_SEC_KEY           = (byte) 0x5F;
+
+    // P1 OF INS_GEN_PUB_KEY_MOD: KEEP THE KEYPAIR FOR THE REST OF THE SESSION
+    final static byte P1_SESSION_KEY                 = (byte) 0x01;
+    // P2 OF INS_GEN_PUB_KEY_MOD: RETURN MODULUS || EXPONENT || EXPONENT LENGTH
+    final static byte P2_WITH_EXPONENT               = (byte) 0x01;
+
+    // KEY TRANSPORT PROTOCOLS: BITS OF THE INS_GET_TRANSPORT RESPONSE, P1 OF INS_EC_KEY_AGREE
+    final static byte TRANSPORT_RSA                  = (byte) 0x01;
+    final static byte TRANSPORT_ECDH_P256            = (byte) 0x02;
+    final static byte TRANSPORT_ECDH_P192            = (byte) 0x04;
+    final static byte TRANSPORT_CHANNEL              = (byte) 0x08;
+    final static byte TRANSPORT_KEY_WRAP             = (byte) 0x10;
+
+    // P1 OF INS_VERIFYPIN AND INS_CHANGEPIN: PIN BLOCK ENCRYPTED WITH THE ECDH TRANSPORT KEY
+    final static byte P1_ECDH                        = (byte) 0x02;
     
     final static short ARRAY_LENGTH                  = (short) 0xff;
     
@@ -26,6 +59,40 @@ public class EnotesApplet  extends javacard.framework.Applet
     final static short SW_CONDITIONS_NOT_SATISFIED   = (short) 0x6985;
     final static short PIN_REQUIRED                  = (short) 0x6982;
     final static short WRONG_P1P2                    = (short) 0x6B00;
+    final static short SW_SM_FAILED                  = (short) 0x6988;
+    final static short SW_BYTES_REMAINING            = (short) 0x6100;
+
+    // LONG COMMANDS ARE COLLECTED AND LONG RESPONSES KEPT IN m_chainBuffer. THE DATA STARTS
+    // AT CHAIN_DATA, PRECEDED BY THE COMMAND HEADER WITH LC IN SHORT OR EXTENDED FORM.
+    final static short CHAIN_DATA                    = (short) 7;
+    final static short CHAIN_MAX_DATA                = (short) 512;
+    // m_chainState: CLA AND INS OF THE CHAIN, DATA RECEIVED, PENDING RESPONSE
+    final static short CHAIN_CLA                     = (short) 0;
+    final static short CHAIN_INS                     = (short) 1;
+    final static short CHAIN_LEN                     = (short) 2;
+    final static short RESP_OFF                      = (short) 3;
+    final static short RESP_LEN                      = (short) 4;
+    final static short MAX_RESPONSE_PART             = (short) 255;
+
+    // SECURE MESSAGING STATE IN m_smState: CMAC SUBKEYS, CIPHER BLOCK, KEY STREAM,
+    // C-MAC OF THE LAST COMMAND, SEQUENCE NUMBER
+    final static short SM_K1                         = (short) 0;
+    final static short SM_K2                         = (short) 16;
+    final static short SM_BLOCK                      = (short) 32;
+    final static short SM_STREAM                     = (short) 48;
+    final static short SM_CMAC                       = (short) 64;
+    final static short SM_SEQ                        = (short) 80;
+    final static short SM_SEQ_NEXT                   = (short) 84;
+    final static short SM_STATE_LENGTH               = (short) 88;
+    final static short SM_MAC_LENGTH                 = (short) 8;
+    final static byte  SM_DIR_COMMAND                = (byte) 0x01;
+    final static byte  SM_DIR_RESPONSE               = (byte) 0x02;
+    // PROTECTED RESPONSES ARE BUILT BEHIND THE FULL C-MAC AT THE START OF THE APDU BUFFER
+    final static short SM_RESPONSE                   = (short) 16;
+
+    // WRAPPED FILE KEY: AES-CBC(WRAP KEY, ZERO IV, FILE KEY || 16 x A6)
+    final static short WRAPPED_KEY_LENGTH            = (short) 32;
+    final static byte  WRAP_CHECK                    = (byte) 0xA6;
 
     private   AESKey        m_aesKey = null;
     private   RandomData    m_secureRandom = null;
@@ -33,14 +100,44 @@ public class EnotesApplet  extends javacard.framework.Applet
     private   KeyPair       m_keyPair = null;
     private   RSAPrivateKey m_privateKey = null;
     private   RSAPublicKey  m_publicKey = null;
+    private   RSAPublicKey  m_hostPublicKey = null;
+    private   RSAPublicKey  m_hostPublicKey2048 = null;
     private   Cipher        m_rsaCipher = null;
 
+    // ECDH KEY TRANSPORT, m_ecdhCurve IS 0 IF THE CARD CAN'T DO IT
+    private   byte          m_ecdhCurve = 0;
+    private   short         m_ecFieldLen = 0;
+    private   KeyPair       m_ecKeyPair = null;
+    private   KeyAgreement  m_keyAgreement = null;
+    private   MessageDigest m_sha = null;
+    private   AESKey        m_transportKey = null;
+    private   Cipher        m_aesCipher = null;
+
+    // SECURE MESSAGING SESSION, OPEN WHILE m_macKey IS INITIALIZED
+    private   AESKey        m_encKey = null;
+    private   AESKey        m_macKey = null;
+    private   byte          m_smState[] = null;
+
+    // CARD-RESIDENT KEY FOR PER-FILE KEYS, NEVER LEAVES THE CARD
+    private   AESKey        m_wrapKey = null;
+    private   Cipher        m_wrapCipher = null;
+
     // TEMPORARRY ARRAY IN RAM
     private byte  m_ramArray[] = null;
+
+    // CHAINED COMMANDS AND LONG RESPONSES
+    private byte  m_chainBuffer[] = null;
+    private short m_chainState[] = null;
     
     //indicates whether secret key was generated
     private boolean m_secretKeyIsSet = false;
 
+    //indicates whether the wrap key was generated
+    private boolean m_wrapKeyIsSet = false;
+
+    //[0] indicates that the transport keypair is reused until deselect
+    private boolean m_sessionKey[] = null;
+
     protected EnotesApplet(byte[] buffer, short offset, byte length) 
     {
         if(length > 9) {
@@ -61,6 +158,33 @@ public class EnotesApplet  extends javacard.framework.Applet
             // CREATE RSA KEYS AND PAIR
             m_keyPair = new KeyPair(KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_1024);
             m_rsaCipher = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+            m_sessionKey = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+
+            // HOST PUBLIC KEY FOR SECRET KEY EXPORT, KEPT APART FROM OUR OWN KEYPAIR
+            m_hostPublicKey = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, KeyBuilder.LENGTH_RSA_1024, false);
+            try {
+                m_hostPublicKey2048 = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, KeyBuilder.LENGTH_RSA_2048, false);
+            } catch (CryptoException e) {
+                m_hostPublicKey2048 = null;
+            }
+
+            m_chainBuffer = JCSystem.makeTransientByteArray((short) (CHAIN_DATA + CHAIN_MAX_DATA), JCSystem.CLEAR_ON_DESELECT);
+            m_chainState = JCSystem.makeTransientShortArray((short) 5, JCSystem.CLEAR_ON_DESELECT);
+
+            // EC KEYS FOR THE ECDH TRANSPORT, P-192 IF THE CARD HAS NO P-256
+            if (!buildECKeyPair(TRANSPORT_ECDH_P256))
+                buildECKeyPair(TRANSPORT_ECDH_P192);
+            if (m_ecdhCurve != 0) {
+                m_keyAgreement = KeyAgreement.getInstance(KeyAgreement.ALG_EC_SVDP_DH, false);
+                m_sha = MessageDigest.getInstance(MessageDigest.ALG_SHA, false);
+                m_transportKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+                m_aesCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
+                m_encKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+                m_macKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+                m_smState = JCSystem.makeTransientByteArray(SM_STATE_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+                m_wrapKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+                m_wrapCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+            }
            
         }
 
@@ -75,6 +199,19 @@ public class EnotesApplet  extends javacard.framework.Applet
     public boolean select()
     {
         m_pin.reset();
+        // a transport keypair never outlives the session
+        if (m_privateKey != null) {
+            m_privateKey.clearKey();
+            m_publicKey.clearKey();
+        }
+        m_sessionKey[0] = false;
+        Util.arrayFillNonAtomic(m_chainBuffer, (short) 0, (short) m_chainBuffer.length, (byte) 0);
+        m_chainState[CHAIN_LEN] = 0;
+        m_chainState[RESP_LEN] = 0;
+        if (m_transportKey != null) {
+            m_transportKey.clearKey();
+            closeSecureChannel();
+        }
         return true;
     }
 
@@ -92,8 +229,25 @@ public class EnotesApplet  extends javacard.framework.Applet
         if (selectingApplet())
             return;
 
+        byte cla = apduBuffer[ISO7816.OFFSET_CLA];
+        byte ins = apduBuffer[ISO7816.OFFSET_INS];
+        if (cla == ISO7816.CLA_ISO7816 && ins == INS_GET_RESPONSE) {
+            sendPendingResponse(apdu);
+            return;
+        }
+        // ANY OTHER COMMAND DROPS WHAT'S LEFT OF A LONG RESPONSE
+        m_chainState[RESP_LEN] = 0;
+
+        if ((cla & CLA_CHAINING) != 0) {
+            receiveChainPart(apdu);
+            return;
+        }
+        // A CHAIN ENDS WITH A COMMAND OF THE SAME CLASS AND INSTRUCTION
+        if (m_chainState[CHAIN_LEN] != 0 && (cla != m_chainState[CHAIN_CLA] || ins != m_chainState[CHAIN_INS]))
+            m_chainState[CHAIN_LEN] = 0;
+
         // APDU instruction parser
-        if (apduBuffer[ISO7816.OFFSET_CLA] == CLA_ENOTESAPPLET) {
+        if (cla == CLA_ENOTESAPPLET) {
             switch ( apduBuffer[ISO7816.OFFSET_INS] )
             {
                 case INS_GEN_PUB_KEY_MOD: genKeypairAndReturnModulus(apdu); break;
@@ -104,21 +258,131 @@ public class EnotesApplet  extends javacard.framework.Applet
                 case INS_CHANGEPIN: changePIN(apdu); break;
                 case INS_VERIFYPIN: verifyPIN(apdu); break;
                 case INS_GET_TRIES_REM: getTriesRemaining(apdu); break;
+                case INS_GET_TRANSPORT: getTransport(apdu); break;
+                case INS_EC_KEY_AGREE: ecKeyAgreement(apdu); break;
+                case INS_EC_SEND_SEC_KEY: ecSendSecretKey(apdu); break;
+                case INS_OPEN_CHANNEL: openSecureChannel(apdu); break;
+                case INS_RSA_SEND_SEC_KEY: rsaSendSecretKey(apdu); break;
                 default :
                     // The INS code is not supported by the dispatcher
                     ISOException.throwIt( ISO7816.SW_INS_NOT_SUPPORTED ) ;
                 break ;
             }
         }
+        else if (cla == CLA_SECURE && m_smState != null) {
+            processSecure(apdu);
+        }
         else ISOException.throwIt( ISO7816.SW_CLA_NOT_SUPPORTED);
     }
 
+    // PART OF A CHAINED COMMAND: ONLY COMMANDS THAT CAN BE LONG MAY BE CHAINED
+    void receiveChainPart(APDU apdu)
+    {
+        byte[] apdubuf = apdu.getBuffer();
+        byte   cla = (byte) (apdubuf[ISO7816.OFFSET_CLA] & ~CLA_CHAINING);
+        byte   ins = apdubuf[ISO7816.OFFSET_INS];
+
+        if (!(cla == CLA_ENOTESAPPLET && ins == INS_RSA_SEND_SEC_KEY) && !(cla == CLA_SECURE && m_smState != null)) {
+            m_chainState[CHAIN_LEN] = 0;
+            ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+        }
+        if (m_chainState[CHAIN_LEN] != 0 && (cla != m_chainState[CHAIN_CLA] || ins != m_chainState[CHAIN_INS]))
+            m_chainState[CHAIN_LEN] = 0;
+        m_chainState[CHAIN_CLA] = cla;
+        m_chainState[CHAIN_INS] = ins;
+        appendCommandData(apdu);
+    }
+
+    // APPENDS THE DATA OF THIS APDU, SHORT OR EXTENDED, TO m_chainBuffer
+    void appendCommandData(APDU apdu)
+    {
+        byte[] apdubuf = apdu.getBuffer();
+        short  remaining = apdu.getIncomingLength();
+        short  len = apdu.setIncomingAndReceive();
+        short  off = apdu.getOffsetCdata();
+
+        while (true) {
+            if ((short) (m_chainState[CHAIN_LEN] + len) > CHAIN_MAX_DATA) {
+                m_chainState[CHAIN_LEN] = 0;
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            Util.arrayCopyNonAtomic(apdubuf, off, m_chainBuffer, (short) (CHAIN_DATA + m_chainState[CHAIN_LEN]), len);
+            m_chainState[CHAIN_LEN] += len;
+            remaining -= len;
+            if (remaining <= 0)
+                break;
+            len = apdu.receiveBytes(off);
+        }
+    }
+
+    // RECEIVES THE WHOLE COMMAND, ALONE OR AS THE LAST PART OF A CHAIN, INTO m_chainBuffer
+    // AND PUTS ITS HEADER IN FRONT OF THE DATA; RETURNS THE DATA LENGTH
+    short receiveLongCommand(APDU apdu)
+    {
+        byte[] apdubuf = apdu.getBuffer();
+
+        appendCommandData(apdu);
+        short len = m_chainState[CHAIN_LEN];
+        m_chainState[CHAIN_LEN] = 0;
+
+        short hdr = longCommandHeader(len);
+        Util.arrayCopyNonAtomic(apdubuf, ISO7816.OFFSET_CLA, m_chainBuffer, hdr, (short) 4);
+        if (len > 255) {
+            m_chainBuffer[(short) (hdr + 4)] = 0;
+            Util.setShort(m_chainBuffer, (short) (hdr + 5), len);
+        } else {
+            m_chainBuffer[(short) (hdr + 4)] = (byte) len;
+        }
+        return len;
+    }
+
+    // OFFSET OF THE HEADER OF A LONG COMMAND WITH len DATA BYTES IN m_chainBuffer
+    short longCommandHeader(short len)
+    {
+        return len > 255 ? (short) 0 : (short) 2;
+    }
+
+    // SENDS m_chainBuffer[off..off+len); WHAT DOESN'T FIT ONE RESPONSE IS FETCHED WITH GET RESPONSE
+    void sendLongResponse(APDU apdu, short off, short len)
+    {
+        m_chainState[RESP_OFF] = off;
+        m_chainState[RESP_LEN] = len;
+        sendPendingResponse(apdu);
+    }
+
+    void sendPendingResponse(APDU apdu)
+    {
+        short len = m_chainState[RESP_LEN];
+        if (len == 0)
+            ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+        if (len > MAX_RESPONSE_PART)
+            len = MAX_RESPONSE_PART;
+
+        apdu.setOutgoing();
+        apdu.setOutgoingLength(len);
+        apdu.sendBytesLong(m_chainBuffer, m_chainState[RESP_OFF], len);
+        m_chainState[RESP_OFF] += len;
+        m_chainState[RESP_LEN] -= len;
+
+        short left = m_chainState[RESP_LEN];
+        if (left == 0) {
+            Util.arrayFillNonAtomic(m_chainBuffer, (short) 0, (short) m_chainBuffer.length, (byte) 0);
+            return;
+        }
+        ISOException.throwIt((short) (SW_BYTES_REMAINING | (left > 255 ? 0 : left)));
+    }
+
     short decryptPIN(byte[] apdubuf, short dataLen)
     {
+        if (apdubuf[ISO7816.OFFSET_P1] == P1_ECDH)
+            return decryptPINBlock(apdubuf, dataLen);
+
         m_rsaCipher.init(m_privateKey, Cipher.MODE_DECRYPT);
         short len = m_rsaCipher.doFinal(apdubuf, ISO7816.OFFSET_CDATA, dataLen, m_ramArray, (short) 0);
-        m_privateKey.clearKey();
-        m_publicKey.clearKey();
+        if (!m_sessionKey[0]) {
+            m_privateKey.clearKey();
+            m_publicKey.clearKey();
+        }
         return len;
     }
     
@@ -128,7 +392,12 @@ public class EnotesApplet  extends javacard.framework.Applet
         short     dataLen = apdu.setIncomingAndReceive();     
         
         short PINlen = decryptPIN(apdubuf, dataLen);
-        
+        checkPIN();
+    }
+
+    // CHECKS THE PIN IN m_ramArray[0..4)
+    void checkPIN()
+    {
         if(m_pin.getTriesRemaining() == 0)
             ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 
@@ -142,7 +411,12 @@ public class EnotesApplet  extends javacard.framework.Applet
         short     dataLen = apdu.setIncomingAndReceive();
 
         short PINlen = decryptPIN(apdubuf, dataLen);
-        
+        setPIN();
+    }
+
+    // SETS THE PIN FROM m_ramArray[0..4)
+    void setPIN()
+    {
         if(!m_pin.isValidated())
             ISOException.throwIt(PIN_REQUIRED);
         m_pin.update(m_ramArray, (short) 0, (byte) 4);
@@ -150,13 +424,29 @@ public class EnotesApplet  extends javacard.framework.Applet
     
     void genKeypairAndReturnModulus(APDU apdu)
     {
-        m_keyPair.genKeyPair();
+        // P1_SESSION_KEY: generate once per session, later calls return the same key
+        if (apdu.getBuffer()[ISO7816.OFFSET_P1] == P1_SESSION_KEY) {
+            if (!m_sessionKey[0]) {
+                m_keyPair.genKeyPair();
+                m_sessionKey[0] = true;
+            }
+        }
+        else {
+            m_keyPair.genKeyPair();
+            m_sessionKey[0] = false;
+        }
         m_privateKey = (RSAPrivateKey)m_keyPair.getPrivate();
         /*m_sign = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
         m_sign.init(m_privateKey, Signature.MODE_SIGN);*/
         
         m_publicKey = (RSAPublicKey)m_keyPair.getPublic();
         short modLen = m_publicKey.getModulus(apdu.getBuffer(), ISO7816.OFFSET_CDATA);
+        if (apdu.getBuffer()[ISO7816.OFFSET_P2] == P2_WITH_EXPONENT) {
+            short expLen = m_publicKey.getExponent(apdu.getBuffer(), (short) (ISO7816.OFFSET_CDATA + modLen));
+            modLen += expLen;
+            apdu.getBuffer()[(short) (ISO7816.OFFSET_CDATA + modLen)] = (byte) expLen;
+            modLen++;
+        }
         
         apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, modLen);
     }
@@ -178,7 +468,7 @@ public class EnotesApplet  extends javacard.framework.Applet
         if(dataLen != 128)
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         
-        m_publicKey.setModulus(apdubuf, ISO7816.OFFSET_CDATA, dataLen);        
+        m_hostPublicKey.setModulus(apdubuf, ISO7816.OFFSET_CDATA, dataLen);
     }
     
     void setExponentAndReturnEncryptedKey(APDU apdu)
@@ -199,13 +489,13 @@ public class EnotesApplet  extends javacard.framework.Applet
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);*/
         
         //set public key exponent (modulus is already set)
-        m_publicKey.setExponent(apdubuf, ISO7816.OFFSET_CDATA, dataLen);
+        m_hostPublicKey.setExponent(apdubuf, ISO7816.OFFSET_CDATA, dataLen);
         //init cipher object with public key
 
-        if(!m_publicKey.isInitialized())
+        if(!m_hostPublicKey.isInitialized())
             ISOException.throwIt(ISO7816.SW_WRONG_DATA);
         
-        m_rsaCipher.init(m_publicKey, Cipher.MODE_ENCRYPT);
+        m_rsaCipher.init(m_hostPublicKey, Cipher.MODE_ENCRYPT);
         
         if(!m_secretKeyIsSet){
             generateSecretKey();
@@ -221,6 +511,42 @@ public class EnotesApplet  extends javacard.framework.Applet
     }
     
 
+    // DATA IS THE HOST MODULUS FOLLOWED BY THE EXPONENT, P1 THE EXPONENT LENGTH; A 2048-BIT
+    // MODULUS NEEDS A CHAINED OR EXTENDED COMMAND AND GETS A LONG RESPONSE
+    void rsaSendSecretKey(APDU apdu)
+    {
+        short dataLen = receiveLongCommand(apdu);
+        short expLen = (short) (apdu.getBuffer()[ISO7816.OFFSET_P1] & 0xff);
+        short modLen = (short) (dataLen - expLen);
+
+        if(!m_pin.isValidated())
+            ISOException.throwIt(PIN_REQUIRED);
+        if (expLen == 0 || expLen > 4)
+            ISOException.throwIt(WRONG_P1P2);
+
+        RSAPublicKey hostKey = null;
+        if (modLen == (short) 128)
+            hostKey = m_hostPublicKey;
+        else if (modLen == (short) 256)
+            hostKey = m_hostPublicKey2048;
+        if (hostKey == null)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        hostKey.setModulus(m_chainBuffer, CHAIN_DATA, modLen);
+        hostKey.setExponent(m_chainBuffer, (short) (CHAIN_DATA + modLen), expLen);
+        m_rsaCipher.init(hostKey, Cipher.MODE_ENCRYPT);
+
+        if(!m_secretKeyIsSet){
+            generateSecretKey();
+        }
+
+        m_aesKey.getKey(m_ramArray, (short) 0);
+        short encryptedLen = m_rsaCipher.doFinal(m_ramArray, (short) 0, (short) 16, m_chainBuffer, CHAIN_DATA);
+        Util.arrayFillNonAtomic(m_ramArray, (short) 0, (short) 16, (byte) 0);
+
+        sendLongResponse(apdu, CHAIN_DATA, encryptedLen);
+    }
+
     void generateSecretKey(){
         if(m_secretKeyIsSet)
             ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
@@ -234,6 +560,401 @@ public class EnotesApplet  extends javacard.framework.Applet
     }
     
   
+    // P-256 WITH EXPLICIT PARAMETERS; P-192 ONLY WITH THE CARD'S DEFAULT PARAMETERS
+    // (E.G. JCARDSIM), CHECKED BY GENERATING A KEYPAIR ONCE
+    boolean buildECKeyPair(byte curve)
+    {
+        try {
+            if (curve == TRANSPORT_ECDH_P256) {
+                ECPublicKey  pub  = (ECPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PUBLIC, (short) 256, false);
+                ECPrivateKey priv = (ECPrivateKey) KeyBuilder.buildKey(KeyBuilder.TYPE_EC_FP_PRIVATE, (short) 256, false);
+                ECCurves.setP256(pub);
+                ECCurves.setP256(priv);
+                m_ecKeyPair = new KeyPair(pub, priv);
+                m_ecFieldLen = (short) 32;
+            } else {
+                m_ecKeyPair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_192);
+                m_ecKeyPair.genKeyPair();
+                m_ecFieldLen = (short) 24;
+            }
+        } catch (CryptoException e) {
+            m_ecKeyPair = null;
+            return false;
+        }
+        m_ecdhCurve = curve;
+        return true;
+    }
+
+    void getTransport(APDU apdu)
+    {
+        byte[] apdubuf = apdu.getBuffer();
+
+        apdubuf[0] = TRANSPORT_RSA;
+        if (m_ecdhCurve != 0)
+            apdubuf[0] |= (byte) (m_ecdhCurve | TRANSPORT_CHANNEL | TRANSPORT_KEY_WRAP);
+        apdu.setOutgoingAndSend((short) 0, (short) 1);
+    }
+
+    // HOST SENDS ITS EPHEMERAL EC POINT, CARD ANSWERS WITH ITS OWN; BOTH SIDES THEN
+    // HOLD THE SAME AES TRANSPORT KEY UNTIL THE NEXT AGREEMENT OR DESELECT
+    void ecKeyAgreement(APDU apdu)
+    {
+        byte[] apdubuf = apdu.getBuffer();
+        short  dataLen = apdu.setIncomingAndReceive();
+
+        m_transportKey.clearKey();
+        agreeECDH(apdubuf, dataLen);
+        m_transportKey.setKey(m_ramArray, (short) 0);
+        Util.arrayFillNonAtomic(m_ramArray, (short) 0, MessageDigest.LENGTH_SHA, (byte) 0);
+
+        short len = ((ECPublicKey) m_ecKeyPair.getPublic()).getW(apdubuf, ISO7816.OFFSET_CDATA);
+        apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, len);
+    }
+
+    // GENERATES A FRESH EC KEYPAIR AND AGREES WITH THE HOST'S POINT IN THE APDU;
+    // LEAVES SHA-1 OF THE SHARED X COORDINATE IN m_ramArray[0..20)
+    void agreeECDH(byte[] apdubuf, short dataLen)
+    {
+        if (m_ecdhCurve == 0 || apdubuf[ISO7816.OFFSET_P1] != m_ecdhCurve)
+            ISOException.throwIt(WRONG_P1P2);
+        if (dataLen != (short) (2 * m_ecFieldLen + 1))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        m_ecKeyPair.genKeyPair();
+        m_keyAgreement.init(m_ecKeyPair.getPrivate());
+        short secretLen = 0;
+        try {
+            secretLen = m_keyAgreement.generateSecret(apdubuf, ISO7816.OFFSET_CDATA, dataLen, m_ramArray, (short) 0);
+        } catch (CryptoException e) {
+            // not a point on the curve
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+
+        if (secretLen != MessageDigest.LENGTH_SHA) {
+            // plain x coordinate instead of its hash (e.g. jcardsim), hash it here
+            short skip = (short) (secretLen - m_ecFieldLen);
+            short pad = 0;
+            if (skip < 0) {
+                pad = (short) -skip;
+                skip = 0;
+            }
+            Util.arrayFillNonAtomic(m_ramArray, (short) 128, pad, (byte) 0);
+            Util.arrayCopyNonAtomic(m_ramArray, skip, m_ramArray, (short) (128 + pad), (short) (secretLen - skip));
+            m_sha.doFinal(m_ramArray, (short) 128, m_ecFieldLen, m_ramArray, (short) 0);
+            Util.arrayFillNonAtomic(m_ramArray, MessageDigest.LENGTH_SHA, (short) (128 + m_ecFieldLen - MessageDigest.LENGTH_SHA), (byte) 0);
+        }
+    }
+
+    // PIN BLOCK IS THE PIN FOLLOWED BY ISO 9797-1 PADDING (0x80 00 .. 00); BAD PADDING MEANS
+    // THE HOST USED ANOTHER KEY, WHICH MUSTN'T COST A PIN TRY
+    short decryptPINBlock(byte[] apdubuf, short dataLen)
+    {
+        if (m_transportKey == null || !m_transportKey.isInitialized())
+            ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+        if (dataLen != (short) 16)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        m_aesCipher.init(m_transportKey, Cipher.MODE_DECRYPT);
+        m_aesCipher.doFinal(apdubuf, ISO7816.OFFSET_CDATA, dataLen, m_ramArray, (short) 0);
+        if (m_ramArray[4] != (byte) 0x80)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        for (short i = 5; i < 16; i++) {
+            if (m_ramArray[i] != 0)
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        return (short) 4;
+    }
+
+    void ecSendSecretKey(APDU apdu)
+    {
+        byte[] apdubuf = apdu.getBuffer();
+
+        if(!m_pin.isValidated())
+            ISOException.throwIt(PIN_REQUIRED);
+        if (m_transportKey == null || !m_transportKey.isInitialized())
+            ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+
+        if(!m_secretKeyIsSet){
+            generateSecretKey();
+        }
+
+        m_aesKey.getKey(m_ramArray, (short) 0);
+        m_aesCipher.init(m_transportKey, Cipher.MODE_ENCRYPT);
+        m_aesCipher.doFinal(m_ramArray, (short) 0, (short) 16, apdubuf, ISO7816.OFFSET_CDATA);
+        Util.arrayFillNonAtomic(m_ramArray, (short) 0, (short) 16, (byte) 0);
+
+        apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, (short) 16);
+    }
+
+    // ONE ECDH HANDSHAKE PER SESSION: K = SHA-1(X), K_ENC = SHA-1(K || 01), K_MAC = SHA-1(K || 02),
+    // FIRST 16 BYTES EACH. THE CARD CONFIRMS WITH CMAC(K_MAC, HOST POINT || CARD POINT).
+    void openSecureChannel(APDU apdu)
+    {
+        byte[] apdubuf = apdu.getBuffer();
+        short  dataLen = apdu.setIncomingAndReceive();
+
+        closeSecureChannel();
+        agreeECDH(apdubuf, dataLen);
+        m_ramArray[MessageDigest.LENGTH_SHA] = (byte) 0x01;
+        m_sha.doFinal(m_ramArray, (short) 0, (short) (MessageDigest.LENGTH_SHA + 1), m_ramArray, (short) 32);
+        m_encKey.setKey(m_ramArray, (short) 32);
+        m_ramArray[MessageDigest.LENGTH_SHA] = (byte) 0x02;
+        m_sha.doFinal(m_ramArray, (short) 0, (short) (MessageDigest.LENGTH_SHA + 1), m_ramArray, (short) 32);
+        m_macKey.setKey(m_ramArray, (short) 32);
+        Util.arrayFillNonAtomic(m_ramArray, (short) 0, (short) 64, (byte) 0);
+
+        // CMAC SUBKEYS FROM L = AES(K_MAC, 0)
+        m_aesCipher.init(m_macKey, Cipher.MODE_ENCRYPT);
+        m_aesCipher.doFinal(m_smState, SM_BLOCK, (short) 16, m_smState, SM_K1);
+        doubleBlock(SM_K1);
+        Util.arrayCopyNonAtomic(m_smState, SM_K1, m_smState, SM_K2, (short) 16);
+        doubleBlock(SM_K2);
+
+        // CARD POINT GOES RIGHT BEHIND THE HOST'S, THE CONFIRMATION BEHIND THAT
+        short pointOff = (short) (ISO7816.OFFSET_CDATA + dataLen);
+        short len = ((ECPublicKey) m_ecKeyPair.getPublic()).getW(apdubuf, pointOff);
+        cmac(apdubuf, ISO7816.OFFSET_CDATA, (short) (dataLen + len), m_smState, SM_BLOCK);
+        Util.arrayCopyNonAtomic(m_smState, SM_BLOCK, apdubuf, (short) (pointOff + len), SM_MAC_LENGTH);
+        apdu.setOutgoingAndSend(pointOff, (short) (len + SM_MAC_LENGTH));
+    }
+
+    void closeSecureChannel()
+    {
+        m_encKey.clearKey();
+        m_macKey.clearKey();
+        Util.arrayFillNonAtomic(m_smState, (short) 0, SM_STATE_LENGTH, (byte) 0);
+    }
+
+    // COMMAND DATA: SEQ(4) || AES-CTR(PAYLOAD) || C-MAC(8), C-MAC OVER THE APDU UP TO THE
+    // ENCRYPTED PAYLOAD. RESPONSE: AES-CTR(DATA || SW) || R-MAC(8), R-MAC OVER THE FULL
+    // C-MAC AND THE ENCRYPTED RESPONSE, SENT WITH 9000. A BAD MAC OR SEQUENCE NUMBER
+    // CLOSES THE CHANNEL.
+    void processSecure(APDU apdu)
+    {
+        byte[] apdubuf = apdu.getBuffer();
+        short  dataLen = receiveLongCommand(apdu);
+
+        if (!m_macKey.isInitialized())
+            ISOException.throwIt(SW_CONDITIONS_NOT_SATISFIED);
+
+        short encLen = (short) (dataLen - 4 - SM_MAC_LENGTH);
+        short encOff = (short) (CHAIN_DATA + 4);
+        short macOff = (short) (encOff + encLen);
+        if (encLen < 0) {
+            closeSecureChannel();
+            ISOException.throwIt(SW_SM_FAILED);
+        }
+
+        // SEQUENCE NUMBER MUST BE THE PREVIOUS ONE PLUS ONE
+        Util.arrayCopyNonAtomic(m_smState, SM_SEQ, m_smState, SM_SEQ_NEXT, (short) 4);
+        for (short i = (short) (SM_SEQ_NEXT + 3); i >= SM_SEQ_NEXT; i--) {
+            if (++m_smState[i] != 0)
+                break;
+        }
+        short hdr = longCommandHeader(dataLen);
+        cmac(m_chainBuffer, hdr, (short) (macOff - hdr), m_smState, SM_CMAC);
+        if (Util.arrayCompare(m_chainBuffer, CHAIN_DATA, m_smState, SM_SEQ_NEXT, (short) 4) != 0
+                || Util.arrayCompare(m_chainBuffer, macOff, m_smState, SM_CMAC, SM_MAC_LENGTH) != 0) {
+            closeSecureChannel();
+            ISOException.throwIt(SW_SM_FAILED);
+        }
+        Util.arrayCopyNonAtomic(m_smState, SM_SEQ_NEXT, m_smState, SM_SEQ, (short) 4);
+
+        ctr(SM_DIR_COMMAND, m_chainBuffer, encOff, encLen);
+
+        short respLen = 0;
+        short sw = ISO7816.SW_NO_ERROR;
+        try {
+            respLen = processSecureCommand(apdubuf[ISO7816.OFFSET_INS], m_chainBuffer, encOff, encLen, apdubuf, SM_RESPONSE);
+        } catch (ISOException e) {
+            sw = e.getReason();
+            respLen = 0;
+        }
+        Util.arrayFillNonAtomic(m_chainBuffer, encOff, encLen, (byte) 0);
+        Util.arrayFillNonAtomic(m_ramArray, (short) 0, (short) 16, (byte) 0);
+
+        Util.setShort(apdubuf, (short) (SM_RESPONSE + respLen), sw);
+        respLen += 2;
+        ctr(SM_DIR_RESPONSE, apdubuf, SM_RESPONSE, respLen);
+        Util.arrayCopyNonAtomic(m_smState, SM_CMAC, apdubuf, (short) 0, (short) 16);
+        cmac(apdubuf, (short) 0, (short) (SM_RESPONSE + respLen), m_smState, SM_BLOCK);
+        Util.arrayCopyNonAtomic(m_smState, SM_BLOCK, apdubuf, (short) (SM_RESPONSE + respLen), SM_MAC_LENGTH);
+        apdu.setOutgoingAndSend(SM_RESPONSE, (short) (respLen + SM_MAC_LENGTH));
+    }
+
+    // RUNS A DECRYPTED COMMAND WITH ITS PAYLOAD IN in[inOff..inOff+len); RETURNS THE RESPONSE LENGTH
+    short processSecureCommand(byte ins, byte[] in, short inOff, short len, byte[] out, short outOff)
+    {
+        switch (ins)
+        {
+            case INS_VERIFYPIN:
+                if (len != 4)
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                Util.arrayCopyNonAtomic(in, inOff, m_ramArray, (short) 0, len);
+                checkPIN();
+                return 0;
+            case INS_CHANGEPIN:
+                if (len != 4)
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                Util.arrayCopyNonAtomic(in, inOff, m_ramArray, (short) 0, len);
+                setPIN();
+                return 0;
+            case INS_EC_SEND_SEC_KEY:
+                if(!m_pin.isValidated())
+                    ISOException.throwIt(PIN_REQUIRED);
+                if(!m_secretKeyIsSet)
+                    generateSecretKey();
+                return m_aesKey.getKey(out, outOff);
+            case INS_GET_TRIES_REM:
+                out[outOff] = m_pin.getTriesRemaining();
+                return 1;
+            case INS_NEW_FILE_KEY:
+                if (len != 0)
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                return newFileKey(out, outOff);
+            case INS_UNWRAP_KEY:
+                if (len != WRAPPED_KEY_LENGTH)
+                    ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+                return unwrapFileKey(in, inOff, out, outOff);
+            case INS_UNWRAP_KEYS:
+                return unwrapFileKeys(in, inOff, len, out, outOff);
+            default:
+                ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+        return 0;
+    }
+
+    void generateWrapKey()
+    {
+        m_secureRandom.generateData(m_ramArray, (short) 0, (short) 16);
+        m_wrapKey.setKey(m_ramArray, (short) 0);
+        Util.arrayFillNonAtomic(m_ramArray, (short) 0, (short) 16, (byte) 0);
+        m_wrapKeyIsSet = true;
+    }
+
+    // RANDOM FILE KEY; RESPONSE IS THE WRAPPED KEY FOLLOWED BY THE KEY ITSELF
+    short newFileKey(byte[] out, short outOff)
+    {
+        if(!m_pin.isValidated())
+            ISOException.throwIt(PIN_REQUIRED);
+        if(!m_wrapKeyIsSet)
+            generateWrapKey();
+
+        m_secureRandom.generateData(m_ramArray, (short) 0, (short) 16);
+        Util.arrayFillNonAtomic(m_ramArray, (short) 16, (short) 16, WRAP_CHECK);
+        m_wrapCipher.init(m_wrapKey, Cipher.MODE_ENCRYPT);
+        m_wrapCipher.doFinal(m_ramArray, (short) 0, WRAPPED_KEY_LENGTH, out, outOff);
+        Util.arrayCopyNonAtomic(m_ramArray, (short) 0, out, (short) (outOff + WRAPPED_KEY_LENGTH), (short) 16);
+        Util.arrayFillNonAtomic(m_ramArray, (short) 0, WRAPPED_KEY_LENGTH, (byte) 0);
+        return (short) (WRAPPED_KEY_LENGTH + 16);
+    }
+
+    // WRAPPED KEY IN in[inOff..inOff+32); A WRONG CHECK BLOCK MEANS ANOTHER CARD OR A DAMAGED FILE
+    short unwrapFileKey(byte[] in, short inOff, byte[] out, short outOff)
+    {
+        if(!m_pin.isValidated())
+            ISOException.throwIt(PIN_REQUIRED);
+        if(!m_wrapKeyIsSet)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
+        m_wrapCipher.init(m_wrapKey, Cipher.MODE_DECRYPT);
+        if (!unwrapKey(in, inOff, out, outOff))
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        return (short) 16;
+    }
+
+    // WRAPPED KEYS BACK TO BACK IN in; RESPONSE IS A STATUS BYTE (00 OK, 01 BAD)
+    // AND 16 KEY BYTES (ZEROS IF BAD) FOR EACH, SO ONE DAMAGED FILE DOESN'T FAIL THE BATCH
+    short unwrapFileKeys(byte[] in, short inOff, short len, byte[] out, short outOff)
+    {
+        if (len == 0 || (short) (len % WRAPPED_KEY_LENGTH) != 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        if(!m_pin.isValidated())
+            ISOException.throwIt(PIN_REQUIRED);
+        if(!m_wrapKeyIsSet)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
+        m_wrapCipher.init(m_wrapKey, Cipher.MODE_DECRYPT);
+        short off = outOff;
+        short end = (short) (inOff + len);
+        for (; inOff < end; inOff += WRAPPED_KEY_LENGTH) {
+            out[off] = unwrapKey(in, inOff, out, (short) (off + 1)) ? (byte) 0x00 : (byte) 0x01;
+            off += 17;
+        }
+        return (short) (off - outOff);
+    }
+
+    // UNWRAPS in[inOff..inOff+32) TO out[outOff..outOff+16) WITH m_wrapCipher
+    // INITIALIZED; USES THE 16 BYTES BEHIND IT AS SCRATCH. LEAVES ZEROS IF THE CHECK FAILS.
+    boolean unwrapKey(byte[] in, short inOff, byte[] out, short outOff)
+    {
+        m_wrapCipher.doFinal(in, inOff, WRAPPED_KEY_LENGTH, out, outOff);
+        boolean ok = true;
+        for (short i = 16; i < WRAPPED_KEY_LENGTH; i++) {
+            if (out[(short) (outOff + i)] != WRAP_CHECK)
+                ok = false;
+        }
+        Util.arrayFillNonAtomic(out, (short) (outOff + 16), (short) 16, (byte) 0);
+        if (!ok)
+            Util.arrayFillNonAtomic(out, outOff, (short) 16, (byte) 0);
+        return ok;
+    }
+
+    // AES-CTR IN PLACE; COUNTER BLOCK IS DIR || 00 .. 00 || SEQ(4) || BLOCK NUMBER(2)
+    void ctr(byte dir, byte[] buf, short off, short len)
+    {
+        m_aesCipher.init(m_encKey, Cipher.MODE_ENCRYPT);
+        Util.arrayFillNonAtomic(m_smState, SM_BLOCK, (short) 16, (byte) 0);
+        m_smState[SM_BLOCK] = dir;
+        Util.arrayCopyNonAtomic(m_smState, SM_SEQ, m_smState, (short) (SM_BLOCK + 10), (short) 4);
+        short block = 0;
+        for (short pos = 0; pos < len; pos += 16) {
+            Util.setShort(m_smState, (short) (SM_BLOCK + 14), block++);
+            m_aesCipher.doFinal(m_smState, SM_BLOCK, (short) 16, m_smState, SM_STREAM);
+            short n = (short) (len - pos);
+            if (n > 16)
+                n = 16;
+            for (short i = 0; i < n; i++)
+                buf[(short) (off + pos + i)] ^= m_smState[(short) (SM_STREAM + i)];
+        }
+    }
+
+    // AES-CMAC (RFC 4493) OF buf[off..off+len), 16-BYTE TAG TO out[outOff]
+    void cmac(byte[] buf, short off, short len, byte[] out, short outOff)
+    {
+        m_aesCipher.init(m_macKey, Cipher.MODE_ENCRYPT);
+        Util.arrayFillNonAtomic(m_smState, SM_BLOCK, (short) 16, (byte) 0);
+        short end = (short) (off + len);
+        while ((short) (end - off) > 16) {
+            for (short i = 0; i < 16; i++)
+                m_smState[(short) (SM_BLOCK + i)] ^= buf[(short) (off + i)];
+            m_aesCipher.doFinal(m_smState, SM_BLOCK, (short) 16, m_smState, SM_BLOCK);
+            off += 16;
+        }
+        short n = (short) (end - off);
+        for (short i = 0; i < n; i++)
+            m_smState[(short) (SM_BLOCK + i)] ^= buf[(short) (off + i)];
+        short subkey = SM_K1;
+        if (n < 16) {
+            m_smState[(short) (SM_BLOCK + n)] ^= (byte) 0x80;
+            subkey = SM_K2;
+        }
+        for (short i = 0; i < 16; i++)
+            m_smState[(short) (SM_BLOCK + i)] ^= m_smState[(short) (subkey + i)];
+        m_aesCipher.doFinal(m_smState, SM_BLOCK, (short) 16, out, outOff);
+    }
+
+    // MULTIPLICATION BY X IN GF(2^128) OF THE BLOCK AT m_smState[off]
+    void doubleBlock(short off)
+    {
+        byte msb = (byte) (m_smState[off] & 0x80);
+        for (short i = 0; i < 15; i++)
+            m_smState[(short) (off + i)] = (byte) ((m_smState[(short) (off + i)] << 1) | ((m_smState[(short) (off + i + 1)] & 0xff) >>> 7));
+        m_smState[(short) (off + 15)] = (byte) (m_smState[(short) (off + 15)] << 1);
+        if (msb != 0)
+            m_smState[(short) (off + 15)] ^= (byte) 0x87;
+    }
+
     void getTriesRemaining(APDU apdu){
         byte[] apdubuf = apdu.getBuffer();
         
@@ -0,0 +1,49 @@
+package enotes.smartcard.test;
+
+import java.util.Arrays;
+
+/**
+ * Checks and reporting shared by the benchmarks in this package. Times
+ * are in nanoseconds and reported in milliseconds.
+ */
+class BenchmarkUtil {
+
+    /** Ends the run if a benchmarked operation failed */
+    static void check(boolean ok, String what) {
+        if (!ok)
+            throw new IllegalStateException(what + " failed");
+    }
+
+    /** The p-th percentile (0 &lt; p &lt;= 100) of times, nearest rank */
+    static long percentile(long[] times, double p) {
+        long[] t = times.clone();
+        Arrays.sort(t);
+        int i = (int) Math.ceil(p / 100.0 * t.length) - 1;
+        return t[Math.max(0, Math.min(i, t.length - 1))];
+    }
+
+    /** The given percentiles of times as columns, 100 as "max" */
+    static String percentiles(long[] times, double... p) {
+        StringBuilder sb = new StringBuilder();
+        for (double q : p) {
+            String label = q == 100 ? "max" : q == Math.rint(q) ? "p" + (long) q : "p" + q;
+            sb.append(String.format("   %-5s %8.3f ms", label, percentile(times, q) / 1e6));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prints one line for a benchmark: its name, with elapsed (the wall
+     * time of the run, 0 if it doesn't matter) the throughput and number
+     * of operations, and the given percentiles.
+     */
+    static void report(String name, long[] times, long elapsed, double... p) {
+        String throughput = elapsed > 0
+                ? String.format(" %10.1f ops/s   n %7d", times.length / (elapsed / 1e9), times.length) : "";
+        println(String.format("%-30s", name) + throughput + percentiles(times, p));
+    }
+
+    public static void println(String msg) {
+        System.out.println(msg);
+    }
+}
@@ -1,8 +1,13 @@
 package enotes.smartcard.test;
 
 import enotes.smartcard.CardCommunication;
+import enotes.smartcard.CardSession;
 import java.util.Arrays;
 
+/**
+ * Runs against the card in a reader, or with -Denotes.card=sim against the
+ * simulated card.
+ */
 public class CardCommunicationTest {
 
     public static void main(String[] args) {
@@ -73,20 +78,26 @@ public class CardCommunicationTest {
         println("Obtaining secret key 2 times and comparing if they are equal:");
         byte[] secKey = CardCommunication.getSecretKey();
         byte[] secKey2 = CardCommunication.getSecretKey();
+        if (secKey == null) {
+            println("No key, this shouldn't happen");
+            CardCommunication.disconnect();
+            return false;
+        }
         if (Arrays.equals(secKey, secKey2)) {
             println("Great, they are equal!");
         } else {
             println("Damn, they are not equal");
         }
+        boolean sizeOK = secKey.length == CardSession.SECRET_KEY_LENGTH;
         System.out.print("The size of the key is " + secKey.length + ", which is ");
-        if (secKey.length == 16) {
+        if (sizeOK) {
             println("good.");
         } else {
             println("not good!");
         }
         CardCommunication.disconnect();
 
-        return Arrays.equals(secKey, secKey2);
+        return Arrays.equals(secKey, secKey2) && sizeOK;
     }
 
     public static boolean changedPINVerification() {
@@ -0,0 +1,158 @@
+package enotes.smartcard.test;
+
+import enotes.doc.Util;
+import enotes.smartcard.CardCommunication;
+import enotes.smartcard.TransportKeyPool;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.Cipher;
+
+/**
+ * Benchmark suite for the card protocol end to end on the simulated card,
+ * and for the host-only steps around it. Every benchmark is warmed up,
+ * then timed per operation; reported are throughput and latency
+ * percentiles, so protocol changes can be compared run against run.
+ *
+ * The card runs without injected processing time unless configured
+ * through SimulatedLatency (-Denotes.sim.latency, -Denotes.sim.baud), and
+ * with the transport -Denotes.transport selects. The transport key pool is
+ * stopped, so its background key generation doesn't disturb the timings;
+ * getSecretKey over RSA therefore includes the host keygen.
+ *
+ * Usage: CardProtocolBenchmark [iterations] [warmup iterations] [name regex]
+ */
+public class CardProtocolBenchmark {
+
+    static final byte PIN[] = {0, 0, 0, 0};
+
+    // Results end up here so the JIT can't drop the work
+    static int sink = 0;
+
+    /** One benchmark: setUp() once, then op() per timed operation */
+    static abstract class Benchmark {
+
+        final String name;
+
+        Benchmark(String name) {
+            this.name = name;
+        }
+
+        void setUp() throws Exception {
+        }
+
+        abstract void op() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int warmup = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        String filter = args.length > 2 ? args[2] : ".*";
+
+        CardCommunication.setSimulatorBackend(true);
+        if (!CardCommunication.connectToCard())
+            throw new IllegalStateException("simulator not available");
+        final int keySize = TransportKeyPool.getInstance().getKeySize();
+        TransportKeyPool.getInstance().shutdown();
+
+        List<Benchmark> suite = new ArrayList<Benchmark>();
+        suite.add(new Benchmark("connectToCard") {
+            void op() {
+                CardCommunication.disconnect();
+                BenchmarkUtil.check(CardCommunication.connectToCard(), "connect");
+            }
+        });
+        suite.add(new Benchmark("verifyPIN") {
+            void op() {
+                BenchmarkUtil.check(CardCommunication.verifyPIN(PIN), "verifyPIN");
+            }
+        });
+        suite.add(new Benchmark("getSecretKey") {
+            void setUp() {
+                BenchmarkUtil.check(CardCommunication.verifyPIN(PIN), "verifyPIN");
+            }
+
+            void op() {
+                byte key[] = CardCommunication.getSecretKey();
+                BenchmarkUtil.check(key != null, "getSecretKey");
+                sink += key[0];
+            }
+        });
+        // changing the PIN clears its verification, so every change needs one
+        suite.add(new Benchmark("verifyPIN + changePIN") {
+            void op() {
+                BenchmarkUtil.check(CardCommunication.verifyPIN(PIN), "verifyPIN");
+                BenchmarkUtil.check(CardCommunication.changePIN(PIN), "changePIN");
+            }
+        });
+        suite.add(new Benchmark("getTriesRemaining") {
+            void op() {
+                int tries = CardCommunication.getTriesRemaining();
+                BenchmarkUtil.check(tries >= 0, "getTriesRemaining");
+                sink += tries;
+            }
+        });
+        suite.add(new Benchmark("host RSA-" + keySize + " keygen") {
+            KeyPairGenerator keyGen;
+
+            void setUp() throws Exception {
+                keyGen = KeyPairGenerator.getInstance("RSA");
+                keyGen.initialize(keySize, new SecureRandom());
+            }
+
+            void op() {
+                sink += keyGen.genKeyPair().hashCode();
+            }
+        });
+        suite.add(new Benchmark("host PKCS#1 unwrap") {
+            KeyPair keyPair;
+            byte encrypted[];
+            Cipher cipher;
+
+            void setUp() throws Exception {
+                KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+                keyGen.initialize(keySize, new SecureRandom());
+                keyPair = keyGen.genKeyPair();
+                cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+                cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+                encrypted = cipher.doFinal(new byte[16]);
+                cipher.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+            }
+
+            void op() throws Exception {
+                sink += cipher.doFinal(encrypted)[0];
+            }
+        });
+        suite.add(new Benchmark("host sha1hash of key") {
+            final byte key[] = new byte[16];
+
+            void op() {
+                key[0]++;
+                sink += Util.sha1hash(key)[0];
+            }
+        });
+
+        BenchmarkUtil.println(iterations + " operations per benchmark after " + warmup + " warmup, transport "
+                + CardCommunication.getTransport());
+        for (Benchmark b : suite) {
+            if (!b.name.matches(filter))
+                continue;
+            b.setUp();
+            for (int i = 0; i < warmup; i++)
+                b.op();
+            long[] times = new long[iterations];
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                long t0 = System.nanoTime();
+                b.op();
+                times[i] = System.nanoTime() - t0;
+            }
+            BenchmarkUtil.report(b.name, times, System.nanoTime() - start, 50, 90, 99, 100);
+        }
+        CardCommunication.disconnect();
+        if (sink == 42)
+            BenchmarkUtil.println("");
+    }
+}
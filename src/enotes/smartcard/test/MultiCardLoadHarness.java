@@ -0,0 +1,134 @@
+package enotes.smartcard.test;
+
+import enotes.smartcard.CardSession;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test for a key service talking to many cards at once: N sessions,
+ * each with a simulated card of its own, driven from a thread pool (or
+ * virtual threads, where the runtime has them) with a mix of PIN
+ * verifications, key fetches and PIN changes. Each session is driven by
+ * one task at a time. Reports throughput and tail latency per operation.
+ *
+ * A PIN change clears the PIN verification, so it is followed by an
+ * untimed verification to keep the session unlocked. Card timings come
+ * from SimulatedLatency (-Denotes.sim.latency, -Denotes.sim.baud) and the
+ * transport from -Denotes.transport.
+ *
+ * Usage: MultiCardLoadHarness [cards] [threads, 0 for virtual] [operations per card]
+ *        [verify:fetch:change weights]
+ */
+public class MultiCardLoadHarness {
+
+    static final byte PIN[] = {0, 0, 0, 0};
+
+    static final int VERIFY = 0;
+    static final int FETCH = 1;
+    static final int CHANGE = 2;
+    static final String NAMES[] = {"verifyPIN", "getSecretKey", "changePIN"};
+
+    public static void main(String[] args) throws Exception {
+        int cards = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int operations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        String mix[] = (args.length > 3 ? args[3] : "30:60:10").split(":");
+        final int weights[] = new int[3];
+        for (int i = 0; i < 3; i++)
+            weights[i] = Integer.parseInt(mix[i]) + (i > 0 ? weights[i - 1] : 0);
+
+        long t0 = System.nanoTime();
+        final List<CardSession> sessions = new ArrayList<CardSession>();
+        for (int i = 0; i < cards; i++) {
+            CardSession session = new CardSession();
+            session.setSimulatorBackend(true);
+            BenchmarkUtil.check(session.connectToCard(), "connect");
+            BenchmarkUtil.check(session.verifyPIN(PIN), "verifyPIN");
+            sessions.add(session);
+        }
+        BenchmarkUtil.println(cards + " cards ready in " + (System.nanoTime() - t0) / 1000000 + " ms, transport "
+                + sessions.get(0).getTransport());
+
+        ExecutorService pool = threads > 0 ? Executors.newFixedThreadPool(threads) : virtualThreads();
+        List<Future<long[][]>> results = new ArrayList<Future<long[][]>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < cards; i++) {
+            final CardSession session = sessions.get(i);
+            final Random random = new Random(i);
+            results.add(pool.submit(new Callable<long[][]>() {
+                public long[][] call() {
+                    return drive(session, random, operations, weights);
+                }
+            }));
+        }
+
+        // times[op] of every card, concatenated
+        long[][] times = new long[3][0];
+        for (Future<long[][]> f : results) {
+            long[][] t = f.get();
+            for (int op = 0; op < 3; op++) {
+                int n = times[op].length;
+                times[op] = Arrays.copyOf(times[op], n + t[op].length);
+                System.arraycopy(t[op], 0, times[op], n, t[op].length);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        for (CardSession session : sessions)
+            session.disconnect();
+
+        BenchmarkUtil.println(cards + " cards, " + (threads > 0 ? threads + " threads" : "virtual threads") + ", "
+                + operations + " operations per card in " + String.format("%.2f s", elapsed / 1e9));
+        long total = 0;
+        for (int op = 0; op < 3; op++) {
+            total += times[op].length;
+            if (times[op].length > 0)
+                BenchmarkUtil.report(NAMES[op], times[op], elapsed, 50, 99, 99.9, 100);
+        }
+        BenchmarkUtil.println(String.format("%-30s %10.1f ops/s", "all", total / (elapsed / 1e9)));
+    }
+
+    // Runs one card's share; returns its latencies per operation
+    static long[][] drive(CardSession session, Random random, int operations, int weights[]) {
+        long[][] times = new long[3][operations];
+        int counts[] = new int[3];
+        for (int i = 0; i < operations; i++) {
+            int r = random.nextInt(weights[2]);
+            int op = r < weights[0] ? VERIFY : r < weights[1] ? FETCH : CHANGE;
+            long t0 = System.nanoTime();
+            switch (op) {
+                case VERIFY:
+                    BenchmarkUtil.check(session.verifyPIN(PIN), "verifyPIN");
+                    break;
+                case FETCH:
+                    BenchmarkUtil.check(session.getSecretKey() != null, "getSecretKey");
+                    break;
+                default:
+                    BenchmarkUtil.check(session.changePIN(PIN), "changePIN");
+            }
+            times[op][counts[op]++] = System.nanoTime() - t0;
+            if (op == CHANGE)
+                BenchmarkUtil.check(session.verifyPIN(PIN), "verifyPIN");
+        }
+        for (int op = 0; op < 3; op++)
+            times[op] = Arrays.copyOf(times[op], counts[op]);
+        return times;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() where the runtime has it
+    static ExecutorService virtualThreads() throws Exception {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalStateException("This runtime has no virtual threads");
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package enotes.smartcard.test;
+
+import enotes.smartcard.CardCommunication;
+import enotes.smartcard.CardMngr;
+
+/**
+ * Compares PIN verification with a fresh on-card RSA keypair per call (the
+ * old protocol) and with the transport keypair reused for the session. Runs
+ * against the jcardsim simulator with card processing times injected per
+ * instruction, roughly those of a real JavaCard.
+ *
+ * Usage: PINSessionKeyBenchmark [verifications] [keygen ms] [rsa decrypt ms]
+ */
+public class PINSessionKeyBenchmark {
+
+    static final byte INS_GEN_PUB_KEY_MOD = (byte) 0x50;
+    static final byte INS_RET_PUB_EXP = (byte) 0x51;
+    static final byte INS_VERIFYPIN = (byte) 0x55;
+
+    static final byte PIN[] = {0, 0, 0, 0};
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int keygenMs = args.length > 1 ? Integer.parseInt(args[1]) : 1500;
+        int decryptMs = args.length > 2 ? Integer.parseInt(args[2]) : 150;
+
+        if (!CardCommunication.connectToSimulator())
+            throw new IllegalStateException("simulator not available");
+        CardMngr.setSimulatedLatency(INS_GEN_PUB_KEY_MOD, keygenMs * 1000L);
+        CardMngr.setSimulatedLatency(INS_RET_PUB_EXP, 30 * 1000L);
+        CardMngr.setSimulatedLatency(INS_VERIFYPIN, decryptMs * 1000L);
+
+        CardCommunication.setPINSessionKey(false);
+        long[] perCall = run(count);
+        CardCommunication.setPINSessionKey(true);
+        long[] session = run(count);
+        CardCommunication.disconnect();
+
+        BenchmarkUtil.println("RSA-1024 on card, keygen " + keygenMs + " ms, decrypt " + decryptMs + " ms, " + count + " verifications");
+        report("keygen per PIN", perCall);
+        report("session keypair", session);
+        BenchmarkUtil.println(String.format("total: %.1f s vs %.1f s", sum(perCall) / 1e9, sum(session) / 1e9));
+    }
+
+    static long[] run(int count) {
+        long[] times = new long[count];
+        for (int i = 0; i < count; i++) {
+            long t0 = System.nanoTime();
+            if (!CardCommunication.verifyPIN(PIN))
+                throw new IllegalStateException("PIN verification failed");
+            times[i] = System.nanoTime() - t0;
+        }
+        return times;
+    }
+
+    static void report(String name, long[] times) {
+        BenchmarkUtil.println(String.format("%-16s first %8.3f ms", name, times[0] / 1e6)
+                + BenchmarkUtil.percentiles(times, 50, 100));
+    }
+
+    static long sum(long[] times) {
+        long s = 0;
+        for (long t : times)
+            s += t;
+        return s;
+    }
+}
@@ -0,0 +1,147 @@
+package enotes.smartcard.test;
+
+import enotes.smartcard.APDUStats;
+import enotes.smartcard.CardCommunication;
+import enotes.smartcard.CardMngr;
+import enotes.smartcard.TransportKeyPool;
+import java.util.Arrays;
+
+/**
+ * Compares the RSA and ECDH key transports and the secure channel end to
+ * end: connect, verify the PIN and fetch the secret key, as the editor
+ * does on startup, and the same again on an open connection. Runs against
+ * the jcardsim simulator with card processing times injected per
+ * instruction, roughly those of a real JavaCard (RSA-1024 keygen 1.5 s,
+ * P-256 keygen plus agreement 250 ms). With the secure channel it also
+ * times unwrapping a per-file key, which replaces fetching the secret key
+ * when a file with a wrapped key is opened, and unwrapping the keys of a
+ * folder of such files in batches.
+ *
+ * Finally prints the APDUStats table of every instruction sent.
+ *
+ * Transfer time is left out unless a baud rate is given, e.g.
+ * -Denotes.sim.baud=115200 -Denotes.sim.protocol=T=1 (see SimulatedLatency).
+ *
+ * jcardsim only has 192-bit EC, so the simulated card negotiates P-192;
+ * the injected times are those of P-256.
+ *
+ * Usage: TransportBenchmark [unlocks]
+ */
+public class TransportBenchmark {
+
+    static final byte INS_GEN_PUB_KEY_MOD = (byte) 0x50;
+    static final byte INS_RET_PUB_EXP = (byte) 0x51;
+    static final byte INS_SET_MOD = (byte) 0x53;
+    static final byte INS_SET_EXP_SEND_SEC_KEY = (byte) 0x54;
+    static final byte INS_VERIFYPIN = (byte) 0x55;
+    static final byte INS_GET_TRIES_REM = (byte) 0x57;
+    static final byte INS_GET_TRANSPORT = (byte) 0x58;
+    static final byte INS_EC_KEY_AGREE = (byte) 0x59;
+    static final byte INS_EC_SEND_SEC_KEY = (byte) 0x5A;
+    static final byte INS_OPEN_CHANNEL = (byte) 0x5B;
+    static final byte INS_NEW_FILE_KEY = (byte) 0x5C;
+    static final byte INS_UNWRAP_KEY = (byte) 0x5D;
+    static final byte INS_UNWRAP_KEYS = (byte) 0x5E;
+    static final byte INS_RSA_SEND_SEC_KEY = (byte) 0x5F;
+
+    static final byte PIN[] = {0, 0, 0, 0};
+    static final int FOLDER_SIZE = 50;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+
+        // the RSA transport normally runs with a warm host keypair pool
+        TransportKeyPool.getInstance();
+        CardMngr.setSimulatedLatency(INS_GEN_PUB_KEY_MOD, 1500 * 1000L);
+        CardMngr.setSimulatedLatency(INS_RET_PUB_EXP, 30 * 1000L);
+        CardMngr.setSimulatedLatency(INS_SET_MOD, 30 * 1000L);
+        CardMngr.setSimulatedLatency(INS_SET_EXP_SEND_SEC_KEY, 60 * 1000L);
+        CardMngr.setSimulatedLatency(INS_RSA_SEND_SEC_KEY, 60 * 1000L);
+        CardMngr.setSimulatedLatency(INS_GET_TRIES_REM, 5 * 1000L);
+        CardMngr.setSimulatedLatency(INS_GET_TRANSPORT, 5 * 1000L);
+        CardMngr.setSimulatedLatency(INS_EC_KEY_AGREE, 250 * 1000L);
+        CardMngr.setSimulatedLatency(INS_EC_SEND_SEC_KEY, 20 * 1000L);
+        CardMngr.setSimulatedLatency(INS_OPEN_CHANNEL, 260 * 1000L);
+        CardMngr.setSimulatedLatency(INS_NEW_FILE_KEY, 20 * 1000L);
+        CardMngr.setSimulatedLatency(INS_UNWRAP_KEY, 20 * 1000L);
+        CardMngr.setSimulatedLatency(INS_UNWRAP_KEYS, 60 * 1000L);
+
+        BenchmarkUtil.println(count + " unlocks (connect, verify PIN, fetch key) per protocol, then "
+                + count + " PIN dialogs (tries, verify PIN, fetch key) on one connection");
+        for (int mode = 0; mode < 3; mode++) {
+            CardCommunication.setECDHTransport(mode >= 1);
+            CardCommunication.setSecureChannel(mode == 2);
+            // RSA decryption of the PIN vs. AES
+            CardMngr.setSimulatedLatency(INS_VERIFYPIN, (mode == 0 ? 150 : 20) * 1000L);
+
+            long[] unlocks = new long[count];
+            for (int i = 0; i < count; i++) {
+                long t0 = System.nanoTime();
+                connect();
+                unlock();
+                unlocks[i] = System.nanoTime() - t0;
+                if (i < count - 1)
+                    CardCommunication.disconnect();
+            }
+            String transport = CardCommunication.getTransport();
+
+            // files with a wrapped key need one command once the PIN is verified
+            // files with a wrapped key need one command once the PIN is verified,
+            // a folder of them one command per batch
+            long[] files = null;
+            long[] folders = null;
+            byte[][] fileKey = CardCommunication.newFileKey();
+            if (fileKey != null) {
+                files = new long[count];
+                for (int i = 0; i < count; i++) {
+                    long t0 = System.nanoTime();
+                    if (!Arrays.equals(fileKey[1], CardCommunication.unwrapFileKey(fileKey[0])))
+                        throw new IllegalStateException("file key unwrapped wrong");
+                    files[i] = System.nanoTime() - t0;
+                }
+                byte[][] folder = new byte[FOLDER_SIZE][];
+                Arrays.fill(folder, fileKey[0]);
+                folders = new long[count];
+                for (int i = 0; i < count; i++) {
+                    long t0 = System.nanoTime();
+                    byte[][] keys = CardCommunication.unwrapFileKeys(folder);
+                    if (keys == null || !Arrays.equals(fileKey[1], keys[FOLDER_SIZE - 1]))
+                        throw new IllegalStateException("file keys unwrapped wrong");
+                    folders[i] = System.nanoTime() - t0;
+                }
+            }
+
+            long[] dialogs = new long[count];
+            for (int i = 0; i < count; i++) {
+                long t0 = System.nanoTime();
+                if (CardCommunication.getTriesRemaining() < 0)
+                    throw new IllegalStateException("no tries remaining");
+                unlock();
+                dialogs[i] = System.nanoTime() - t0;
+            }
+            CardCommunication.disconnect();
+
+            BenchmarkUtil.report(transport + ", unlock", unlocks, 0, 50, 100);
+            BenchmarkUtil.report(transport + ", PIN dialog", dialogs, 0, 50, 100);
+            if (files != null) {
+                BenchmarkUtil.report(transport + ", file key", files, 0, 50, 100);
+                BenchmarkUtil.report(transport + ", " + FOLDER_SIZE + " file keys", folders, 0, 50, 100);
+            }
+        }
+        BenchmarkUtil.println("");
+        BenchmarkUtil.println("per instruction, all protocols:");
+        System.out.print(APDUStats.getInstance().report());
+    }
+
+    static void connect() {
+        if (!CardCommunication.connectToSimulator())
+            throw new IllegalStateException("simulator not available");
+    }
+
+    static void unlock() {
+        if (!CardCommunication.verifyPIN(PIN))
+            throw new IllegalStateException("PIN verification failed");
+        if (CardCommunication.getSecretKey() == null)
+            throw new IllegalStateException("no secret key");
+    }
+}
@@ -0,0 +1,55 @@
+package enotes.smartcard.test;
+
+import enotes.smartcard.TransportKeyPool;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+
+/**
+ * Compares the latency of generating the transport keypair inline (as
+ * getSecretKey() used to) with taking one from TransportKeyPool. Between
+ * two fetches the benchmark idles for a while, like a user would between
+ * opening documents, which gives the pool time to refill.
+ *
+ * Usage: TransportKeyPoolBenchmark [fetches] [idle ms] [key size] [depth]
+ */
+public class TransportKeyPoolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int fetches = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int idleMs = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int keySize = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(keySize, new SecureRandom());
+        keyGen.genKeyPair(); // warm up
+
+        long[] inline = new long[fetches];
+        for (int i = 0; i < fetches; i++) {
+            long t0 = System.nanoTime();
+            keyGen.genKeyPair();
+            inline[i] = System.nanoTime() - t0;
+        }
+
+        TransportKeyPool pool = new TransportKeyPool(depth, keySize);
+        Thread.sleep(idleMs);
+        long[] pooled = new long[fetches];
+        for (int i = 0; i < fetches; i++) {
+            long t0 = System.nanoTime();
+            KeyPair kp = pool.take();
+            pooled[i] = System.nanoTime() - t0;
+            if (kp == null)
+                throw new IllegalStateException("no keypair");
+            Thread.sleep(idleMs);
+        }
+        pool.shutdown();
+
+        BenchmarkUtil.println("RSA-" + keySize + ", " + fetches + " fetches, " + idleMs + " ms idle between fetches, pool depth " + depth);
+        BenchmarkUtil.report("inline keygen", inline, 0, 50, 90, 99, 100);
+        BenchmarkUtil.report("pool take", pooled, 0, 50, 90, 99, 100);
+        BenchmarkUtil.println("pool hits: " + pool.getHits() + ", misses: " + pool.getMisses());
+        BenchmarkUtil.println(String.format("latency removed per fetch (median): %.2f ms",
+                (BenchmarkUtil.percentile(inline, 50) - BenchmarkUtil.percentile(pooled, 50)) / 1e6));
+    }
+}
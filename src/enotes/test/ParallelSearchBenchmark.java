@@ -0,0 +1,90 @@
+package enotes.test;
+
+import enotes.ParallelSearch;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how ParallelSearch scales with the number of worker threads.
+ *
+ * Usage: ParallelSearchBenchmark [size in MB] [rounds]
+ * (run with enough heap, e.g. -Xmx2g for the default 128 MB of text)
+ */
+public class ParallelSearchBenchmark {
+
+    static final String[] WORDS = {"the", "host", "account", "server", "note", "password",
+        "lorem", "ipsum", "dolor", "encrypted", "card", "key", "backup", "db01.example.org"};
+
+    public static void main(String[] args) {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        println("Generating " + sizeMB + " MB of text...");
+        String text = generateText(sizeMB * 1024 * 1024);
+        Pattern pattern = Pattern.compile(Pattern.quote("db01.example.org"),
+                Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        int overlap = "db01.example.org".length() - 1;
+
+        int[] expected = ParallelSearch.findAll(text, pattern, true);
+        long base = median(timeSequential(text, pattern, rounds));
+        println("Matches: " + expected.length / 2);
+        println(String.format("%-10s %10s %10s", "threads", "median ms", "speedup"));
+        println(String.format("%-10s %10.1f %10.2f", "seq", base / 1e6, 1.0));
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cpus; threads = nextThreads(threads, cpus)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            int[] found = ParallelSearch.findAll(text, pattern, overlap, true, pool);
+            if (!Arrays.equals(expected, found))
+                println("Results differ from the sequential search with " + threads + " threads!");
+            long[] times = new long[rounds];
+            for (int i = 0; i < rounds; i++) {
+                long t0 = System.nanoTime();
+                ParallelSearch.findAll(text, pattern, overlap, true, pool);
+                times[i] = System.nanoTime() - t0;
+            }
+            long t = median(times);
+            println(String.format("%-10d %10.1f %10.2f", threads, t / 1e6, (double) base / t));
+            pool.shutdown();
+        }
+    }
+
+    static long[] timeSequential(String text, Pattern pattern, int rounds) {
+        long[] times = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            long t0 = System.nanoTime();
+            ParallelSearch.findAll(text, pattern, true);
+            times[i] = System.nanoTime() - t0;
+        }
+        return times;
+    }
+
+    static int nextThreads(int threads, int cpus) {
+        if (threads == cpus)
+            return cpus + 1;
+        return Math.min(threads * 2, cpus);
+    }
+
+    static long median(long[] times) {
+        long[] t = times.clone();
+        Arrays.sort(t);
+        return t[t.length / 2];
+    }
+
+    static String generateText(int size) {
+        Random rnd = new Random(42);
+        StringBuilder sb = new StringBuilder(size + 32);
+        while (sb.length() < size) {
+            sb.append(WORDS[rnd.nextInt(WORDS.length)]);
+            sb.append(rnd.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    public static void println(String msg) {
+        System.out.println(msg);
+    }
+}
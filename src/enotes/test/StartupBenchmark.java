@@ -0,0 +1,122 @@
+package enotes.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures cold start of the editor with and without the class data
+ * sharing archive from "ant cds": starts enotes.Main in fresh JVMs on the
+ * simulated card, alternating between the two, each exiting at the given
+ * StartupTimer milestone, and compares the milestone times and the time
+ * until the process has exited.
+ *
+ * The archive only applies to the class path it was made with, so run
+ * this with that class path ("ant startup-benchmark" does). Without a
+ * display use the "card ready" milestone.
+ *
+ * Usage: StartupBenchmark [runs] [milestone] [archive]
+ */
+public class StartupBenchmark {
+
+    static final Pattern MILESTONE = Pattern.compile("([a-z ]+) (\\d+) ms");
+    static final long TIMEOUT_SECONDS = 60;
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String milestone = args.length > 1 ? args[1] : "first frame";
+        String archive = args.length > 2 ? args[2] : "dist/enotes.jsa";
+        if (!new File(archive).exists()) {
+            println("No archive " + archive + ", run \"ant cds\" first");
+            System.exit(1);
+        }
+
+        // times[0] without the archive, times[1] with; milestone -> times
+        List<Map<String, List<Long>>> times = new ArrayList<Map<String, List<Long>>>();
+        times.add(new LinkedHashMap<String, List<Long>>());
+        times.add(new LinkedHashMap<String, List<Long>>());
+        // one of each first, to warm the file system cache
+        start(milestone, null);
+        start(milestone, archive);
+        for (int i = 0; i < runs; i++) {
+            for (int cds = 0; cds < 2; cds++) {
+                Map<String, Long> run = start(milestone, cds == 1 ? archive : null);
+                if (run == null) {
+                    println("Run did not reach \"" + milestone + "\" within " + TIMEOUT_SECONDS + " s");
+                    System.exit(1);
+                }
+                for (Map.Entry<String, Long> e : run.entrySet()) {
+                    if (!times.get(cds).containsKey(e.getKey()))
+                        times.get(cds).put(e.getKey(), new ArrayList<Long>());
+                    times.get(cds).get(e.getKey()).add(e.getValue());
+                }
+            }
+        }
+
+        println(runs + " runs each, until \"" + milestone + "\", median ms");
+        println(String.format("%-18s %10s %10s %8s", "", "no CDS", "CDS", "gain"));
+        for (String m : times.get(0).keySet()) {
+            long base = median(times.get(0).get(m));
+            long cds = times.get(1).containsKey(m) ? median(times.get(1).get(m)) : -1;
+            println(String.format("%-18s %10d %10d %7.1f%%", m, base, cds, 100.0 * (base - cds) / base));
+        }
+    }
+
+    /**
+     * Starts the editor, with the archive if it isn't null; returns its
+     * milestones and "process exit", in milliseconds since it was started,
+     * or null if it didn't get to the milestone.
+     */
+    static Map<String, Long> start(String milestone, String archive) throws Exception {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        if (archive != null)
+            command.add("-XX:SharedArchiveFile=" + archive);
+        command.addAll(Arrays.asList("-Denotes.card=sim", "-Denotes.instance=false",
+                "-Denotes.startup.exit=" + milestone, "-cp", System.getProperty("java.class.path"), "enotes.Main"));
+
+        // milestones count from here, so JVM startup is included
+        long t0 = System.currentTimeMillis();
+        command.add(1, "-Denotes.startup.t0=" + t0);
+        File output = File.createTempFile("enotes-startup", ".txt");
+        try {
+            Process p = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(output).start();
+            if (!p.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                p.destroyForcibly();
+                return null;
+            }
+            long exit = System.currentTimeMillis() - t0;
+            Map<String, Long> result = null;
+            for (String line : Files.readAllLines(output.toPath())) {
+                if (!line.startsWith("startup:"))
+                    continue;
+                result = new LinkedHashMap<String, Long>();
+                Matcher m = MILESTONE.matcher(line);
+                while (m.find())
+                    result.put(m.group(1).trim(), Long.parseLong(m.group(2)));
+            }
+            if (result != null)
+                result.put("process exit", exit);
+            return result;
+        } finally {
+            output.delete();
+        }
+    }
+
+    static long median(List<Long> times) {
+        Long t[] = times.toArray(new Long[0]);
+        Arrays.sort(t);
+        return t[t.length / 2];
+    }
+
+    public static void println(String msg) {
+        System.out.println(msg);
+    }
+}
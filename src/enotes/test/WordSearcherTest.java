@@ -0,0 +1,53 @@
+package enotes.test;
+
+import enotes.WordSearcher;
+import java.util.Arrays;
+import javax.swing.JTextArea;
+
+/**
+ * Checks that whole word search and term search agree on what a word is,
+ * also for letters outside ASCII.
+ */
+public class WordSearcherTest {
+
+    public static void main(String[] args) {
+        wholeWordNonAscii();
+        wholeWordRegexNonAscii();
+        termsNonAscii();
+    }
+
+    public static boolean wholeWordNonAscii() {
+        WordSearcher ws = newSearcher("Mačka, mačka je tu.");
+        ws.setMode(WordSearcher.MODE_WHOLE_WORD);
+        boolean ok = ws.search("č") == -1 && ws.search("ma") == -1 && ws.search("ka") == -1
+                && ws.search("mačka") == 0 && ws.search("je") == 13;
+        println(ok ? "Whole word search respects non-ASCII letters" : "Whole word search splits words at non-ASCII letters");
+        return ok;
+    }
+
+    public static boolean wholeWordRegexNonAscii() {
+        WordSearcher ws = newSearcher("Mačka, mačka je tu.");
+        ws.setMode(WordSearcher.MODE_WHOLE_WORD | WordSearcher.MODE_REGEX | WordSearcher.MODE_CASE_SENSITIVE);
+        boolean ok = ws.search("m.") == -1 && ws.search("m.čka") == 7;
+        println(ok ? "Whole word regex search respects non-ASCII letters" : "Whole word regex search splits words at non-ASCII letters");
+        return ok;
+    }
+
+    public static boolean termsNonAscii() {
+        WordSearcher ws = newSearcher("Mačka, mačka je tu.");
+        ws.setMode(WordSearcher.MODE_WHOLE_WORD);
+        int[] counts = ws.searchTerms(Arrays.asList("č", "ma", "mačka", "je"));
+        boolean ok = Arrays.equals(counts, new int[]{0, 0, 2, 1});
+        println(ok ? "Term search respects non-ASCII letters" : "Term search counts " + Arrays.toString(counts));
+        return ok;
+    }
+
+    private static WordSearcher newSearcher(String text) {
+        JTextArea ta = new JTextArea(text);
+        return new WordSearcher(ta);
+    }
+
+    public static void println(String msg) {
+        System.out.println(msg);
+    }
+}